@@ -0,0 +1,10 @@
+/**
+ * Interface for Boolean nodes
+ * evaluate returns a boolean
+ */
+interface BoolNode {
+    public boolean evaluate(Robot r);
+
+    /** Calls the visitor's method for this kind of node (see ProgramVisitor) */
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg);
+}
@@ -0,0 +1,547 @@
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A robot program compiled from its tree into one flat array of ints, and
+ * run by a single loop that reads an opcode and its operands and acts on
+ * them, instead of by calls down the tree. Running it touches one array
+ * rather than objects scattered about the heap. The tree is kept alongside,
+ * for visitors, so a compiled program can be printed or saved like the tree.
+ *
+ * Expressions are worked out in registers, numbered from 0 and allocated
+ * like a stack, so an operation's operands are always in its own register
+ * and the next one up. Conditions compile to jumps, so the second half of
+ * an and or an or is skipped when the first half decides it. Variables are
+ * kept by the robot, as for the tree, under names held in a constant pool.
+ *
+ * A compiled program makes exactly the calls on the robot that its tree
+ * would, in the same order.
+ */
+public final class CompiledProgram implements ProgramNode {
+
+    // opcodes, each followed by the operands listed
+    static final int HALT = 0;
+    static final int CONST = 1;        // r value: r = value
+    static final int GETVAR = 2;       // r k: r = the variable named by names[k]
+    static final int SETVAR = 3;       // k r: the variable named by names[k] = r
+    static final int SENSE = 4;        // r s: r = sensor s
+    static final int BARREL = 5;       // r s: r = barrel sensor s, of the barrel numbered r
+    static final int ADD = 6;          // d a b: d = a + b
+    static final int SUB = 7;
+    static final int MUL = 8;
+    static final int DIV = 9;
+    static final int JMP = 10;         // target
+    static final int JEQ = 11;         // a b target: jump if a == b
+    static final int JNE = 12;
+    static final int JLT = 13;
+    static final int JGE = 14;
+    static final int JGT = 15;
+    static final int JLE = 16;
+    static final int ACT = 17;         // a: do action a
+    static final int REPEAT = 18;      // a r: do action a (move or wait) r times, as one batch
+    static final int COUNT = 19;       // n: count n instructions, as statements, conditions and expressions do
+    static final int SAFEPOINT = 20;   // the end of a pass round a loop
+
+    private static final String[] OPCODES = {
+        "halt", "const", "getvar", "setvar", "sense", "barrel", "add", "sub", "mul", "div",
+        "jmp", "jeq", "jne", "jlt", "jge", "jgt", "jle", "act", "repeat", "count", "safepoint"
+    };
+    private static final int[] OPERANDS = {
+        0, 2, 2, 2, 2, 2, 3, 3, 3, 3,
+        1, 3, 3, 3, 3, 3, 3, 1, 2, 1, 0
+    };
+
+    // the operands of SENSE, BARREL, ACT and REPEAT, by their names in the language
+    private static final List<String> SENSORS = List.of(
+        "fuelLeft", "oppLR", "oppFB", "numBarrels", "wallDist", "barrelDist", "barrelDir");
+    private static final List<String> BARRELS = List.of("barrelLR", "barrelFB");
+    private static final List<String> ACTIONS = List.of(
+        "turnL", "turnR", "turnAround", "takeFuel", "shieldOn", "shieldOff", "move", "wait");
+    private static final int MOVE = 6;
+
+    private final int[] code;
+    private final String[] names;
+    private final int registers;
+    // the tree it was compiled from, for visitors
+    private final ProgramNode source;
+
+    private CompiledProgram(int[] code, String[] names, int registers, ProgramNode source) {
+        this.code = code;
+        this.names = names;
+        this.registers = registers;
+        this.source = source;
+    }
+
+    /**
+     * Compiles a parsed program. A program that is already compiled is given
+     * back, as is null, which the parser gives for an empty program.
+     */
+    public static CompiledProgram compile(ProgramNode prog) {
+        if (prog == null || prog instanceof CompiledProgram) return (CompiledProgram) prog;
+        Compiler c = new Compiler();
+        c.compile(prog);
+        return c.finish(prog);
+    }
+
+    /**
+     * @return the number of ints of code, including operands
+     */
+    public int size() {
+        return code.length;
+    }
+
+    @Override
+    public void execute(Robot robot) {
+        run(robot, new int[registers], 0, false);
+    }
+
+    /**
+     * @return a run of this program, not yet started
+     */
+    public Run start() {
+        return new Run();
+    }
+
+    /**
+     * A run of a compiled program that stops whenever its robot would have
+     * to wait for the world, and carries on from there the next time it is
+     * resumed, so that a world can run its robots' programs on its own
+     * thread, a step at a time (see Robot.step()). Only the program counter
+     * and the registers need keeping between steps.
+     */
+    public final class Run {
+        private final int[] reg = new int[registers];
+        private int pc;
+
+        /**
+         * Runs the program until it halts, or until its robot would have to
+         * wait: to read a sensor while actions it has chosen are still to be
+         * done, or to choose an action while its queue is full.
+         * 
+         * @return false once the program has halted
+         */
+        public boolean resume(Robot robot) {
+            pc = run(robot, reg, pc, true);
+            return pc >= 0;
+        }
+    }
+
+    /**
+     * Runs the code from pc, with the given registers.
+     * 
+     * @param yielding whether to stop before an instruction that would make
+     *                 the robot wait, rather than wait for it
+     * @return the instruction to carry on from, or -1 once the program has
+     *         halted
+     */
+    private int run(Robot robot, int[] reg, int pc, boolean yielding) {
+        final int[] code = this.code;
+        while (true) {
+            switch (code[pc]) {
+            case HALT -> {
+                return -1;
+            }
+            case CONST -> {
+                reg[code[pc + 1]] = code[pc + 2];
+                pc += 3;
+            }
+            case GETVAR -> {
+                reg[code[pc + 1]] = robot.getVariable(names[code[pc + 2]]);
+                pc += 3;
+            }
+            case SETVAR -> {
+                robot.setVariable(names[code[pc + 1]], reg[code[pc + 2]]);
+                pc += 3;
+            }
+            case SENSE -> {
+                if (yielding && robot.wouldWaitToSense()) return pc;
+                reg[code[pc + 1]] = sense(robot, code[pc + 2]);
+                pc += 3;
+            }
+            case BARREL -> {
+                if (yielding && robot.wouldWaitToSense()) return pc;
+                int r = code[pc + 1], n = reg[r];
+                if (code[pc + 2] == 0) {
+                    reg[r] = (n == Integer.MIN_VALUE) ? robot.getClosestBarrelLR() : robot.getBarrelLR(n);
+                } else {
+                    reg[r] = (n == Integer.MIN_VALUE) ? robot.getClosestBarrelFB() : robot.getBarrelFB(n);
+                }
+                pc += 3;
+            }
+            case ADD -> {
+                reg[code[pc + 1]] = reg[code[pc + 2]] + reg[code[pc + 3]];
+                pc += 4;
+            }
+            case SUB -> {
+                reg[code[pc + 1]] = reg[code[pc + 2]] - reg[code[pc + 3]];
+                pc += 4;
+            }
+            case MUL -> {
+                reg[code[pc + 1]] = reg[code[pc + 2]] * reg[code[pc + 3]];
+                pc += 4;
+            }
+            case DIV -> {
+                reg[code[pc + 1]] = reg[code[pc + 2]] / reg[code[pc + 3]];
+                pc += 4;
+            }
+            case JMP -> pc = code[pc + 1];
+            case JEQ -> pc = (reg[code[pc + 1]] == reg[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+            case JNE -> pc = (reg[code[pc + 1]] != reg[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+            case JLT -> pc = (reg[code[pc + 1]] < reg[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+            case JGE -> pc = (reg[code[pc + 1]] >= reg[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+            case JGT -> pc = (reg[code[pc + 1]] > reg[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+            case JLE -> pc = (reg[code[pc + 1]] <= reg[code[pc + 2]]) ? code[pc + 3] : pc + 4;
+            case ACT -> {
+                if (yielding && robot.wouldWaitToAct()) return pc;
+                act(robot, code[pc + 1]);
+                pc += 2;
+            }
+            case REPEAT -> {
+                if (yielding && robot.wouldWaitToAct()) return pc;
+                if (code[pc + 1] == MOVE) {
+                    robot.move(reg[code[pc + 2]]);
+                } else {
+                    robot.idleWait(reg[code[pc + 2]]);
+                }
+                pc += 3;
+            }
+            // either may make the robot wait out the tick once it is over its budget
+            case COUNT -> {
+                if (yielding && robot.wouldWaitToAct()) return pc;
+                robot.countInstructions(code[pc + 1]);
+                pc += 2;
+            }
+            case SAFEPOINT -> {
+                if (yielding && robot.wouldWaitToAct()) return pc;
+                robot.safepoint();
+                pc++;
+            }
+            default -> throw new IllegalStateException("bad opcode " + code[pc] + " at " + pc);
+            }
+        }
+    }
+
+    private static int sense(Robot robot, int sensor) {
+        switch (sensor) {
+        case 0: return robot.getFuel();
+        case 1: return robot.getOpponentLR();
+        case 2: return robot.getOpponentFB();
+        case 3: return robot.numBarrels();
+        case 4: return robot.getDistanceToWall();
+        case 5: return robot.getBarrelDistance();
+        default: return robot.getBarrelDirection();
+        }
+    }
+
+    private static void act(Robot robot, int action) {
+        switch (action) {
+        case 0: robot.turnLeft(); break;
+        case 1: robot.turnRight(); break;
+        case 2: robot.turnAround(); break;
+        case 3: robot.takeFuel(); break;
+        case 4: robot.setShield(true); break;
+        case 5: robot.setShield(false); break;
+        case MOVE: robot.move(); break;
+        default: robot.idleWait(); break;
+        }
+    }
+
+    /**
+     * Visits the tree the program was compiled from, so a robot's running
+     * program can be printed, saved or edited like any other.
+     */
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) {
+        return source.accept(v, arg);
+    }
+
+    /**
+     * @return the code, one instruction to a line
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (int pc = 0; pc < code.length; pc += 1 + OPERANDS[code[pc]]) {
+            int op = code[pc];
+            sb.append(String.format("%4d  %-9s", pc, OPCODES[op]));
+            switch (op) {
+            case GETVAR -> sb.append(" r").append(code[pc + 1]).append(' ').append(names[code[pc + 2]]);
+            case SETVAR -> sb.append(' ').append(names[code[pc + 1]]).append(" r").append(code[pc + 2]);
+            case SENSE -> sb.append(" r").append(code[pc + 1]).append(' ').append(SENSORS.get(code[pc + 2]));
+            case BARREL -> sb.append(" r").append(code[pc + 1]).append(' ').append(BARRELS.get(code[pc + 2]));
+            case ACT -> sb.append(' ').append(ACTIONS.get(code[pc + 1]));
+            case REPEAT -> sb.append(' ').append(ACTIONS.get(code[pc + 1])).append(" r").append(code[pc + 2]);
+            case CONST -> sb.append(" r").append(code[pc + 1]).append(' ').append(code[pc + 2]);
+            case JMP, COUNT -> sb.append(' ').append(code[pc + 1]);
+            default -> {
+                // registers, then a target for the conditional jumps
+                for (int i = 1; i <= OPERANDS[op]; i++) {
+                    boolean target = op >= JEQ && op <= JLE && i == 3;
+                    sb.append(target ? " " : " r").append(code[pc + i]);
+                }
+            }
+            }
+            sb.append('\n');
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Emits the code for a tree, as the tree is visited.
+     * Statements are visited with a null arg. Expressions are visited with
+     * the register to leave their value in, and only use that register and
+     * those above it. Conditions are visited with a label to jump to, times
+     * two, plus one to jump if the condition holds or zero to jump if it
+     * doesn't; otherwise they fall through.
+     *
+     * A node emits what comes before its parts straight away, and leaves its
+     * parts and what comes between and after them on a stack of work to do,
+     * rather than recursing, so programs nested deeper than a thread's stack
+     * still compile.
+     */
+    private static class Compiler implements ProgramVisitor<Void, Integer> {
+        private int[] code = new int[64];
+        private int length, registers;
+        private final List<String> names = new ArrayList<>();
+        private final Map<String, Integer> nameIndex = new HashMap<>();
+        // where each label is, and the operands that jump to a label
+        private int[] labels = new int[16];
+        private int labelCount;
+        private final List<Integer> jumps = new ArrayList<>();
+        // what is left to do, next on top: words to emit, labels, nodes and the rest of blocks
+        private final Deque<Object> pending = new ArrayDeque<>();
+
+        /** A node to visit, with its arg */
+        private static final class Part {
+            final Object node;
+            final Integer arg;
+
+            Part(Object node, Integer arg) {
+                this.node = node;
+                this.arg = arg;
+            }
+        }
+
+        /** A label to place, or to emit as a jump operand */
+        private static final class Label {
+            final int label;
+            final boolean place;
+
+            Label(int label, boolean place) {
+                this.label = label;
+                this.place = place;
+            }
+        }
+
+        void compile(ProgramNode prog) {
+            pending.push(new Part(prog, null));
+            while (!pending.isEmpty()) {
+                Object item = pending.pop();
+                if (item instanceof int[]) {
+                    emit((int[]) item);
+                } else if (item instanceof Label) {
+                    Label label = (Label) item;
+                    if (label.place) place(label.label);
+                    else emitTarget(label.label);
+                } else if (item instanceof Iterator) {
+                    Iterator<?> block = (Iterator<?>) item;
+                    Object statement = block.next();
+                    if (block.hasNext()) pending.push(block);
+                    pending.push(new Part(statement, null));
+                } else {
+                    Part part = (Part) item;
+                    if (part.node instanceof IntNode) ((IntNode) part.node).accept(this, part.arg);
+                    else if (part.node instanceof BoolNode) ((BoolNode) part.node).accept(this, part.arg);
+                    else ((ProgramNode) part.node).accept(this, part.arg);
+                }
+            }
+        }
+
+        CompiledProgram finish(ProgramNode source) {
+            emit(HALT);
+            for (int at : jumps) {
+                code[at] = labels[code[at]];
+            }
+            return new CompiledProgram(Arrays.copyOf(code, length), names.toArray(new String[0]), Math.max(1, registers),
+                                       source);
+        }
+
+        /** Leaves the items to be done next, in order */
+        private Void then(Object... items) {
+            for (int i = items.length - 1; i >= 0; i--) {
+                pending.push(items[i]);
+            }
+            return null;
+        }
+
+        private void emit(int... words) {
+            if (length + words.length > code.length) code = Arrays.copyOf(code, 2 * code.length + words.length);
+            System.arraycopy(words, 0, code, length, words.length);
+            length += words.length;
+        }
+
+        /** Emits a jump operand, to be filled in once the label has been placed */
+        private void emitTarget(int label) {
+            jumps.add(length);
+            emit(label);
+        }
+
+        private int newLabel() {
+            if (labelCount == labels.length) labels = Arrays.copyOf(labels, 2 * labelCount);
+            return labelCount++;
+        }
+
+        private void place(int label) {
+            labels[label] = length;
+        }
+
+        private void use(int register) {
+            registers = Math.max(registers, register + 1);
+        }
+
+        private int name(String name) {
+            return nameIndex.computeIfAbsent(name, n -> {
+                    names.add(n);
+                    return names.size() - 1;
+                });
+        }
+
+        private Object block(List<ProgramNode> statements) {
+            return statements.isEmpty() ? new int[0] : statements.iterator();
+        }
+
+        @Override
+        public Void visitProgram(List<ProgramNode> statements, Integer arg) {
+            return then(block(statements));
+        }
+
+        @Override
+        public Void visitAction(String action, Integer arg) {
+            emit(ACT, ACTIONS.indexOf(action));
+            return null;
+        }
+
+        @Override
+        public Void visitRepeatedAction(String action, IntNode times, Integer arg) {
+            emit(COUNT, times.size());
+            return then(new Part(times, 0), new int[] { REPEAT, ACTIONS.indexOf(action), 0 });
+        }
+
+        @Override
+        public Void visitIf(BoolNode[] guards, ProgramNode[][] bodies, ProgramNode[] elseBody, Integer arg) {
+            emit(COUNT, 1);
+            int end = newLabel();
+            // pushed from the end, so the else block goes first
+            then(block(Arrays.asList(elseBody)), new Label(end, true));
+            int[] next = new int[guards.length];
+            for (int i = 0; i < guards.length; i++) {
+                next[i] = newLabel();
+            }
+            for (int i = guards.length - 1; i >= 0; i--) {
+                then(new Part(guards[i], 2 * next[i]), block(Arrays.asList(bodies[i])),
+                     new int[] { JMP }, new Label(end, false), new Label(next[i], true));
+            }
+            return null;
+        }
+
+        @Override
+        public Void visitWhile(BoolNode guard, List<ProgramNode> body, Integer arg) {
+            emit(COUNT, 1);
+            int top = newLabel(), end = newLabel();
+            place(top);
+            return then(new Part(guard, 2 * end), block(body), new int[] { SAFEPOINT, JMP },
+                        new Label(top, false), new Label(end, true));
+        }
+
+        @Override
+        public Void visitLoop(List<ProgramNode> body, Integer arg) {
+            int top = newLabel();
+            place(top);
+            return then(block(body), new int[] { SAFEPOINT, JMP }, new Label(top, false));
+        }
+
+        @Override
+        public Void visitAssign(String variable, IntNode value, Integer arg) {
+            emit(COUNT, 1 + value.size());
+            return then(new Part(value, 0), new int[] { SETVAR, name(variable), 0 });
+        }
+
+        @Override
+        public Void visitComparison(String relop, IntNode first, IntNode second, Integer arg) {
+            boolean jumpIf = (arg & 1) == 1;
+            int op;
+            switch (relop) {
+            case "lt": op = jumpIf ? JLT : JGE; break;
+            case "gt": op = jumpIf ? JGT : JLE; break;
+            default: op = jumpIf ? JEQ : JNE; break;
+            }
+            emit(COUNT, 1 + first.size() + second.size());
+            return then(new Part(first, 0), new Part(second, 1), new int[] { op, 0, 1 }, new Label(arg >> 1, false));
+        }
+
+        @Override
+        public Void visitLogic(String op, BoolNode first, BoolNode second, Integer arg) {
+            emit(COUNT, 1);
+            boolean jumpIf = (arg & 1) == 1;
+            // the value of first that decides the whole condition
+            boolean decides = op.equals("or");
+            if (decides == jumpIf) {
+                // it decides it the way we jump, so jump straight there
+                return then(new Part(first, arg), new Part(second, arg));
+            }
+            // it decides it the other way, so skip the second and fall through
+            int skip = newLabel();
+            return then(new Part(first, 2 * skip + (decides ? 1 : 0)), new Part(second, arg), new Label(skip, true));
+        }
+
+        @Override
+        public Void visitNot(BoolNode operand, Integer arg) {
+            emit(COUNT, 1);
+            return then(new Part(operand, arg ^ 1));
+        }
+
+        @Override
+        public Void visitNumber(int value, Integer arg) {
+            use(arg);
+            emit(CONST, arg, value);
+            return null;
+        }
+
+        @Override
+        public Void visitVariable(String variable, Integer arg) {
+            use(arg);
+            emit(GETVAR, arg, name(variable));
+            return null;
+        }
+
+        @Override
+        public Void visitSensor(String sensor, Integer arg) {
+            use(arg);
+            emit(SENSE, arg, SENSORS.indexOf(sensor));
+            return null;
+        }
+
+        @Override
+        public Void visitBarrel(String sensor, IntNode index, Integer arg) {
+            return then(new Part(index, arg), new int[] { BARREL, arg, BARRELS.indexOf(sensor) });
+        }
+
+        @Override
+        public Void visitOperation(String op, IntNode first, IntNode second, Integer arg) {
+            int opcode;
+            switch (op) {
+            case "add": opcode = ADD; break;
+            case "sub": opcode = SUB; break;
+            case "mul": opcode = MUL; break;
+            default: opcode = DIV; break;
+            }
+            return then(new Part(first, arg), new Part(second, arg + 1), new int[] { opcode, arg, arg, arg + 1 });
+        }
+    }
+}
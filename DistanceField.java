@@ -0,0 +1,118 @@
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.Set;
+
+/**
+ * The length of the shortest path, in moves, from every square of the arena
+ * to the nearest fuel barrel, going around one blocked square (where the
+ * opponent stands). Found by a breadth first search from all the barrels at
+ * once, so a robot's path sensors are a lookup rather than a sort.
+ *
+ * Fields are immutable. The world derives each one from the field of the
+ * previous frame: when only barrels have been added it just spreads the new
+ * ones out over the squares they are closer to, and when a barrel has been
+ * taken or the blocked square has moved it searches again from scratch.
+ */
+public final class DistanceField {
+
+    /** The distance from a square no barrel can be reached from */
+    public static final int UNREACHABLE = Integer.MAX_VALUE;
+
+    private final int size;
+    private final int[] dist;
+    private final Set<Point> barrels;
+    // index of the blocked square, or -1
+    private final int blocked;
+
+    private DistanceField(int size, int[] dist, Set<Point> barrels, int blocked) {
+        this.size = size;
+        this.dist = dist;
+        this.barrels = barrels;
+        this.blocked = blocked;
+    }
+
+    /**
+     * Searches from every barrel on a size by size arena.
+     *
+     * @param blocked the square no path may pass through, or null
+     */
+    public static DistanceField compute(int size, Set<Point> barrels, Point blocked) {
+        int[] dist = new int[size * size];
+        Arrays.fill(dist, UNREACHABLE);
+        int block = (blocked != null) ? blocked.y * size + blocked.x : -1;
+        int[] queue = new int[size * size];
+        int tail = 0;
+        for (Point p : barrels) {
+            int i = p.y * size + p.x;
+            if (i != block && dist[i] != 0) {
+                dist[i] = 0;
+                queue[tail++] = i;
+            }
+        }
+        spread(size, dist, block, queue, tail);
+        return new DistanceField(size, dist, barrels, block);
+    }
+
+    /**
+     * Returns the field for the given barrels and blocked square, reusing as
+     * much of this one as possible.
+     */
+    public DistanceField update(Set<Point> barrels, Point blocked) {
+        int block = (blocked != null) ? blocked.y * size + blocked.x : -1;
+        if (block != this.blocked || !barrels.containsAll(this.barrels)) {
+            return compute(size, barrels, blocked);
+        }
+        if (barrels == this.barrels || barrels.size() == this.barrels.size()) {
+            return this;
+        }
+        int[] next = dist.clone();
+        int[] queue = new int[size * size];
+        int tail = 0;
+        for (Point p : barrels) {
+            int i = p.y * size + p.x;
+            if (i != block && next[i] != 0) {
+                next[i] = 0;
+                queue[tail++] = i;
+            }
+        }
+        spread(size, next, block, queue, tail);
+        return new DistanceField(size, next, barrels, block);
+    }
+
+    /**
+     * Breadth first search outwards from the queued squares, lowering the
+     * distance of every square that is closer to them than it was. As every
+     * queued square starts at 0, each square is lowered at most once.
+     */
+    private static void spread(int size, int[] dist, int block, int[] queue, int tail) {
+        for (int head = 0; head < tail; head++) {
+            int i = queue[head];
+            int x = i % size, y = i / size, d = dist[i] + 1;
+            if (y > 0)        tail = visit(dist, i - size, d, block, queue, tail);
+            if (x > 0)        tail = visit(dist, i - 1, d, block, queue, tail);
+            if (y < size - 1) tail = visit(dist, i + size, d, block, queue, tail);
+            if (x < size - 1) tail = visit(dist, i + 1, d, block, queue, tail);
+        }
+    }
+
+    private static int visit(int[] dist, int i, int d, int block, int[] queue, int tail) {
+        if (i == block || dist[i] <= d) return tail;
+        dist[i] = d;
+        queue[tail++] = i;
+        return tail;
+    }
+
+    /**
+     * @return the number of moves from (x, y) to the nearest barrel, or
+     *         UNREACHABLE if there are no barrels that can be reached, or
+     *         (x, y) is off the arena or is the blocked square
+     */
+    public int distance(int x, int y) {
+        if (x < 0 || y < 0 || x >= size || y >= size) return UNREACHABLE;
+        return dist[y * size + x];
+    }
+
+    public Set<Point> getBarrels() {
+        return barrels;
+    }
+}
@@ -0,0 +1,491 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Evolves robot programs by genetic programming.
+ * Programs are generated at random, then bred by mutation and crossover.
+ * Each program is scored by playing headless matches against every valid
+ * program in the programs directory (and the robot's default behaviour),
+ * with the matches spread over all cores. The best program of each
+ * generation is written out as a .prog file.
+ *
+ * Usage: java Evolver [-g generations] [-p population] [-t ticks] [-s seed] [-o output.prog]
+ */
+public class Evolver {
+
+    private static final String[] ACTIONS = { "turnL", "turnR", "takeFuel", "turnAround", "shieldOn", "shieldOff" };
+    private static final String[] SENSORS = { "fuelLeft", "oppLR", "oppFB", "numBarrels", "wallDist" };
+    private static final String[] RELOPS = { "lt", "gt", "eq" };
+    private static final String[] OPS = { "add", "sub", "mul", "div" };
+    private static final String[] VARIABLES = { "$a", "$b", "$c" };
+
+    private static final int MAX_SIZE = 150;
+    private static final int TOURNAMENT = 3;
+    private static final int ELITES = 2;
+
+    private final Random rand;
+    private final int population, maxTicks;
+    private final List<ProgramNode> opponents = new ArrayList<>();
+
+    public Evolver(long seed, int population, int maxTicks) {
+        this.rand = new Random(seed);
+        this.population = population;
+        this.maxTicks = maxTicks;
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        int generations = 20, population = 40, ticks = 300;
+        long seed = 1;
+        String output = "evolved.prog";
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "-g" -> generations = Integer.parseInt(args[i + 1]);
+            case "-p" -> population = Integer.parseInt(args[i + 1]);
+            case "-t" -> ticks = Integer.parseInt(args[i + 1]);
+            case "-s" -> seed = Long.parseLong(args[i + 1]);
+            case "-o" -> output = args[i + 1];
+            default -> System.out.println("Unknown option " + args[i]);
+            }
+        }
+        Robot.debugDisplay = false;
+        Evolver evolver = new Evolver(seed, population, ticks);
+        evolver.loadOpponents(new File(RoboGame.CODE_DIRECTORY));
+        evolver.evolve(generations, new File(output));
+    }
+
+    /**
+     * Adds every program in the directory that parses to the reference pool,
+     * along with the default program (null).
+     */
+    public void loadOpponents(File directory) {
+        opponents.add(null);
+        File[] files = directory.listFiles((dir, name) -> name.endsWith(".prog"));
+        if (files == null) return;
+        Arrays.sort(files);
+        for (File file : files) {
+            try {
+                ProgramNode prog = ProgramCache.load(file.toPath());
+                if (prog != null) opponents.add(CompiledProgram.compile(prog));
+            } catch (IOException | ParserFailureException e) {
+                // not a usable opponent
+            }
+        }
+    }
+
+    /**
+     * Runs the given number of generations, writing the best program found
+     * so far to the output file after each one.
+     */
+    public void evolve(int generations, File output) throws IOException, InterruptedException, ExecutionException {
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors());
+        try {
+            Gene[] genes = new Gene[population];
+            for (int i = 0; i < population; i++) {
+                genes[i] = randomProgram();
+            }
+            Gene best = null;
+            double bestScore = Double.NEGATIVE_INFINITY;
+            for (int gen = 0; gen < generations; gen++) {
+                long start = System.nanoTime();
+                long matchSeed = rand.nextLong();
+                double[] scores = evaluate(genes, matchSeed, pool);
+
+                Integer[] ranked = new Integer[population];
+                for (int i = 0; i < population; i++) ranked[i] = i;
+                Arrays.sort(ranked, Comparator.comparingDouble(i -> -scores[i]));
+                if (scores[ranked[0]] > bestScore) {
+                    bestScore = scores[ranked[0]];
+                    best = genes[ranked[0]];
+                    try (PrintWriter out = new PrintWriter(output)) {
+                        best.write(out, "");
+                    }
+                }
+                System.out.printf("generation %d: best %.1f, mean %.1f, best size %d, %.0f ms%n",
+                                  gen, scores[ranked[0]], Arrays.stream(scores).average().orElse(0),
+                                  genes[ranked[0]].size(), (System.nanoTime() - start) / 1e6);
+
+                Gene[] next = new Gene[population];
+                for (int i = 0; i < ELITES && i < population; i++) {
+                    next[i] = genes[ranked[i]];
+                }
+                for (int i = Math.min(ELITES, population); i < population; i++) {
+                    Gene child = select(genes, scores);
+                    if (rand.nextDouble() < 0.7) child = crossover(child, select(genes, scores));
+                    if (rand.nextDouble() < 0.4) child = mutate(child);
+                    next[i] = child;
+                }
+                genes = next;
+            }
+            System.out.println("Best program (" + output + "):");
+            StringWriter text = new StringWriter();
+            best.write(text, "");
+            System.out.println(text);
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    /**
+     * Scores every program in parallel. All programs play the same matches.
+     */
+    private double[] evaluate(Gene[] genes, long matchSeed, ExecutorService pool)
+        throws InterruptedException, ExecutionException {
+        List<Future<Double>> futures = new ArrayList<>();
+        for (Gene gene : genes) {
+            ProgramNode prog = CompiledProgram.compile(gene.buildProgram());
+            for (ProgramNode opponent : opponents) {
+                futures.add(pool.submit(() -> score(MatchRunner.run(prog, opponent, matchSeed, maxTicks))));
+            }
+        }
+        double[] scores = new double[genes.length];
+        for (int i = 0; i < futures.size(); i++) {
+            scores[i / opponents.size()] += futures.get(i).get();
+        }
+        for (int i = 0; i < genes.length; i++) {
+            scores[i] = scores[i] / opponents.size() - 0.1 * genes[i].size();
+        }
+        return scores;
+    }
+
+    /**
+     * Rewards surviving, ending with more fuel than the opponent, and winning.
+     */
+    private double score(MatchRunner.Result result) {
+        double score = result.isDead(1) ? result.getTicks() : maxTicks;
+        score += Math.max(0, result.getFuel(1)) - Math.max(0, result.getFuel(2));
+        if (result.getWinner() == 1) score += 100;
+        return score;
+    }
+
+    private Gene select(Gene[] genes, double[] scores) {
+        int best = rand.nextInt(genes.length);
+        for (int i = 1; i < TOURNAMENT; i++) {
+            int other = rand.nextInt(genes.length);
+            if (scores[other] > scores[best]) best = other;
+        }
+        return genes[best];
+    }
+
+    // ----------------------------------------------------------------
+    // Breeding
+
+    /**
+     * Replaces a random node with a new random subtree of the same category.
+     */
+    private Gene mutate(Gene parent) {
+        List<Gene> nodes = new ArrayList<>();
+        parent.collect(nodes);
+        Gene target = nodes.get(1 + rand.nextInt(nodes.size() - 1));
+        Gene child = parent.replace(target, random(target.category(), 2));
+        return (child.size() <= MAX_SIZE) ? child : parent;
+    }
+
+    /**
+     * Replaces a random node of one parent with a node of the same category
+     * from the other. Genes are immutable, so the subtree is shared rather
+     * than copied.
+     */
+    private Gene crossover(Gene mum, Gene dad) {
+        List<Gene> mumNodes = new ArrayList<>(), dadNodes = new ArrayList<>();
+        mum.collect(mumNodes);
+        dad.collect(dadNodes);
+        Gene target = mumNodes.get(1 + rand.nextInt(mumNodes.size() - 1));
+        dadNodes.removeIf(g -> g.category() != target.category());
+        if (dadNodes.isEmpty()) return mum;
+        Gene child = mum.replace(target, dadNodes.get(rand.nextInt(dadNodes.size())));
+        return (child.size() <= MAX_SIZE) ? child : mum;
+    }
+
+    // ----------------------------------------------------------------
+    // Random programs
+
+    /**
+     * A random program: a loop whose block is a few random statements.
+     */
+    Gene randomProgram() {
+        return new Gene(Kind.PROG, null, 0, new Gene(Kind.LOOP, null, 0, randomBlock(3)));
+    }
+
+    private Gene random(Category category, int depth) {
+        return switch (category) {
+        case STMT -> randomStmt(depth);
+        case BLOCK -> randomBlock(depth);
+        case COND -> randomCond(depth);
+        case EXPR -> randomExpr(depth);
+        case PROG -> randomProgram();
+        };
+    }
+
+    private Gene randomBlock(int depth) {
+        Gene[] stmts = new Gene[1 + rand.nextInt(3)];
+        for (int i = 0; i < stmts.length; i++) stmts[i] = randomStmt(depth - 1);
+        return new Gene(Kind.BLOCK, null, 0, stmts);
+    }
+
+    private Gene randomStmt(int depth) {
+        int choice = rand.nextInt(depth > 0 ? 10 : 7);
+        return switch (choice) {
+        case 0, 1, 2, 3 -> new Gene(Kind.ACT, pick(ACTIONS), 0);
+        case 4 -> new Gene(rand.nextBoolean() ? Kind.MOVE : Kind.WAIT, null, 0,
+                           rand.nextBoolean() ? new Gene[0] : new Gene[] { randomExpr(1) });
+        case 5 -> new Gene(Kind.MOVE, null, 0);
+        case 6 -> new Gene(Kind.ASSIGN, pick(VARIABLES), 0, randomExpr(1));
+        case 7, 8 -> rand.nextBoolean()
+            ? new Gene(Kind.IF, null, 0, randomCond(depth - 1), randomBlock(depth - 1))
+            : new Gene(Kind.IF, null, 0, randomCond(depth - 1), randomBlock(depth - 1), randomBlock(depth - 1));
+        default -> new Gene(Kind.WHILE, null, 0, randomCond(depth - 1), randomBlock(depth - 1));
+        };
+    }
+
+    private Gene randomCond(int depth) {
+        int choice = rand.nextInt(depth > 0 ? 10 : 6);
+        return switch (choice) {
+        case 0, 1, 2, 3, 4, 5 -> new Gene(Kind.RELOP, pick(RELOPS), 0, randomExpr(depth), randomExpr(depth));
+        case 6, 7, 8 -> new Gene(Kind.LOGIC, rand.nextBoolean() ? "and" : "or", 0,
+                                 randomCond(depth - 1), randomCond(depth - 1));
+        default -> new Gene(Kind.NOT, null, 0, randomCond(depth - 1));
+        };
+    }
+
+    private Gene randomExpr(int depth) {
+        int choice = rand.nextInt(depth > 0 ? 10 : 8);
+        return switch (choice) {
+        case 0, 1, 2 -> new Gene(Kind.NUM, null, rand.nextInt(16) - 4);
+        case 3, 4, 5 -> new Gene(Kind.SENS, pick(SENSORS), 0);
+        case 6 -> new Gene(Kind.BARREL, rand.nextBoolean() ? "barrelLR" : "barrelFB", 0);
+        case 7 -> new Gene(Kind.VAR, pick(VARIABLES), 0);
+        default -> new Gene(Kind.OP, pick(OPS), 0, randomExpr(depth - 1), randomExpr(depth - 1));
+        };
+    }
+
+    private String pick(String[] options) {
+        return options[rand.nextInt(options.length)];
+    }
+
+    // ----------------------------------------------------------------
+    // Genes
+
+    enum Category { PROG, BLOCK, STMT, COND, EXPR }
+
+    enum Kind {
+        PROG(Category.PROG), BLOCK(Category.BLOCK),
+        ACT(Category.STMT), MOVE(Category.STMT), WAIT(Category.STMT), LOOP(Category.STMT),
+        IF(Category.STMT), WHILE(Category.STMT), ASSIGN(Category.STMT),
+        RELOP(Category.COND), LOGIC(Category.COND), NOT(Category.COND),
+        NUM(Category.EXPR), SENS(Category.EXPR), BARREL(Category.EXPR), VAR(Category.EXPR), OP(Category.EXPR);
+
+        final Category category;
+
+        Kind(Category category) {
+            this.category = category;
+        }
+    }
+
+    /**
+     * One node of an evolving program. Each kind corresponds to a grammar
+     * rule and builds the matching node classes from Parser.java.
+     * Genes are immutable, so offspring share unchanged subtrees.
+     *
+     * An IF has alternating condition and block children, with a trailing
+     * else block when it has an odd number of children.
+     */
+    static final class Gene {
+        final Kind kind;
+        final String name;
+        final int value;
+        final Gene[] kids;
+        private final int size;
+
+        Gene(Kind kind, String name, int value, Gene... kids) {
+            this.kind = kind;
+            this.name = name;
+            this.value = value;
+            this.kids = kids;
+            int size = 1;
+            for (Gene kid : kids) size += kid.size;
+            this.size = size;
+        }
+
+        Category category() {
+            return kind.category;
+        }
+
+        int size() {
+            return size;
+        }
+
+        void collect(List<Gene> nodes) {
+            nodes.add(this);
+            for (Gene kid : kids) kid.collect(nodes);
+        }
+
+        /**
+         * @return a copy of this tree with every occurrence of target replaced
+         */
+        Gene replace(Gene target, Gene replacement) {
+            if (this == target) return replacement;
+            Gene[] newKids = null;
+            for (int i = 0; i < kids.length; i++) {
+                Gene kid = kids[i].replace(target, replacement);
+                if (kid != kids[i]) {
+                    if (newKids == null) newKids = kids.clone();
+                    newKids[i] = kid;
+                }
+            }
+            return (newKids == null) ? this : new Gene(kind, name, value, newKids);
+        }
+
+        ProgramNode buildProgram() {
+            return Parser.program(buildBlock());
+        }
+
+        private List<ProgramNode> buildBlock() {
+            List<ProgramNode> stmts = new ArrayList<>();
+            for (Gene kid : kids) stmts.add(kid.buildStmt());
+            return stmts;
+        }
+
+        private ProgramNode buildStmt() {
+            switch (kind) {
+            case ACT: return Parser.action(name);
+            case MOVE: return Parser.repeatedAction("move", kids.length == 0 ? Parser.number(1) : kids[0].buildExpr());
+            case WAIT: return Parser.repeatedAction("wait", kids.length == 0 ? Parser.number(1) : kids[0].buildExpr());
+            case LOOP: return Parser.loop(kids[0].buildBlock());
+            case WHILE: return Parser.whileLoop(kids[0].buildCond(), kids[1].buildBlock());
+            case ASSIGN: return Parser.assign(name, kids[0].buildExpr());
+            case IF:
+                List<BoolNode> guards = new ArrayList<>();
+                List<List<ProgramNode>> bodies = new ArrayList<>();
+                for (int i = 0; i + 1 < kids.length; i += 2) {
+                    guards.add(kids[i].buildCond());
+                    bodies.add(kids[i + 1].buildBlock());
+                }
+                List<ProgramNode> elseBlock = (kids.length % 2 == 1) ? kids[kids.length - 1].buildBlock() : new ArrayList<>();
+                return Parser.ifChain(guards, bodies, elseBlock);
+            default:
+                throw new IllegalStateException("not a statement: " + kind);
+            }
+        }
+
+        private BoolNode buildCond() {
+            switch (kind) {
+            case RELOP: return Parser.comparison(name, kids[0].buildExpr(), kids[1].buildExpr());
+            case LOGIC: return Parser.logic(name, kids[0].buildCond(), kids[1].buildCond());
+            case NOT: return Parser.not(kids[0].buildCond());
+            default:
+                throw new IllegalStateException("not a condition: " + kind);
+            }
+        }
+
+        private IntNode buildExpr() {
+            switch (kind) {
+            case NUM: return Parser.number(value);
+            case VAR: return Parser.variable(name);
+            case SENS: return Parser.sensor(name);
+            case BARREL: return Parser.barrel(name, (kids.length == 0) ? null : kids[0].buildExpr());
+            case OP: return Parser.operation(name, kids[0].buildExpr(), kids[1].buildExpr());
+            default:
+                throw new IllegalStateException("not an expression: " + kind);
+            }
+        }
+
+        /**
+         * Writes this gene in the .prog grammar accepted by Parser.
+         */
+        void write(Appendable out, String indent) throws IOException {
+            switch (kind) {
+            case PROG:
+                for (Gene kid : kids) kid.write(out, indent);
+                break;
+            case BLOCK:
+                out.append("{\n");
+                for (Gene kid : kids) kid.write(out, indent + "    ");
+                out.append(indent).append("}");
+                break;
+            case ACT:
+                out.append(indent).append(name).append(";\n");
+                break;
+            case MOVE: case WAIT:
+                out.append(indent).append(kind == Kind.MOVE ? "move" : "wait");
+                if (kids.length > 0) {
+                    out.append("(");
+                    kids[0].write(out, indent);
+                    out.append(")");
+                }
+                out.append(";\n");
+                break;
+            case ASSIGN:
+                out.append(indent).append(name).append(" = ");
+                kids[0].write(out, indent);
+                out.append(";\n");
+                break;
+            case LOOP:
+                out.append(indent).append("loop ");
+                kids[0].write(out, indent);
+                out.append("\n");
+                break;
+            case WHILE:
+                out.append(indent).append("while (");
+                kids[0].write(out, indent);
+                out.append(") ");
+                kids[1].write(out, indent);
+                out.append("\n");
+                break;
+            case IF:
+                out.append(indent).append("if (");
+                kids[0].write(out, indent);
+                out.append(") ");
+                kids[1].write(out, indent);
+                for (int i = 2; i + 1 < kids.length; i += 2) {
+                    out.append(" elif (");
+                    kids[i].write(out, indent);
+                    out.append(") ");
+                    kids[i + 1].write(out, indent);
+                }
+                if (kids.length % 2 == 1) {
+                    out.append(" else ");
+                    kids[kids.length - 1].write(out, indent);
+                }
+                out.append("\n");
+                break;
+            case NUM:
+                out.append(Integer.toString(value));
+                break;
+            case SENS: case VAR:
+                out.append(name);
+                break;
+            case BARREL:
+                out.append(name);
+                if (kids.length > 0) {
+                    out.append("(");
+                    kids[0].write(out, indent);
+                    out.append(")");
+                }
+                break;
+            case RELOP: case LOGIC: case OP:
+                out.append(name).append("(");
+                kids[0].write(out, indent);
+                out.append(", ");
+                kids[1].write(out, indent);
+                out.append(")");
+                break;
+            case NOT:
+                out.append("not(");
+                kids[0].write(out, indent);
+                out.append(")");
+                break;
+            }
+        }
+    }
+}
@@ -57,20 +57,11 @@ public class ExecuteTester{
         TesterRobot robot = new TesterRobot();
         try {ast.execute(robot);}
         catch(RobotInterruptedException e){}
-        compare(((TesterRobot)robot).getOutput(), expected, program);
+        compare(robot.getOutput(), expected, program);
     }
         
     static void compare (List<String> actual, String expected, String program){
-        String[] expectedArray = expected.split(" ");
-        boolean match = actual.size()==expectedArray.length;
-        if (match){
-            for (int i=0; i<actual.size(); i++){
-                if (!actual.get(i).equals(expectedArray[i])){
-                    match = false; break;
-                }
-            }
-        }
-        if (match){
+        if (matches(actual, expected)){
             System.out.println("&& OK on program: "+ program);
         }
         else {
@@ -83,7 +74,19 @@ public class ExecuteTester{
         }
     }
 
-    private static final String[][][] programs = new String[][][]{
+    /**
+     * Whether the actions a program made the robot do are the expected ones
+     */
+    static boolean matches(List<String> actual, String expected){
+        String[] expectedArray = expected.split(" ");
+        if (actual.size()!=expectedArray.length){ return false; }
+        for (int i=0; i<actual.size(); i++){
+            if (!actual.get(i).equals(expectedArray[i])){ return false; }
+        }
+        return true;
+    }
+
+    static final String[][][] programs = new String[][][]{
         {//STAGE 0
             {"move; move; move;", "move move move"},
             {"turnL;", "turnL"},
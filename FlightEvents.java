@@ -0,0 +1,208 @@
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Enabled;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * The events the game records with Java Flight Recorder, so that a batch of
+ * matches can be profiled while it runs, and stalls in the simulation lined
+ * up with garbage collection and safepoints in the same recording. Start one
+ * with -XX:StartFlightRecording, or jcmd against a running process.
+ *
+ * The first event made starts up the recorder, which takes a good fraction
+ * of a second, so the methods here make none until a recording has been
+ * started; until then they cost a single check.
+ */
+final class FlightEvents {
+
+    private FlightEvents() {
+    }
+
+    private static boolean recording() {
+        return FlightRecorder.isInitialized();
+    }
+
+    /**
+     * @return a started tick event, or null if nothing is being recorded
+     */
+    static Tick startTick() {
+        if (!recording()) return null;
+        Tick event = new Tick();
+        event.begin();
+        return event;
+    }
+
+    static void endTick(Tick event, World world) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.world = world.getId();
+            event.seed = world.getSeed();
+            event.tick = world.getTick();
+            event.commit();
+        }
+    }
+
+    static void action(int world, String robot, String action, int repeats) {
+        if (!recording()) return;
+        Action event = new Action();
+        if (event.shouldCommit()) {
+            event.world = world;
+            event.robot = robot;
+            event.action = action;
+            event.repeats = repeats;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return a started handoff event, or null if nothing is being recorded
+     */
+    static Handoff startHandoff() {
+        if (!recording()) return null;
+        Handoff event = new Handoff();
+        event.begin();
+        return event;
+    }
+
+    static void endHandoff(Handoff event, int world, String robot, String reason) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.world = world;
+            event.robot = robot;
+            event.reason = reason;
+            event.commit();
+        }
+    }
+
+    /**
+     * @return a started parse event, or null if nothing is being recorded
+     */
+    static Parse startParse() {
+        if (!recording()) return null;
+        Parse event = new Parse();
+        event.begin();
+        return event;
+    }
+
+    static void endParse(Parse event, String source, boolean succeeded) {
+        if (event == null) return;
+        event.end();
+        if (event.shouldCommit()) {
+            event.source = source;
+            event.succeeded = succeeded;
+            event.commit();
+        }
+    }
+
+    /**
+     * Ends the given loop pass, if there is one, and starts the next, if
+     * loop passes are being recorded.
+     * 
+     * @return the pass started, or null
+     */
+    static LoopPass nextLoopPass(LoopPass pass, int world, String robot) {
+        if (pass != null) {
+            pass.end();
+            if (pass.shouldCommit()) {
+                pass.world = world;
+                pass.robot = robot;
+                pass.commit();
+            }
+        }
+        if (!recording() || !LoopPassType.TYPE.isEnabled()) return null;
+        LoopPass next = new LoopPass();
+        next.begin();
+        return next;
+    }
+
+    // only looked up once loop passes might be recorded
+    private static class LoopPassType {
+        static final EventType TYPE = EventType.getEventType(LoopPass.class);
+    }
+
+    @Name("robogame.Tick")
+    @Label("World Tick")
+    @Category("RoboGame")
+    @Description("One update of a world: committing the last actions, waiting for the robots' next ones and resolving them")
+    @StackTrace(false)
+    static class Tick extends Event {
+        @Label("World")
+        int world;
+
+        @Label("Seed")
+        long seed;
+
+        @Label("Tick")
+        int tick;
+    }
+
+    @Name("robogame.Action")
+    @Label("Robot Action")
+    @Category("RoboGame")
+    @Description("An action the world has resolved for a robot")
+    @StackTrace(false)
+    static class Action extends Event {
+        @Label("World")
+        int world;
+
+        @Label("Robot")
+        String robot;
+
+        @Label("Action")
+        String action;
+
+        @Label("Repeats Left")
+        @Description("How many more times the world will do it before the robot's next action")
+        int repeats;
+    }
+
+    @Name("robogame.Handoff")
+    @Label("Robot Waiting On World")
+    @Category("RoboGame")
+    @Description("A robot program blocked until the world caught up with it")
+    @StackTrace(false)
+    static class Handoff extends Event {
+        @Label("World")
+        int world;
+
+        @Label("Robot")
+        String robot;
+
+        @Label("Reason")
+        @Description("sensor, when reading a sensor, or queue full, when choosing an action")
+        String reason;
+    }
+
+    @Name("robogame.Parse")
+    @Label("Program Parse")
+    @Category("RoboGame")
+    @Description("Parsing a robot program")
+    static class Parse extends Event {
+        @Label("Source")
+        String source;
+
+        @Label("Succeeded")
+        boolean succeeded;
+    }
+
+    @Name("robogame.LoopPass")
+    @Label("Loop Pass")
+    @Category("RoboGame")
+    @Description("The time between two loop back-edges in a robot program, including any waiting on the world")
+    @Enabled(false)
+    @StackTrace(false)
+    static class LoopPass extends Event {
+        @Label("World")
+        int world;
+
+        @Label("Robot")
+        String robot;
+    }
+}
@@ -0,0 +1,442 @@
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.AttributeSet;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.Document;
+import javax.swing.text.DocumentFilter;
+import javax.swing.text.Position;
+
+/**
+ * Keeps the parse of a program that is being edited in a Document up to
+ * date, without parsing all of it again after every change.
+ *
+ * The blocks of the last parse are kept in a tree, each with the statements
+ * the parser made for it and Positions for its braces, which the document
+ * moves along as text is added and removed around them. Each change marks
+ * the innermost block it falls in, and reparse() parses only those blocks
+ * again, handing the parser the statements of any blocks inside them that
+ * were not touched rather than letting it read them, and then rebuilds just
+ * the statements around each block on its way up to the whole program.
+ * If a block no longer parses on its own because its braces no longer
+ * match, the block around it is parsed instead.
+ *
+ * Everything happens on the thread that edits the document.
+ */
+final class IncrementalParser {
+
+    /** A BLOCK of the program, or the whole program for the root */
+    private static final class Block {
+        // the braces; null for the root, which runs from the start to the end
+        Position open, close;
+        List<ProgramNode> statements;
+        List<Block> children = new ArrayList<>();
+        Block parent;
+        // the statement the block belongs to, and which of its blocks it is
+        ProgramNode owner;
+        int slot;
+        // dirty: its own text has changed; stale: it or a block inside it is dirty;
+        // dead: a change reached one of its braces, or it has been parsed again,
+        // so it is no longer part of the tree
+        boolean dirty, stale, dead;
+    }
+
+    // stands in for the old block of a block that was not there before
+    private static final Block NEW = new Block();
+
+    private final Document doc;
+    private Block root;
+    private ProgramNode program;
+    private final Set<Block> dirty = new LinkedHashSet<>();
+    private ParserFailureException error;
+    private int lastParsed;
+
+    IncrementalParser(AbstractDocument doc) {
+        this.doc = doc;
+        doc.setDocumentFilter(new DocumentFilter() {
+                public void insertString(FilterBypass fb, int offset, String text, AttributeSet attr) throws BadLocationException {
+                    changing(offset, 0);
+                    super.insertString(fb, offset, text, attr);
+                }
+
+                public void remove(FilterBypass fb, int offset, int length) throws BadLocationException {
+                    changing(offset, length);
+                    super.remove(fb, offset, length);
+                }
+
+                public void replace(FilterBypass fb, int offset, int length, String text, AttributeSet attr) throws BadLocationException {
+                    changing(offset, length);
+                    super.replace(fb, offset, length, text, attr);
+                }
+            });
+    }
+
+    /**
+     * @return the program in the document as it was when reparse() was last
+     *         called, or null if it did not parse
+     */
+    ProgramNode getProgram() {
+        return error == null ? program : null;
+    }
+
+    /**
+     * @return why the document did not parse when reparse() was last
+     *         called, or null if it did
+     */
+    ParserFailureException getError() {
+        return error;
+    }
+
+    /**
+     * @return how many characters the last call to reparse() gave the
+     *         parser, which is the whole program only when it had to be
+     */
+    int getLastParsed() {
+        return lastParsed;
+    }
+
+    /**
+     * Called before the text from offset to offset+length is replaced,
+     * while the blocks still match the text they were parsed from.
+     */
+    private void changing(int offset, int length) {
+        if (root == null) return;
+        Block block = root;
+        for (Block inner = childAround(block, offset, length); inner != null; inner = childAround(block, offset, length)) {
+            block = inner;
+        }
+        // blocks the change reaches into, but is not inside, lose their braces
+        int end = offset + length;
+        for (int i = firstEndingAfter(block.children, offset); i < block.children.size(); i++) {
+            Block child = block.children.get(i);
+            if (child.open.getOffset() >= end) break;
+            child.dead = true;
+        }
+        block.dirty = true;
+        dirty.add(block);
+        for (Block b = block; b != null && !b.stale; b = b.parent) {
+            b.stale = true;
+        }
+    }
+
+    /** @return the child of the block whose braces the text from offset to offset+length lies between */
+    private static Block childAround(Block block, int offset, int length) {
+        int i = firstEndingAfter(block.children, offset);
+        if (i == block.children.size()) return null;
+        Block child = block.children.get(i);
+        if (!child.dead && child.open.getOffset() < offset && offset + length <= child.close.getOffset()) return child;
+        return null;
+    }
+
+    /** @return the index of the first block whose } is at or after the offset */
+    private static int firstEndingAfter(List<Block> blocks, int offset) {
+        int low = 0, high = blocks.size();
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (blocks.get(mid).close.getOffset() < offset) low = mid + 1;
+            else high = mid;
+        }
+        return low;
+    }
+
+    /**
+     * Brings the parse up to date with the document.
+     */
+    void reparse() {
+        lastParsed = 0;
+        if (root == null) {
+            parseAll();
+            return;
+        }
+        List<Block> pending = new ArrayList<>(dirty);
+        dirty.clear();
+        error = null;
+        for (Block block : pending) {
+            if (block.dead || !block.dirty || coveredByAnother(block)) continue;
+            if (error != null) {
+                // leave the rest for next time; the program is wrong either way
+                dirty.add(block);
+                continue;
+            }
+            reparse(block);
+        }
+        if (error == null && !pending.isEmpty()) program = Parser.program(root.statements);
+    }
+
+    /** @return whether a block around this one is also due to be parsed, or already has been */
+    private static boolean coveredByAnother(Block block) {
+        for (Block b = block.parent; b != null; b = b.parent) {
+            if (b.dirty || b.dead) return true;
+        }
+        return false;
+    }
+
+    private void reparse(Block block) {
+        while (block != root) {
+            int start = block.open.getOffset(), end = block.close.getOffset() + 1;
+            Tokens tokens = new Tokens(start, end, block.parent);
+            try {
+                tokens.parser.parseBlock(tokens);
+                Block parsed = tokens.result();
+                if (parsed != null && !tokens.hasNext() && parsed.close.getOffset() == end - 1) {
+                    tokens.finish();
+                    replace(block, parsed);
+                    return;
+                }
+            } catch (ParserFailureException e) {
+                if (balanced(start, end)) {
+                    error = e;
+                    dirty.add(block);
+                    return;
+                }
+            }
+            // the braces have changed, so the block around it has to be parsed
+            block.dirty = false;
+            block = block.parent;
+            block.dirty = true;
+        }
+        parseAll();
+    }
+
+    /**
+     * Parses the whole document, still reusing whatever blocks are unchanged.
+     */
+    private void parseAll() {
+        error = null;
+        dirty.clear();
+        Tokens tokens = new Tokens(0, doc.getLength(), root);
+        try {
+            ProgramNode prog = tokens.parser.parse(tokens);
+            Block all = tokens.holder;
+            all.statements = Parser.blocks(prog).get(0);
+            tokens.finish();
+            claim(all);
+            root = all;
+            program = prog;
+        } catch (ParserFailureException e) {
+            error = e;
+            if (root != null) {
+                root.dirty = true;
+                dirty.add(root);
+            }
+        }
+    }
+
+    /**
+     * Puts a block parsed again in place of the old one, and gives each
+     * statement around it, up to the whole program, the new block in place
+     * of the old.
+     */
+    private void replace(Block old, Block parsed) {
+        // anything still due to be parsed inside the old block was parsed with it
+        old.dead = true;
+        Block parent = old.parent;
+        parsed.parent = parent;
+        parsed.owner = old.owner;
+        parsed.slot = old.slot;
+        List<Block> siblings = parent.children;
+        siblings.set(indexOf(siblings, old), parsed);
+        Block block = parsed;
+        while (block.parent != null) {
+            Block up = block.parent;
+            ProgramNode before = block.owner;
+            List<List<ProgramNode>> blocks = new ArrayList<>(Parser.blocks(before));
+            blocks.set(block.slot, block.statements);
+            ProgramNode after = Parser.withBlocks(before, blocks);
+            List<ProgramNode> statements = new ArrayList<>(up.statements);
+            statements.set(indexOf(statements, before), after);
+            up.statements = statements;
+            for (Block child : up.children) {
+                if (child.owner == before) child.owner = after;
+            }
+            block = up;
+        }
+        for (Block b = parent; b != null; b = b.parent) {
+            b.stale = anyStale(b.children) || b.dirty;
+        }
+    }
+
+    private static boolean anyStale(List<Block> blocks) {
+        for (Block b : blocks) {
+            if (b.stale) return true;
+        }
+        return false;
+    }
+
+    private static <T> int indexOf(List<T> list, T item) {
+        for (int i = 0; i < list.size(); i++) {
+            if (list.get(i) == item) return i;
+        }
+        throw new IllegalStateException("not in the parse any more");
+    }
+
+    /**
+     * Works out which statement of a block each of its child blocks belongs
+     * to. The child blocks are in the order they are written, which is the
+     * order the statements give their blocks in.
+     */
+    private static void claim(Block block) {
+        int next = 0;
+        for (ProgramNode statement : block.statements) {
+            int count = Parser.blocks(statement).size();
+            for (int slot = 0; slot < count; slot++) {
+                Block child = block.children.get(next++);
+                child.parent = block;
+                child.owner = statement;
+                child.slot = slot;
+            }
+        }
+        if (next != block.children.size()) throw new IllegalStateException("blocks do not match the statements");
+    }
+
+    /** @return whether the braces between start and end match */
+    private boolean balanced(int start, int end) {
+        String text;
+        try {
+            text = doc.getText(start, end - start);
+        } catch (BadLocationException e) {
+            return false;
+        }
+        int depth = 0;
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            if (c == '{') depth++;
+            else if (c == '}' && --depth < 0) return false;
+        }
+        return depth == 0;
+    }
+
+    /**
+     * The tokens of part of the document, which builds the new tree of blocks
+     * as the parser goes, matching each block it opens against the blocks of
+     * the old tree so that those that have not changed can be reused.
+     */
+    private final class Tokens implements TokenStream {
+        final Parser parser = new Parser();
+        // collects the outermost blocks parsed
+        final Block holder = new Block();
+        // the blocks being parsed, innermost first, and the old block each is parsed again from (or NEW)
+        private final Deque<Block> building = new ArrayDeque<>();
+        private final Deque<Block> olds = new ArrayDeque<>();
+        // the blocks parsed, inner ones first
+        private final List<Block> parsed = new ArrayList<>();
+        private final byte[] text;
+        private final int start;
+        private ProgramLexer lexer;
+        private int skipped;
+        private long lastClose;
+
+        Tokens(int start, int end, Block old) {
+            this.start = start;
+            try {
+                // one byte a character, so offsets stay the same; anything not ASCII is rejected anyway
+                text = doc.getText(start, end - start).getBytes(StandardCharsets.ISO_8859_1);
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+            lastParsed += text.length;
+            lexer = lexer(0);
+            building.push(holder);
+            olds.push(old == null ? NEW : old);
+        }
+
+        private ProgramLexer lexer(int from) {
+            skipped = from;
+            return new ProgramLexer(ByteBuffer.wrap(text, from, text.length - from));
+        }
+
+        /** @return the one block parsed, if one was */
+        Block result() {
+            return holder.children.size() == 1 ? holder.children.get(0) : null;
+        }
+
+        public boolean hasNext() {
+            return lexer.hasNext();
+        }
+
+        public String peek() {
+            return lexer.peek();
+        }
+
+        public String next() {
+            long position = position();
+            String token = lexer.next();
+            if ("{".equals(token)) {
+                Block block = new Block();
+                block.open = mark(position);
+                building.push(block);
+                Block old = matching(position);
+                olds.push(old == null ? NEW : old);
+            } else if ("}".equals(token)) {
+                lastClose = position;
+            }
+            return token;
+        }
+
+        public long position() {
+            return start + skipped + lexer.position();
+        }
+
+        public int line() {
+            return doc.getDefaultRootElement().getElementIndex((int) position()) + 1;
+        }
+
+        public List<ProgramNode> reuseBlock() {
+            if (!"{".equals(peek())) return null;
+            Block old = matching(position());
+            if (old == null || old.stale) return null;
+            int after = old.close.getOffset() + 1;
+            lastParsed -= after - (int) position();
+            lexer = lexer(after - start);
+            building.peek().children.add(old);
+            return old.statements;
+        }
+
+        public void blockParsed(List<ProgramNode> statements) {
+            Block block = building.pop();
+            olds.pop();
+            block.close = mark(lastClose);
+            block.statements = statements;
+            building.peek().children.add(block);
+            parsed.add(block);
+        }
+
+        /**
+         * Links up the blocks parsed, once the parse has succeeded. Until
+         * then the old tree, and the blocks reused from it, are left alone
+         * in case it fails.
+         */
+        void finish() {
+            for (Block block : parsed) {
+                claim(block);
+            }
+        }
+
+        /** @return the block of the old tree whose { was at this offset, if it is still there */
+        private Block matching(long position) {
+            List<Block> children = olds.peek().children;
+            for (int i = firstEndingAfter(children, (int) position); i < children.size(); i++) {
+                Block child = children.get(i);
+                int open = child.open.getOffset();
+                if (open > position) break;
+                if (open == position && !child.dead) return child;
+            }
+            return null;
+        }
+
+        private Position mark(long position) {
+            try {
+                return doc.createPosition((int) position);
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            }
+        }
+    }
+}
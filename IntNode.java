@@ -0,0 +1,16 @@
+/**
+ * Interface for SENS nodes
+ * evaluate returns an int
+ */
+interface IntNode {
+    public int evaluate(Robot r);
+
+    /**
+     * The number of nodes in this expression, which is what evaluating it
+     * counts against the robot's instruction budget.
+     */
+    public default int size() { return 1; }
+
+    /** See BoolNode.accept() */
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg);
+}
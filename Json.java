@@ -0,0 +1,28 @@
+/**
+ * Just enough JSON for the command-line tools' one-object-per-line output.
+ */
+final class Json {
+
+    private Json() {}
+
+    /**
+     * @return s as a quoted JSON string, or null if s is null
+     */
+    static String quote(String s) {
+        if (s == null) return "null";
+        StringBuilder sb = new StringBuilder("\"");
+        for (char c : s.toCharArray()) {
+            switch (c) {
+            case '"' -> sb.append("\\\"");
+            case '\\' -> sb.append("\\\\");
+            case '\n' -> sb.append("\\n");
+            case '\t' -> sb.append("\\t");
+            default -> {
+                if (c < 0x20) sb.append(String.format("\\u%04x", (int) c));
+                else sb.append(c);
+            }
+            }
+        }
+        return sb.append('"').toString();
+    }
+}
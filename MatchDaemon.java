@@ -0,0 +1,279 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+
+/**
+ * Keeps a warmed-up match engine running and plays matches sent to it over a
+ * socket on the loopback interface, so repeated runs from scripts cost a round
+ * trip rather than a JVM start.
+ *
+ * The protocol is line based, in ASCII. A request is
+ *   MATCH seed ticks redLength blueLength [spawns]
+ * followed by exactly redLength bytes of red's program source and blueLength
+ * bytes of blue's; a length of 0 means the robot's built-in behaviour.
+ * Lines are at most 4096 bytes and programs at most a megabyte; a request
+ * that breaks either limit gets an error and the connection is closed.
+ * ticks is from 1 to MAX_TICKS. spawns names the SpawnStrategy to place the
+ * fuel with, and is uniform if left out. It is one of the built-in strategies
+ * or, if the daemon was started with -b, a schedule file in that directory;
+ * no other file is ever opened for a client. The reply is one line, either
+ *   RESULT ticks redFuel blueFuel winner micros
+ * with winner 0 for a draw, 1 for red and 2 for blue, or
+ *   ERROR message
+ * PING is answered with PONG. A connection can send any number of requests
+ * without waiting for replies; the matches are played on a shared pool of
+ * workers and the replies come back in the order the requests were sent.
+ * Programs are loaded through ProgramCache, which keeps the ones used most
+ * recently, but no .progc files are saved for them.
+ *
+ * Usage: java MatchDaemon [-p port] [-j workers] [-w warmupMatches] [-b spawnDir]
+ * RoboMatch -c port sends its matches to a running daemon.
+ */
+public class MatchDaemon {
+
+    static final int DEFAULT_PORT = 7261;
+    // the longest program source accepted; the largest hand-written ones are a few kilobytes
+    private static final int MAX_SOURCE = 1 << 20;
+    // the longest request or reply line
+    static final int MAX_LINE = 4096;
+    private static final int WARMUP_TICKS = 300;
+    // the longest match played, a hundred times the usual length
+    static final int MAX_TICKS = 100_000;
+    // the number of spawn strategies kept, most recently used first
+    private static final int STRATEGIES = 16;
+
+    private final ExecutorService workers;
+    private final Path spawnDir;
+    private final Map<String, SpawnStrategy> spawnStrategies = Collections.synchronizedMap(
+        new LinkedHashMap<>(STRATEGIES, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, SpawnStrategy> eldest) {
+                return size() > STRATEGIES;
+            }
+        });
+
+    /**
+     * @param spawnDir the directory that clients may name schedule files
+     *                 in, or null to allow only the built-in strategies
+     */
+    public MatchDaemon(int workerCount, Path spawnDir) {
+        this.workers = Executors.newFixedThreadPool(workerCount);
+        this.spawnDir = spawnDir;
+    }
+
+    public static void main(String[] args) throws IOException {
+        System.setProperty("java.awt.headless", "true");
+        int port = DEFAULT_PORT, threads = Runtime.getRuntime().availableProcessors(), warmup = 20;
+        Path spawnDir = null;
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            switch (args[i]) {
+            case "-p" -> port = Integer.parseInt(args[i + 1]);
+            case "-j" -> threads = Integer.parseInt(args[i + 1]);
+            case "-w" -> warmup = Integer.parseInt(args[i + 1]);
+            case "-b" -> spawnDir = Paths.get(args[i + 1]);
+            default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+        Robot.debugDisplay = false;
+        MatchDaemon daemon = new MatchDaemon(Math.max(1, threads), spawnDir);
+        daemon.warmUp(warmup);
+        daemon.serve(port);
+    }
+
+    /**
+     * Plays matches between the default robots so that the interpreter and
+     * world are compiled before the first request arrives.
+     */
+    public void warmUp(int matches) {
+        for (int i = 0; i < matches; i++) {
+            MatchRunner.run(null, null, i, WARMUP_TICKS);
+        }
+    }
+
+    /**
+     * Accepts connections on the loopback interface until the process is
+     * killed, handling each one on its own thread.
+     */
+    public void serve(int port) throws IOException {
+        try (ServerSocket server = new ServerSocket(port, 50, InetAddress.getLoopbackAddress())) {
+            System.err.println("MatchDaemon listening on " + server.getLocalSocketAddress());
+            while (true) {
+                Socket socket = server.accept();
+                Thread t = new Thread(() -> handle(socket), "match-connection");
+                t.setDaemon(true);
+                t.start();
+            }
+        } finally {
+            workers.shutdown();
+        }
+    }
+
+    /**
+     * Reads requests from one connection, handing the matches to the workers,
+     * while a second thread writes the replies back in order.
+     */
+    void handle(Socket socket) {
+        BlockingQueue<Future<String>> replies = new LinkedBlockingQueue<>();
+        Future<String> end = CompletableFuture.completedFuture(null);
+        try (socket) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            Thread writer = new Thread(() -> writeReplies(replies, end, out), "match-replies");
+            writer.setDaemon(true);
+            writer.start();
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            try {
+                String line;
+                while ((line = readLine(in)) != null) {
+                    if (!line.isBlank()) replies.add(request(line.trim(), in));
+                }
+            } catch (IOException e) {
+                replies.add(CompletableFuture.completedFuture("ERROR " + e.getMessage()));
+            }
+            replies.add(end);
+            writer.join();
+        } catch (IOException e) {
+            // the client went away
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private void writeReplies(BlockingQueue<Future<String>> replies, Future<String> end, OutputStream out) {
+        try {
+            while (true) {
+                Future<String> reply = replies.take();
+                if (reply == end) break;
+                String line;
+                try {
+                    line = reply.get();
+                } catch (ExecutionException e) {
+                    line = "ERROR " + e.getCause();
+                }
+                line = line.replace('\n', ' ');
+                if (line.length() >= MAX_LINE) line = line.substring(0, MAX_LINE - 1);
+                out.write((line + "\n").getBytes(StandardCharsets.US_ASCII));
+                if (replies.isEmpty()) out.flush();
+            }
+            out.flush();
+        } catch (IOException | InterruptedException e) {
+            // the client went away; the reader will see it too
+        }
+    }
+
+    /**
+     * Reads the rest of one request, returning its reply (which may still be
+     * being worked out).
+     */
+    private Future<String> request(String line, InputStream in) throws IOException {
+        String[] fields = line.split("\\s+");
+        if (fields[0].equals("PING")) {
+            return CompletableFuture.completedFuture("PONG");
+        }
+        if (!fields[0].equals("MATCH") || fields.length < 5 || fields.length > 6) {
+            throw new IOException("expected MATCH seed ticks redLength blueLength [spawns], got: " + line);
+        }
+        String spawns = (fields.length == 6) ? fields[5] : "uniform";
+        long seed;
+        int ticks, redLength, blueLength;
+        try {
+            seed = Long.parseLong(fields[1]);
+            ticks = Integer.parseInt(fields[2]);
+            redLength = Integer.parseInt(fields[3]);
+            blueLength = Integer.parseInt(fields[4]);
+        } catch (NumberFormatException e) {
+            throw new IOException("bad number in: " + line);
+        }
+        if (redLength < 0 || blueLength < 0 || redLength > MAX_SOURCE || blueLength > MAX_SOURCE) {
+            throw new IOException("program length out of range in: " + line);
+        }
+        if (ticks < 1 || ticks > MAX_TICKS) {
+            throw new IOException("ticks out of range in: " + line);
+        }
+        byte[] red = readSource(in, redLength), blue = readSource(in, blueLength);
+        return workers.submit(() -> play(red, blue, seed, ticks, spawns));
+    }
+
+    /**
+     * Reads a program's source, making room for it as it arrives rather than
+     * all at once, so a request that claims more than it sends costs little.
+     */
+    private static byte[] readSource(InputStream in, int length) throws IOException {
+        byte[] source = in.readNBytes(length);
+        if (source.length < length) throw new EOFException("connection closed mid-program");
+        return source;
+    }
+
+    private String play(byte[] red, byte[] blue, long seed, int ticks, String spawns) {
+        SpawnStrategy strategy = spawnStrategies.get(spawns);
+        if (strategy == null) {
+            try {
+                strategy = SpawnStrategy.named(spawns, spawnDir);
+            } catch (IOException e) {
+                return "ERROR spawns: " + e;
+            }
+            spawnStrategies.put(spawns, strategy);
+        }
+        ProgramNode redProgram, blueProgram;
+        try {
+            redProgram = program(red);
+        } catch (ParserFailureException e) {
+            return "ERROR red: " + e.getMessage();
+        }
+        try {
+            blueProgram = program(blue);
+        } catch (ParserFailureException e) {
+            return "ERROR blue: " + e.getMessage();
+        }
+        long start = System.nanoTime();
+        MatchRunner.Result r = MatchRunner.run(redProgram, blueProgram, seed, ticks, strategy);
+        return String.format("RESULT %d %d %d %d %d", r.getTicks(), r.getFuel(1), r.getFuel(2), r.getWinner(),
+                             (System.nanoTime() - start) / 1000);
+    }
+
+    private static ProgramNode program(byte[] source) {
+        if (source.length == 0) return null;
+        // any client can send programs, so they are not saved
+        ProgramNode prog = ProgramCache.load(ByteBuffer.wrap(source), null, false);
+        return (prog == null) ? null : CompiledProgram.compile(prog);
+    }
+
+    /**
+     * Reads one line of ASCII, without its line end, or returns null at the
+     * end of the stream.
+     * 
+     * @throws IOException if the line is longer than MAX_LINE
+     */
+    static String readLine(InputStream in) throws IOException {
+        ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = in.read()) != '\n') {
+            if (b < 0) {
+                if (line.size() == 0) return null;
+                throw new EOFException("connection closed mid-line");
+            }
+            if (line.size() >= MAX_LINE) throw new IOException("line longer than " + MAX_LINE + " bytes");
+            if (b != '\r') line.write(b);
+        }
+        return line.toString(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,87 @@
+/**
+ * Plays a match between two programs without the GUI.
+ * The robots' programs are run a step at a time on the calling thread (see
+ * World.startStepped()), and the world is updated as soon as both have
+ * chosen their actions, rather than on the GUI's timer. No thread is made
+ * or blocked, so matches can be spread over a pool with one thread per
+ * core. The match ends as soon as a robot runs out of fuel or the tick
+ * limit is reached.
+ */
+public class MatchRunner {
+
+    /**
+     * The outcome of one match.
+     */
+    public static class Result {
+        private final long seed;
+        private final int ticks, fuel1, fuel2;
+
+        public Result(long seed, int ticks, int fuel1, int fuel2) {
+            this.seed = seed;
+            this.ticks = ticks;
+            this.fuel1 = fuel1;
+            this.fuel2 = fuel2;
+        }
+
+        public long getSeed() { return seed; }
+        public int getTicks() { return ticks; }
+
+        /**
+         * @param id 1 for the red robot, 2 for the blue robot
+         */
+        public int getFuel(int id) {
+            return (id == 1) ? fuel1 : fuel2;
+        }
+
+        public boolean isDead(int id) {
+            return getFuel(id) <= 0;
+        }
+
+        /**
+         * @return 1 or 2 for the robot that outlasted or ended with more fuel
+         *         than the other, 0 for a draw
+         */
+        public int getWinner() {
+            if (fuel1 == fuel2 || (isDead(1) && isDead(2)))
+                return 0;
+            return (fuel1 > fuel2) ? 1 : 2;
+        }
+
+        public String toString() {
+            return String.format("seed %d: %d ticks, red fuel %d, blue fuel %d, winner %d",
+                                 seed, ticks, fuel1, fuel2, getWinner());
+        }
+    }
+
+    /**
+     * Plays prog1 (red) against prog2 (blue). A null program gets the robot's
+     * default behaviour. The programs may be shared between concurrent
+     * matches, as all interpreter state is kept on the robots.
+     */
+    public static Result run(ProgramNode prog1, ProgramNode prog2, long seed, int maxTicks) {
+        return run(prog1, prog2, seed, maxTicks, SpawnStrategy.UNIFORM);
+    }
+
+    /**
+     * Plays a match with fuel placed by the given strategy.
+     */
+    public static Result run(ProgramNode prog1, ProgramNode prog2, long seed, int maxTicks, SpawnStrategy spawns) {
+        World world = new World(seed, spawns);
+        if (prog1 != null) world.getRobot(1).setProgram(prog1);
+        if (prog2 != null) world.getRobot(2).setProgram(prog2);
+        boolean[] over = new boolean[1];
+        world.addListener(new WorldListener() {
+                public void robotDied(World w, int robot) { over[0] = true; }
+            });
+        world.startStepped();
+        try {
+            while (world.getTick() < maxTicks && !over[0]) {
+                world.updateWorld();
+            }
+        } finally {
+            world.reset();
+        }
+        WorldSnapshot frame = world.getFrame();
+        return new Result(seed, world.getTick(), frame.getRobot(1).getFuel(), frame.getRobot(2).getFuel());
+    }
+}
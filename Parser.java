@@ -1,16 +1,22 @@
-import java.lang.reflect.Array;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
 import java.util.*;
 import java.util.regex.*;
 
-import javax.lang.model.element.VariableElement;
-import javax.naming.InterruptedNamingException;
-
 /**
  * See assignment handout for the grammar.
  * You need to implement the parse(..) method and all the rest of the parser.
  * There are several methods provided for you:
  * - several utility methods to help with the parsing
  * See also the TestParser class for testing your code.
+ *
+ * The parser reads one token at a time from a TokenStream and keeps the
+ * rules it is part way through on an explicit stack of frames rather than on
+ * the Java call stack, so programs nested thousands of levels deep parse in
+ * any thread, and programs read from a channel are never buffered whole.
  */
 public class Parser {
 
@@ -21,12 +27,14 @@ public class Parser {
     static final Pattern OPENBRACE = Pattern.compile("\\{");
     static final Pattern CLOSEBRACE = Pattern.compile("\\}");
     static final Pattern VAIRABLE = Pattern.compile("\\$[A-Za-z][A-Za-z0-9]*");
+    // What Scanner.hasNextInt() accepts for the tokens a program can contain
+    static final Pattern INTPAT = Pattern.compile("[-+]?[0-9]+");
 
     // Patterns for the bigger categories
     static final Pattern ACT = Pattern.compile("move|turnL|turnR|takeFuel|wait|turnAround|shieldOn|shieldOff");
     static final Pattern RELOP = Pattern.compile("lt|gt|eq");
     static final Pattern COND = Pattern.compile("and|or|not");
-    static final Pattern SENS = Pattern.compile("fuelLeft|oppLR|oppFB|numBarrels|barrelLR|barrelFB|wallDist|$");
+    static final Pattern SENS = Pattern.compile("fuelLeft|oppLR|oppFB|numBarrels|barrelLR|barrelFB|barrelDist|barrelDir|wallDist|$");
     static final Pattern OP = Pattern.compile("add|sub|mul|div");
 
     //----------------------------------------------------------------
@@ -36,331 +44,395 @@ public class Parser {
      * Returns the parse tree.
      */
     ProgramNode parse(Scanner s) {
-        // Set the delimiter for the scanner.
-        s.useDelimiter("\\s+|(?=[{}(),;])|(?<=[{}(),;])");
-        // THE PARSER GOES HERE
-        // Call the parseProg method for the first grammar rule (PROG) and return the node
-        
-        return parseProg(s);
+        return parse(TokenStream.of(s));
     }
 
-    //----------------------------------------------------------------
     /**
-     * Start of functions to parse the major blocks
+     * Parses a program read from a channel, a buffer at a time.
      */
+    public ProgramNode parse(ReadableByteChannel channel) {
+        return parse(new ProgramLexer(channel));
+    }
 
     /**
-     * Parse the PROG statements
+     * Parses a program file by mapping it into memory.
      */
-    private ProgramNode parseProg(Scanner s){
-        List<ProgramNode> children = new ArrayList<>();
-
-        // Base case
-        while (s.hasNext()) {
-            children.add(parseStmt(s));
+    public ProgramNode parse(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return parse(new ProgramLexer(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())), file.toString());
         }
+    }
 
-        return new Prog(children);
+    ProgramNode parse(TokenStream s) {
+        return parse(s, null);
     }
 
     /**
-     * Parse the STMT statement
+     * Parses a single BLOCK, braces and all, such as one the program editor
+     * has seen change.
      */
-    private ProgramNode parseStmt(Scanner s){
-
-        if (s.hasNext(ACT))                     { return(parseAct(s)); }
-        else if (s.hasNext("loop"))     { return(parseLoop(s)); }
-        else if (s.hasNext("if"))       { return(parseIf(s)); }
-        else if (s.hasNext("while"))    { return(parseWhile(s)); }
-        else if (s.hasNext(VAIRABLE))           { return(setVar(s));}
-        else {
-            fail("Expected STMT", s); 
-            return null;
+    List<ProgramNode> parseBlock(TokenStream s) {
+        @SuppressWarnings("unchecked")
+        List<ProgramNode> block = (List<ProgramNode>) run(new BlockFrame(false), s);
+        return block;
+    }
+
+    /**
+     * @param source where the program came from, for recordings, if known
+     */
+    ProgramNode parse(TokenStream s, String source) {
+        FlightEvents.Parse event = FlightEvents.startParse();
+        boolean succeeded = false;
+        try {
+            ProgramNode prog = (ProgramNode) run(new BlockFrame(true), s);
+            succeeded = true;
+            return prog;
+        } finally {
+            FlightEvents.endParse(event, source, succeeded);
         }
     }
 
+    //----------------------------------------------------------------
     /**
-     * Parse the ACT statements
-     * Checks if scanner is empty and throw error if it is
-     * Returns a different ACT ProgramNode depending on the 
-     * next scanner string or throw error if it's undefined
+     * The parse stack.
+     * Each frame is one grammar rule part way through being parsed. step()
+     * is called with the node built by the frame it last pushed (null on
+     * the first call); it either pushes a frame for a sub-rule and returns
+     * null, or returns the finished node, which is handed to the frame below.
      */
-    private ProgramNode parseAct(Scanner s){
-        // Error checking
-        String action = require(ACT, "expected act", s);
-        
-        // Node to Return
-        ProgramNode act = null;
-
-        // Act nodes without any extra parameters
-        if      (action.equals("turnL"))        { act = new TurnL(); } 
-        else if (action.equals("turnR"))        { act = new TurnR(); } 
-        else if (action.equals("takeFuel"))     { act = new TakeFuel(); } 
-        else if (action.equals("shieldOn"))     { act = new ShieldOn(); }
-        else if (action.equals("shieldOff"))    { act = new ShieldOff(); }
-        else if (action.equals("turnAround"))   { act = new TurnAround(); }
-
-        // Act nodes with parameters
-        if (action.equals("move")) { 
-            IntNode repeat = null;
-            if (s.hasNext(OPENPAREN)){
-                s.next();
-                repeat = parseExpr(s);
-                require(CLOSEPAREN, "expected )", s);   
-            } else {
-                repeat = new Num(1);
+    private abstract static class Frame {
+        int state;
+
+        abstract Object step(Object child, TokenStream s, Deque<Frame> stack);
+    }
+
+    private static Object run(Frame root, TokenStream s) {
+        Deque<Frame> stack = new ArrayDeque<>();
+        stack.push(root);
+        Object result = null;
+        while (!stack.isEmpty()) {
+            Frame top = stack.peek();
+            result = top.step(result, s, stack);
+            if (result != null) {
+                stack.pop();
+            } else if (stack.peek() == top) {
+                throw new IllegalStateException("parse frame neither finished nor pushed");
             }
-            act = new Move(repeat); 
-        } 
-        else if (action.equals("wait")){ 
-            IntNode repeat = null;
-            if (s.hasNext(OPENPAREN)){
-                s.next();
-                repeat = parseExpr(s);
-                require(CLOSEPAREN, "expected )", s);   
-            } else {
-                repeat = new Num(1);
-            }
-            act = new Wait(repeat); 
-        } 
-        
-        require(";", "expecting: ;  At parseAct", s);
-        return act;
+        }
+        return result;
     }
 
     /**
-     * Parse the LOOP statement
-     * Returns a Loop ProgramNode
+     * Pushes the frame for the STMT starting at the next token.
      */
-    private ProgramNode parseLoop(Scanner s){
-        // error checks
-        require("loop", "expected: loop", s);
-
-        // Get a liat of children nodes
-        ArrayList<ProgramNode> childList = parseBlock(s);
-        
-        return new Loop(childList);
+    private static void pushStmt(TokenStream s, Deque<Frame> stack) {
+        if (hasNext(ACT, s))                { stack.push(new ActFrame()); }
+        else if (hasNext("loop", s))        { stack.push(new LoopFrame()); }
+        else if (hasNext("if", s))          { stack.push(new IfFrame()); }
+        else if (hasNext("while", s))       { stack.push(new WhileFrame()); }
+        else if (hasNext(VAIRABLE, s))      { stack.push(new AssignFrame()); }
+        else { fail("Expected STMT", s); }
     }
 
     /**
-     * Parse the BLOCK statement and return a list of ProgramNodes
-     * As well as ckecking if the bracket syntax is correct
-     * Returns an ArrayList of ProgramNodes
+     * Parse a PROG (the top frame) or a BLOCK, which is returned as a list
+     * after checking that the bracket syntax is correct
      */
-    private ArrayList<ProgramNode> parseBlock(Scanner s){
-        // Syntax checks
-        require(OPENBRACE, "Expected: {", s);
-
-        // Store all child node of this loop
-        ArrayList<ProgramNode> nodes = new ArrayList<>();
-
-        // loop through all of the nodes and add them linearly
-        while (!s.hasNext(CLOSEBRACE) && s.hasNext()){
-            nodes.add(parseStmt(s));
+    private static class BlockFrame extends Frame {
+        private final boolean prog;
+        private final ArrayList<ProgramNode> nodes = new ArrayList<>();
+
+        BlockFrame(boolean prog) { this.prog = prog; }
+
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            if (state == 0) {
+                if (!prog) {
+                    List<ProgramNode> kept = s.reuseBlock();
+                    if (kept != null) return kept;
+                    require(OPENBRACE, "Expected: {", s);
+                }
+                state = 1;
+            } else {
+                nodes.add((ProgramNode) child);
+            }
+            if (prog) {
+                if (!s.hasNext()) return new Prog(nodes);
+            } else if (!s.hasNext() || hasNext(CLOSEBRACE, s)) {
+                if (nodes.isEmpty()) { fail("BLOCK is empty", s); }
+                require(CLOSEBRACE, "ecpected: }", s);
+                s.blockParsed(nodes);
+                return nodes;
+            }
+            pushStmt(s, stack);
+            return null;
         }
-
-        // Syntax checks
-        if(nodes.isEmpty()) { fail("BLOCK is empty", s);}
-        require(CLOSEBRACE, "ecpected: }", s);
-
-        return nodes;
     }
 
     /**
-     * Parse the If statement
-     * Retuens a If node
+     * Parse the ACT statements, which may take a repeat count in brackets
      */
-    private ProgramNode parseIf(Scanner s){
-        //parsing if
-        require("if", "expected if", s);
-        require(OPENPAREN, "Conditions must start with (", s);
-        BoolNode cond = parseCond(s);
-        require(CLOSEPAREN, "Require )", s);
-        List<ProgramNode> ifList = parseBlock(s);
-
-        //parsing elif
-        Map<BoolNode, List<ProgramNode>> elifMap = new HashMap<>();
-        while (s.hasNext("elif")){
-            require("elif", "expected elif", s);
-            require(OPENPAREN, "Conditions must start with (", s);
-            BoolNode elifCond = parseCond(s);
-            require(CLOSEPAREN, "Require )", s);
-            List<ProgramNode> elifList = parseBlock(s);
-            elifMap.put(elifCond, elifList);
-        }
+    private static class ActFrame extends Frame {
+        private String action;
 
-        //parsing else
-        List<ProgramNode> elseList = new ArrayList<>();
-        if (s.hasNext("else")) {
-            s.next();
-            elseList = parseBlock(s);
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            IntNode repeat = null;
+            if (state == 0) {
+                action = require(ACT, "expected act", s);
+                boolean counted = action.equals("move") || action.equals("wait");
+                if (counted && checkFor(OPENPAREN, s)) {
+                    state = 1;
+                    stack.push(new ExprFrame());
+                    return null;
+                }
+            } else {
+                repeat = (IntNode) child;
+                require(CLOSEPAREN, "expected )", s);
+            }
+            if (repeat == null) repeat = new Num(1);
+
+            ProgramNode act = null;
+            if      (action.equals("turnL"))        { act = new TurnL(); } 
+            else if (action.equals("turnR"))        { act = new TurnR(); } 
+            else if (action.equals("takeFuel"))     { act = new TakeFuel(); } 
+            else if (action.equals("shieldOn"))     { act = new ShieldOn(); }
+            else if (action.equals("shieldOff"))    { act = new ShieldOff(); }
+            else if (action.equals("turnAround"))   { act = new TurnAround(); }
+            else if (action.equals("move"))         { act = new Move(repeat); }
+            else if (action.equals("wait"))         { act = new Wait(repeat); }
+
+            require(";", "expecting: ;  At parseAct", s);
+            return act;
         }
-
-        return new If(ifList, elifMap, elseList, cond);
     }
 
     /**
-     * Parse the If statement
-     * Retuens a If node
+     * Parse the LOOP statement
      */
-    private ProgramNode parseWhile(Scanner s){
-        require("while", "expected while", s);
-        require(OPENPAREN, "Conditions must start with (", s);
-        BoolNode cond = parseCond(s);
-        require(CLOSEPAREN, "Require )", s);
-
-        List<ProgramNode> childList = parseBlock(s);
-
-        return new While(childList, cond);
+    private static class LoopFrame extends Frame {
+        @SuppressWarnings("unchecked")
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            if (state == 0) {
+                require("loop", "expected: loop", s);
+                state = 1;
+                stack.push(new BlockFrame(false));
+                return null;
+            }
+            return new Loop((List<ProgramNode>) child);
+        }
     }
 
     /**
-     * Parse the outer COND statement
-     * returns a BoolNode
+     * Parse the WHILE statement
      */
-    private BoolNode parseCond(Scanner s){
-        // Check the syntax and get the condition strings
-        if (s.hasNext(RELOP)){
-            return parseRelop(s);
-        }
-        else if (s.hasNext("and")){
-            s.next();
-            require(OPENPAREN, "expected (", s);
-            BoolNode first = parseCond(s);
-            require(",", "expected ,", s);
-            BoolNode second = parseCond(s);
-            require(CLOSEPAREN, "expected )", s);
-            return new And(first, second);
-        }
-        else if (s.hasNext("or")){
-            s.next();
-            require(OPENPAREN, "expected (", s);
-            BoolNode first = parseCond(s);
-            require(",", "expected ,", s);
-            BoolNode second = parseCond(s);
-            require(CLOSEPAREN, "expected )", s);
-            return new Or(first, second);
-        }
-        else if (s.hasNext("not")){
-            s.next();
-            require(OPENPAREN, "expected (", s);
-            BoolNode first = parseCond(s);
-            require(CLOSEPAREN, "expected )", s);
-            return new Not(first);
+    private static class WhileFrame extends Frame {
+        private BoolNode cond;
+
+        @SuppressWarnings("unchecked")
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            switch (state++) {
+                case 0:
+                    require("while", "expected while", s);
+                    require(OPENPAREN, "Conditions must start with (", s);
+                    stack.push(new CondFrame());
+                    return null;
+                case 1:
+                    cond = (BoolNode) child;
+                    require(CLOSEPAREN, "Require )", s);
+                    stack.push(new BlockFrame(false));
+                    return null;
+                default:
+                    return new While((List<ProgramNode>) child, cond);
+            }
         }
-
-        fail("Cond statement incorrect", s);
-        return null;
     }
 
-
-
     /**
-     * Parses and returns a BoolNode
+     * Parse the IF statement, keeping the elif conditions in the order
+     * they are written
      */
-    private BoolNode parseRelop(Scanner s){
-        String relop = s.next();
-        require(OPENPAREN, "Expected (", s);
-
-        if (relop.equals("lt")){
-            IntNode first = parseExpr(s);
-            require(",", "Expected ,", s);
-            IntNode second = parseExpr(s);
-            require(CLOSEPAREN, "expected )", s);
-            return new LesserThan(first, second);
-        }
-        else if (relop.equals("gt")){
-            IntNode first = parseExpr(s);
-            require(",", "Expected ,", s);
-            IntNode second = parseExpr(s);
-            require(CLOSEPAREN, "expected )", s);
-            return new GreaterThan(first, second);
-        }
-        else if (relop.equals("eq")){
-            IntNode first = parseExpr(s);
-            require(",", "Expected ,", s);
-            IntNode second = parseExpr(s);
-            require(CLOSEPAREN, "expected )", s);
-            return new Equal(first, second);
+    private static class IfFrame extends Frame {
+        private static final int IF_COND = 1, IF_BLOCK = 2, ELIF_COND = 3, ELIF_BLOCK = 4, ELSE_BLOCK = 5;
+
+        private BoolNode cond;
+        private List<ProgramNode> ifList;
+        private final List<BoolNode> elifConds = new ArrayList<>();
+        private final List<List<ProgramNode>> elifLists = new ArrayList<>();
+        private List<ProgramNode> elseList = new ArrayList<>();
+
+        @SuppressWarnings("unchecked")
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            switch (state) {
+                case 0:
+                    require("if", "expected if", s);
+                    require(OPENPAREN, "Conditions must start with (", s);
+                    state = IF_COND;
+                    stack.push(new CondFrame());
+                    return null;
+                case IF_COND:
+                case ELIF_COND:
+                    if (state == IF_COND) cond = (BoolNode) child;
+                    else elifConds.add((BoolNode) child);
+                    require(CLOSEPAREN, "Require )", s);
+                    state++;
+                    stack.push(new BlockFrame(false));
+                    return null;
+                case IF_BLOCK:
+                case ELIF_BLOCK:
+                    if (state == IF_BLOCK) ifList = (List<ProgramNode>) child;
+                    else elifLists.add((List<ProgramNode>) child);
+                    if (checkFor("elif", s)) {
+                        require(OPENPAREN, "Conditions must start with (", s);
+                        state = ELIF_COND;
+                        stack.push(new CondFrame());
+                        return null;
+                    }
+                    if (checkFor("else", s)) {
+                        state = ELSE_BLOCK;
+                        stack.push(new BlockFrame(false));
+                        return null;
+                    }
+                    break;
+                default:
+                    elseList = (List<ProgramNode>) child;
+            }
+            return new If(ifList, elifConds, elifLists, elseList, cond);
         }
-        
-        throw new ParserFailureException("RelopNode wrong, got: " + s.next());
     }
 
     /**
-     * Parses the EXPR statement
+     * Parse a variable assignment
      */
-    private IntNode parseExpr(Scanner s){
-        if (s.hasNextInt()){
-            return new Num(s.nextInt());
-        }
-        else if (s.hasNext(SENS)){
-            return parseSens(s);
-        }
-        else if (s.hasNext(VAIRABLE)){
-            return parseVar(s);
+    private static class AssignFrame extends Frame {
+        private String key;
+
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            if (state == 0) {
+                key = require(VAIRABLE, "Expected variable name", s);
+                require("=", "require = when assigning variables", s);
+                state = 1;
+                stack.push(new ExprFrame());
+                return null;
+            }
+            require(";", "variable declaration must end with ;", s);
+            return new SetVariable(key, (IntNode) child);
         }
-        else if(s.hasNext(OP)){
-            String op = s.next();
-
-            // Syntax checks and recursion
-            require(OPENPAREN, "Expected (", s);
-            IntNode first = parseExpr(s);
-            require(",", "Expected ,", s);
-            IntNode second = parseExpr(s);
-            require(CLOSEPAREN, "expected )", s);
-
-            // Find the right type of node
-            if      (op.equals("add"))  { return new Add(first, second); }
-            else if (op.equals("sub"))  { return new Subtract(first, second); }
-            else if (op.equals("mul"))  { return new Mulitiply(first, second); }
-            else if (op.equals("div"))  { return new Divide(first, second); }
+    }
+
+    /**
+     * Parse a COND, which is either a relop of two EXPRs or a logical
+     * operator over one or two CONDs
+     */
+    private static class CondFrame extends Frame {
+        private String op;
+        private Object first;
+
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            switch (state++) {
+                case 0:
+                    if (hasNext(RELOP, s)) {
+                        op = s.next();
+                        require(OPENPAREN, "Expected (", s);
+                        stack.push(new ExprFrame());
+                    } else if (hasNext(COND, s)) {
+                        op = s.next();
+                        require(OPENPAREN, "expected (", s);
+                        stack.push(new CondFrame());
+                    } else {
+                        fail("Cond statement incorrect", s);
+                    }
+                    return null;
+                case 1:
+                    first = child;
+                    if (op.equals("not")) {
+                        require(CLOSEPAREN, "expected )", s);
+                        return new Not((BoolNode) first);
+                    }
+                    require(",", "expected ,", s);
+                    stack.push(hasRelop() ? new ExprFrame() : new CondFrame());
+                    return null;
+                default:
+                    require(CLOSEPAREN, "expected )", s);
+                    if (hasRelop()) {
+                        IntNode a = (IntNode) first, b = (IntNode) child;
+                        if (op.equals("lt")) return new LesserThan(a, b);
+                        if (op.equals("gt")) return new GreaterThan(a, b);
+                        return new Equal(a, b);
+                    }
+                    BoolNode a = (BoolNode) first, b = (BoolNode) child;
+                    return op.equals("and") ? new And(a, b) : new Or(a, b);
+            }
         }
 
-        throw new ParserFailureException("Expr wrong, got: " + s.next());
+        private boolean hasRelop() {
+            return RELOP.matcher(op).matches();
+        }
     }
 
     /**
-     * Parses and returns a sensNode
+     * Parse an EXPR: a number, a sensor, a variable or an operator over two
+     * EXPRs
      */
-    private IntNode parseSens(Scanner s){
-        String sensScanner = s.next();
-        IntNode sens;
-
-        // SENS nodes that doesn't take any parameters
-        if (sensScanner.equals("fuelLeft"))           { sens = new FuelLeft(); } 
-        else if (sensScanner.equals("oppLR"))         { sens = new OppLR(); } 
-        else if (sensScanner.equals("oppFB"))         { sens = new OppFB(); } 
-        else if (sensScanner.equals("numBarrels"))    { sens = new NumBarrels(); } 
-        else if (sensScanner.equals("wallDist"))      { sens = new WallDist(); }
-        else if (sensScanner.startsWith("$"))           { sens = parseVar(s); }
-
-        // SENS nodes that takes in parameters
-        else if (sensScanner.equals("barrelLR")){ 
-            IntNode repeat = null;
-            if (s.hasNext(OPENPAREN)){
-                s.next();
-                repeat = parseExpr(s);
-                require(CLOSEPAREN, "expected )", s);   
-            } else {
-                repeat = new Num(Integer.MIN_VALUE);
-            }
-            return new BarrelLR(repeat); 
-        } 
-        else if (sensScanner.equals("barrelFB")){ 
-            IntNode repeat = null;
-            if (s.hasNext(OPENPAREN)){
-                s.next();
-                repeat = parseExpr(s);
-                require(CLOSEPAREN, "expected )", s);   
-            } else {
-                repeat = new Num(Integer.MIN_VALUE);
+    private static class ExprFrame extends Frame {
+        private String op;
+        private IntNode first;
+
+        Object step(Object child, TokenStream s, Deque<Frame> stack) {
+            switch (state++) {
+                case 0:
+                    if (!s.hasNext()) {
+                        fail("Expected EXPR", s);
+                    }
+                    if (hasNextInt(s)) {
+                        return new Num(Integer.parseInt(s.next()));
+                    }
+                    if (hasNext(VAIRABLE, s)) {
+                        return new useVariable(s.next());
+                    }
+                    if (hasNext(SENS, s)) {
+                        op = s.next();
+                        if (op.equals("fuelLeft"))    { return new FuelLeft(); }
+                        if (op.equals("oppLR"))       { return new OppLR(); }
+                        if (op.equals("oppFB"))       { return new OppFB(); }
+                        if (op.equals("numBarrels"))  { return new NumBarrels(); }
+                        if (op.equals("wallDist"))    { return new WallDist(); }
+                        if (op.equals("barrelDist"))  { return new BarrelDist(); }
+                        if (op.equals("barrelDir"))   { return new BarrelDir(); }
+                        // barrelLR and barrelFB take an optional index
+                        if (!checkFor(OPENPAREN, s)) {
+                            return barrel(new Num(Integer.MIN_VALUE));
+                        }
+                        state = 3;
+                    } else if (hasNext(OP, s)) {
+                        op = s.next();
+                        require(OPENPAREN, "Expected (", s);
+                    } else {
+                        long position = s.position();
+                        throw new ParserFailureException("Expr wrong, got: " + s.next(), position);
+                    }
+                    stack.push(new ExprFrame());
+                    return null;
+                case 1:
+                    first = (IntNode) child;
+                    require(",", "Expected ,", s);
+                    stack.push(new ExprFrame());
+                    return null;
+                case 2: {
+                    IntNode second = (IntNode) child;
+                    require(CLOSEPAREN, "expected )", s);
+                    if      (op.equals("add"))  { return new Add(first, second); }
+                    else if (op.equals("sub"))  { return new Subtract(first, second); }
+                    else if (op.equals("mul"))  { return new Mulitiply(first, second); }
+                    else                        { return new Divide(first, second); }
+                }
+                default:
+                    require(CLOSEPAREN, "expected )", s);
+                    return barrel((IntNode) child);
             }
-            return new BarrelFB(repeat); 
         }
-        else { throw new ParserFailureException("Sens not right"); }
 
-        return sens;
+        private IntNode barrel(IntNode index) {
+            return op.equals("barrelLR") ? new BarrelLR(index) : new BarrelFB(index);
+        }
     }
 
     /**
@@ -368,28 +440,168 @@ public class Parser {
      * trying to define a new variable
      */
     public IntNode parseVar(Scanner s){
-
-        IntNode toReturn;
-        if (s.hasNext("=")) {
-            fail("cannot assign variable in the middle of expression", s);
-            throw new ParserFailureException(null);
-        } else {
-            toReturn = new useVariable(s.next());
+        TokenStream tokens = TokenStream.of(s);
+        String name = require(VAIRABLE, "Expected variable name", tokens);
+        if (hasNext("=", tokens)) {
+            fail("cannot assign variable in the middle of expression", tokens);
         }
-
-        return toReturn;
+        return new useVariable(name);
     }
 
     /**
      * returns a setVariable programNode
      */
     public ProgramNode setVar(Scanner s){
-        String key = require(VAIRABLE, "Expected variable name", s);
-        require("=", "require = when assigning variables", s);
-        IntNode expr = parseExpr(s);
-        require(";", "variable declaration must end with ;", s);
+        return (ProgramNode) run(new AssignFrame(), TokenStream.of(s));
+    }
+
+    //----------------------------------------------------------------
+    // factories for the nodes, so that code in other files can build
+    // programs without naming the node classes, which are private to this
+    // file. They take the words of the language, as ProgramVisitor gives them.
+
+    static ProgramNode program(List<ProgramNode> statements) {
+        return new Prog(statements);
+    }
+
+    /** An action that takes no count: turnL, turnR, turnAround, takeFuel, shieldOn or shieldOff */
+    static ProgramNode action(String action) {
+        return switch (action) {
+            case "turnL" -> new TurnL();
+            case "turnR" -> new TurnR();
+            case "turnAround" -> new TurnAround();
+            case "takeFuel" -> new TakeFuel();
+            case "shieldOn" -> new ShieldOn();
+            case "shieldOff" -> new ShieldOff();
+            default -> throw new IllegalArgumentException("not an action: " + action);
+        };
+    }
+
+    /** move or wait, done the given number of times */
+    static ProgramNode repeatedAction(String action, IntNode times) {
+        return switch (action) {
+            case "move" -> new Move(times);
+            case "wait" -> new Wait(times);
+            default -> throw new IllegalArgumentException("not a repeated action: " + action);
+        };
+    }
+
+    /** An if with its elifs: the guards and bodies in the order they are written, then the else */
+    static ProgramNode ifChain(List<BoolNode> guards, List<List<ProgramNode>> bodies, List<ProgramNode> elseBody) {
+        int n = guards.size();
+        return new If(bodies.get(0), guards.subList(1, n), bodies.subList(1, n), elseBody, guards.get(0));
+    }
+
+    static ProgramNode whileLoop(BoolNode guard, List<ProgramNode> body) {
+        return new While(body, guard);
+    }
+
+    static ProgramNode loop(List<ProgramNode> body) {
+        return new Loop(body);
+    }
+
+    static ProgramNode assign(String variable, IntNode value) {
+        return new SetVariable(variable, value);
+    }
+
+    /** lt, gt or eq */
+    static BoolNode comparison(String relop, IntNode first, IntNode second) {
+        return switch (relop) {
+            case "lt" -> new LesserThan(first, second);
+            case "gt" -> new GreaterThan(first, second);
+            case "eq" -> new Equal(first, second);
+            default -> throw new IllegalArgumentException("not a relop: " + relop);
+        };
+    }
+
+    /** and or or */
+    static BoolNode logic(String op, BoolNode first, BoolNode second) {
+        return switch (op) {
+            case "and" -> new And(first, second);
+            case "or" -> new Or(first, second);
+            default -> throw new IllegalArgumentException("not a logical operator: " + op);
+        };
+    }
+
+    static BoolNode not(BoolNode operand) {
+        return new Not(operand);
+    }
+
+    static IntNode number(int value) {
+        return new Num(value);
+    }
+
+    static IntNode variable(String variable) {
+        return new useVariable(variable);
+    }
+
+    /** A sensor that takes no index: fuelLeft, oppLR, oppFB, numBarrels, wallDist, barrelDist or barrelDir */
+    static IntNode sensor(String sensor) {
+        return switch (sensor) {
+            case "fuelLeft" -> new FuelLeft();
+            case "oppLR" -> new OppLR();
+            case "oppFB" -> new OppFB();
+            case "numBarrels" -> new NumBarrels();
+            case "wallDist" -> new WallDist();
+            case "barrelDist" -> new BarrelDist();
+            case "barrelDir" -> new BarrelDir();
+            default -> throw new IllegalArgumentException("not a sensor: " + sensor);
+        };
+    }
+
+    /** barrelLR or barrelFB, of the barrel at the index, or of the closest one if the index is null */
+    static IntNode barrel(String sensor, IntNode index) {
+        if (index == null) index = new Num(Integer.MIN_VALUE);
+        return switch (sensor) {
+            case "barrelLR" -> new BarrelLR(index);
+            case "barrelFB" -> new BarrelFB(index);
+            default -> throw new IllegalArgumentException("not a barrel sensor: " + sensor);
+        };
+    }
+
+    /**
+     * @return whether a barrel sensor's index is the stand-in the parser
+     * uses when none is written, a plain number so it can be read without a robot
+     */
+    static boolean isClosestBarrel(IntNode index) {
+        return index instanceof Num && ((Num) index).getValue() == Integer.MIN_VALUE;
+    }
 
-        return new SetVariable(key, expr);
+    /** add, sub, mul or div */
+    static IntNode operation(String op, IntNode first, IntNode second) {
+        return switch (op) {
+            case "add" -> new Add(first, second);
+            case "sub" -> new Subtract(first, second);
+            case "mul" -> new Mulitiply(first, second);
+            case "div" -> new Divide(first, second);
+            default -> throw new IllegalArgumentException("not an operator: " + op);
+        };
+    }
+
+    /**
+     * @return the blocks of a statement in the order they are written: the
+     * one block of a program, loop or while, the blocks of an if and its
+     * elifs and then its else if that has any statements, and none for the
+     * other statements
+     */
+    static List<List<ProgramNode>> blocks(ProgramNode statement) {
+        if (statement instanceof Prog) return List.of(((Prog) statement).children);
+        if (statement instanceof Loop) return List.of(((Loop) statement).cNodes);
+        if (statement instanceof While) return List.of(((While) statement).cNodes);
+        if (statement instanceof If) return ((If) statement).blocks();
+        return List.of();
+    }
+
+    /**
+     * @return a copy of the statement with other blocks, given as blocks()
+     * gives them, and the same conditions
+     */
+    static ProgramNode withBlocks(ProgramNode statement, List<List<ProgramNode>> blocks) {
+        if (statement instanceof Prog) return new Prog(blocks.get(0));
+        if (statement instanceof Loop) return new Loop(blocks.get(0));
+        if (statement instanceof While) return new While(blocks.get(0), ((While) statement).bool);
+        if (statement instanceof If) return ((If) statement).withBlocks(blocks);
+        throw new IllegalArgumentException("no blocks in " + statement);
     }
 
     //----------------------------------------------------------------
@@ -398,16 +610,22 @@ public class Parser {
     // - require(..) consumes and returns the next token as long as it matches the pattern
     // - requireInt(..) consumes and returns the next token as an int as long as it matches the pattern
     // - checkFor(..) peeks at the next token and only consumes it if it matches the pattern
+    // - hasNext(..) and hasNextInt(..) peek at the next token, as the Scanner methods do
 
     /**
      * Report a failure in the parser.
      */
-    static void fail(String message, Scanner s) {
-        String msg = message + "\n   @ ...";
+    static void fail(String message, TokenStream s) {
+        String msg = message;
+        long position = s.position();
+        if (s.line() > 0) {
+            msg += " (line " + s.line() + ")";
+        }
+        msg += "\n   @ ...";
         for (int i = 0; i < 5 && s.hasNext(); i++) {
             msg += " " + s.next();
         }
-        throw new ParserFailureException(msg + "...");
+        throw new ParserFailureException(msg + "...", position);
     }
 
     /**
@@ -415,14 +633,14 @@ public class Parser {
      * and returns the token, if not, it throws an exception with an error
      * message
      */
-    static String require(String p, String message, Scanner s) {
-        if (s.hasNext(p)) {return s.next();}
+    static String require(String p, String message, TokenStream s) {
+        if (hasNext(p, s)) {return s.next();}
         fail(message, s);
         return null;
     }
 
-    static String require(Pattern p, String message, Scanner s) {
-        if (s.hasNext(p)) {return s.next();}
+    static String require(Pattern p, String message, TokenStream s) {
+        if (hasNext(p, s)) {return s.next();}
         fail(message, s);
         return null;
     }
@@ -432,14 +650,14 @@ public class Parser {
      * number) if it matches, it consumes and returns the token as an integer
      * if not, it throws an exception with an error message
      */
-    static int requireInt(String p, String message, Scanner s) {
-        if (s.hasNext(p) && s.hasNextInt()) {return s.nextInt();}
+    static int requireInt(String p, String message, TokenStream s) {
+        if (hasNext(p, s) && hasNextInt(s)) {return Integer.parseInt(s.next());}
         fail(message, s);
         return -1;
     }
 
-    static int requireInt(Pattern p, String message, Scanner s) {
-        if (s.hasNext(p) && s.hasNextInt()) {return s.nextInt();}
+    static int requireInt(Pattern p, String message, TokenStream s) {
+        if (hasNext(p, s) && hasNextInt(s)) {return Integer.parseInt(s.next());}
         fail(message, s);
         return -1;
     }
@@ -449,16 +667,40 @@ public class Parser {
      * pattern, if so, consumes the token and return true. Otherwise returns
      * false without consuming anything.
      */
-    static boolean checkFor(String p, Scanner s) {
-        if (s.hasNext(p)) {s.next(); return true;}
+    static boolean checkFor(String p, TokenStream s) {
+        if (hasNext(p, s)) {s.next(); return true;}
         return false;
     }
 
-    static boolean checkFor(Pattern p, Scanner s) {
-        if (s.hasNext(p)) {s.next(); return true;} 
+    static boolean checkFor(Pattern p, TokenStream s) {
+        if (hasNext(p, s)) {s.next(); return true;} 
         return false;
     }
 
+    /**
+     * The keywords and punctuation the parser asks for by name are plain
+     * tokens, so they are compared directly rather than as patterns.
+     */
+    static boolean hasNext(String token, TokenStream s) {
+        return token.equals(s.peek());
+    }
+
+    static boolean hasNext(Pattern p, TokenStream s) {
+        String token = s.peek();
+        return token != null && p.matcher(token).matches();
+    }
+
+    static boolean hasNextInt(TokenStream s) {
+        String token = s.peek();
+        if (token == null || !INTPAT.matcher(token).matches()) return false;
+        try {
+            Integer.parseInt(token);
+            return true;
+        } catch (NumberFormatException e) {
+            return false;
+        }
+    }
+
 }
 
 // You could add the node classes here or as separate java files.
@@ -469,28 +711,6 @@ public class Parser {
 //
 
 
-/**
- * ================================================================
- * 
- *                          Interfaces
- */
-
-/**
- * Interface for Boolean nodes
- * evaluate returns a boolean
- */
-interface BoolNode {
-    public boolean evaluate(Robot r);
-}
-
-/**
- * Interface for SENS nodes
- * evaluate returns an int
- */
-interface IntNode {
-    public int evaluate(Robot r);
-}
-
 /**
  * ================================================================
  * 
@@ -514,6 +734,9 @@ class Prog implements ProgramNode{
         }
     }
     
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitProgram(children, arg); }
+
     @Override
     public String toString(){
         return children.toString();
@@ -532,12 +755,13 @@ class Move implements ProgramNode{
 
     @Override
     public void execute(Robot robot) { 
-        int rep = repeat.evaluate(robot);
-        for (int i = 0; i < rep; i++){
-            robot.move(); 
-        }
+        robot.countInstructions(repeat.size());
+        robot.move(repeat.evaluate(robot));
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitRepeatedAction("move", repeat, arg); }
+
     @Override
     public String toString(){
         return "move";
@@ -556,12 +780,13 @@ class Wait implements ProgramNode{
 
     @Override
     public void execute(Robot robot) { 
-        int rep = repeat.evaluate(robot);
-        for (int i = 0; i < rep; i++){
-            robot.idleWait(); 
-        }
+        robot.countInstructions(repeat.size());
+        robot.idleWait(repeat.evaluate(robot));
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitRepeatedAction("wait", repeat, arg); }
+
     @Override
     public String toString(){
         return "Wait"; 
@@ -576,6 +801,9 @@ class TurnL implements ProgramNode{
     @Override
     public void execute(Robot robot) { robot.turnLeft(); }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitAction("turnL", arg); }
+
     @Override
     public String toString(){
         return "TurnL";
@@ -590,6 +818,9 @@ class TurnR implements ProgramNode{
     @Override
     public void execute(Robot robot) { robot.turnRight(); }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitAction("turnR", arg); }
+
     @Override
     public String toString(){
         return "TurnR";
@@ -604,6 +835,9 @@ class TakeFuel implements ProgramNode{
     @Override
     public void execute(Robot robot) { robot.takeFuel(); }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitAction("takeFuel", arg); }
+
     @Override
     public String toString(){
         return "TakeFuel";
@@ -618,6 +852,9 @@ class TurnAround implements ProgramNode{
     @Override
     public void execute(Robot robot) { robot.turnAround(); }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitAction("turnAround", arg); }
+
     @Override
     public String toString(){
         return "TakeFuel";
@@ -632,6 +869,9 @@ class ShieldOn implements ProgramNode{
     @Override
     public void execute(Robot robot) { robot.setShield(true);}
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitAction("shieldOn", arg); }
+
     @Override
     public String toString(){
         return "TakeFuel";
@@ -646,6 +886,9 @@ class ShieldOff implements ProgramNode{
     @Override
     public void execute(Robot robot) { robot.setShield(false); }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitAction("shieldOff", arg); }
+
     @Override
     public String toString(){
         return "TakeFuel";
@@ -655,54 +898,72 @@ class ShieldOff implements ProgramNode{
 /**
  * Takes in a bool naode and a list of programNodes
  * If the bool node is ture then exicute all of the programNodes
+ * The if and elif conditions are kept in an array in the order they were
+ * written, next to an array of the blocks they guard, so choosing a branch is
+ * a straight walk down the chain.
  */
 class If implements ProgramNode{
-    List<ProgramNode> ifNodes = new ArrayList<>();
-    List<ProgramNode> elseNodes = new ArrayList<>();
-    Map<BoolNode, List<ProgramNode>> elifMap = new HashMap<>();
-    BoolNode bool;
+    private final BoolNode[] guards;
+    private final ProgramNode[][] bodies;
+    private final ProgramNode[] elseNodes;
 
     //constructor
-    public If(List<ProgramNode> ifNodes, Map<BoolNode, List<ProgramNode>> elifMap, List<ProgramNode> elseNodes, BoolNode bool){
-        this.ifNodes = ifNodes;
-        this.elifMap = elifMap;
-        this.elseNodes = elseNodes;
-        this.bool = bool;
+    public If(List<ProgramNode> ifNodes, List<BoolNode> elifConds, List<List<ProgramNode>> elifLists, List<ProgramNode> elseNodes, BoolNode bool){
+        guards = new BoolNode[elifConds.size() + 1];
+        bodies = new ProgramNode[guards.length][];
+        guards[0] = bool;
+        bodies[0] = ifNodes.toArray(new ProgramNode[0]);
+        for (int i = 1; i < guards.length; i++){
+            guards[i] = elifConds.get(i - 1);
+            bodies[i] = elifLists.get(i - 1).toArray(new ProgramNode[0]);
+        }
+        this.elseNodes = elseNodes.toArray(new ProgramNode[0]);
     }
 
     @Override
     public void execute(Robot robot) {
-        //check the if statement
-        if (bool.evaluate(robot)){
-            for (ProgramNode child : ifNodes){
-                child.execute(robot);
-            }
-        }  
-        else {
-            //check the else if statements
-            for (Map.Entry<BoolNode, List<ProgramNode>> map : elifMap.entrySet()){
-                if (map.getKey().evaluate(robot)){
-                    for (ProgramNode child : map.getValue()){
-                        child.execute(robot);
-                    } 
-                }else {
-                    //skips to the next else if statement to avoid returning and skipping the else
-                    continue;
+        robot.countInstruction();
+        //run the block of the first condition that holds
+        for (int i = 0; i < guards.length; i++){
+            if (guards[i].evaluate(robot)){
+                for (ProgramNode child : bodies[i]){
+                    child.execute(robot);
                 }
-                //returns and skip the else, if one of the conditions are true
                 return;
             }
+        }
 
-            //execute the else statement
-            for (ProgramNode child : elseNodes){
-                child.execute(robot);
-            }
+        //execute the else statement
+        for (ProgramNode child : elseNodes){
+            child.execute(robot);
         }
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitIf(guards, bodies, elseNodes, arg); }
+
+    /** See Parser.blocks() */
+    List<List<ProgramNode>> blocks() {
+        List<List<ProgramNode>> blocks = new ArrayList<>();
+        for (ProgramNode[] body : bodies) blocks.add(Arrays.asList(body));
+        if (elseNodes.length > 0) blocks.add(Arrays.asList(elseNodes));
+        return blocks;
+    }
+
+    /** See Parser.withBlocks() */
+    If withBlocks(List<List<ProgramNode>> blocks) {
+        int n = guards.length;
+        return new If(blocks.get(0), Arrays.asList(guards).subList(1, n), blocks.subList(1, n),
+                      n < blocks.size() ? blocks.get(n) : List.of(), guards[0]);
+    }
+
     @Override
     public String toString(){
-        return "if " + bool.toString() + ifNodes.toString() + " else " + elseNodes.toString();
+        String str = "if " + guards[0].toString() + Arrays.toString(bodies[0]);
+        for (int i = 1; i < guards.length; i++){
+            str += " elif " + guards[i].toString() + Arrays.toString(bodies[i]);
+        }
+        return str + " else " + Arrays.toString(elseNodes);
     }
 }
 
@@ -722,13 +983,18 @@ class While implements ProgramNode{
 
     @Override
     public void execute(Robot robot) {
+        robot.countInstruction();
         while (bool.evaluate(robot)){
             for (ProgramNode child : cNodes){
                 child.execute(robot);
             }
+            robot.safepoint();
         }
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitWhile(bool, cNodes, arg); }
+
     @Override
     public String toString(){
         return "(While " + bool.toString() + cNodes.toString() + ")";
@@ -752,9 +1018,13 @@ class Loop implements ProgramNode{
             for (ProgramNode child : cNodes){
                 child.execute(robot);
             }
+            robot.safepoint();
         }
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitLoop(cNodes, arg); }
+
     @Override
     public String toString(){
         return "(Loop " + cNodes.toString() + ")";
@@ -777,6 +1047,9 @@ class Condition implements BoolNode{
         return cNode.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return cNode.accept(v, arg); }
+
     @Override
     public String toString(){
         if (cNode != null){return cNode.toString();}
@@ -791,17 +1064,23 @@ class Condition implements BoolNode{
 class Equal implements BoolNode {
     private IntNode first;
     private IntNode second;
+    private int size;
 
     public Equal(IntNode first, IntNode second){
         this.first = first;
         this.second = second;
+        this.size = 1 + first.size() + second.size();
     }
 
     @Override
     public boolean evaluate(Robot r) {
+        r.countInstructions(size);
         return first.evaluate(r) == second.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitComparison("eq", first, second, arg); }
+
     @Override
     public String toString(){
         return String.format("(%s == %s)", first.toString(), second.toString());
@@ -815,17 +1094,23 @@ class Equal implements BoolNode {
 class GreaterThan implements BoolNode {
     private IntNode first;
     private IntNode second;
+    private int size;
 
     public GreaterThan(IntNode first, IntNode second){
         this.first = first;
         this.second = second;
+        this.size = 1 + first.size() + second.size();
     }
 
     @Override
     public boolean evaluate(Robot r) {
+        r.countInstructions(size);
         return first.evaluate(r) > second.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitComparison("gt", first, second, arg); }
+
     @Override
     public String toString(){
         return String.format("(%s > %s)", first.toString(), second.toString());
@@ -839,17 +1124,23 @@ class GreaterThan implements BoolNode {
 class LesserThan implements BoolNode {
     private IntNode first;
     private IntNode second;
+    private int size;
 
     public LesserThan(IntNode first, IntNode second){
         this.first = first;
         this.second = second;
+        this.size = 1 + first.size() + second.size();
     }
 
     @Override
     public boolean evaluate(Robot r) {
+        r.countInstructions(size);
         return first.evaluate(r) < second.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitComparison("lt", first, second, arg); }
+
     @Override
     public String toString(){
         return String.format("(%s < %s)", first.toString(), second.toString());
@@ -866,6 +1157,9 @@ class FuelLeft implements IntNode{
         return r.getFuel();
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitSensor("fuelLeft", arg); }
+
     @Override
     public String toString(){
         return "fuelLeft";
@@ -882,6 +1176,9 @@ class OppLR implements IntNode{
         return r.getOpponentLR();
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitSensor("oppLR", arg); }
+
     @Override
     public String toString(){
         return "OppLR";
@@ -898,6 +1195,9 @@ class OppFB implements IntNode{
         return r.getOpponentFB();
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitSensor("oppFB", arg); }
+
     @Override
     public String toString(){
         return "OppFB";
@@ -914,6 +1214,9 @@ class NumBarrels implements IntNode{
         return r.numBarrels();
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitSensor("numBarrels", arg); }
+
     @Override
     public String toString(){
         return "numBarrels";
@@ -930,6 +1233,9 @@ class BarrelLR implements IntNode{
         this.count = count;
     }
 
+    @Override
+    public int size() { return 1 + count.size(); }
+
     @Override
     public int evaluate(Robot r) {
         int num = count.evaluate(r);
@@ -940,6 +1246,9 @@ class BarrelLR implements IntNode{
         }
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitBarrel("barrelLR", count, arg); }
+
     @Override
     public String toString(){
         return "BarrelLR";
@@ -956,6 +1265,9 @@ class BarrelFB implements IntNode{
         this.count = count;
     }
 
+    @Override
+    public int size() { return 1 + count.size(); }
+
     @Override
     public int evaluate(Robot r) {
         int num = count.evaluate(r);
@@ -966,12 +1278,53 @@ class BarrelFB implements IntNode{
         }
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitBarrel("barrelFB", count, arg); }
+
     @Override
     public String toString(){
         return "BarrelFB";
     }
 }
 
+/**
+ * Returns the number of moves to the nearest barrel, going around the opponent
+ */
+class BarrelDist implements IntNode{
+
+    @Override
+    public int evaluate(Robot r) {
+        return r.getBarrelDistance();
+    }
+
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitSensor("barrelDist", arg); }
+
+    @Override
+    public String toString(){
+        return "BarrelDist";
+    }
+}
+
+/**
+ * Returns which way to step first towards the nearest barrel
+ */
+class BarrelDir implements IntNode{
+
+    @Override
+    public int evaluate(Robot r) {
+        return r.getBarrelDirection();
+    }
+
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitSensor("barrelDir", arg); }
+
+    @Override
+    public String toString(){
+        return "BarrelDir";
+    }
+}
+
 /**
  * Returns the distance to the wall of the robot
  */
@@ -982,6 +1335,9 @@ class WallDist implements IntNode{
         return r.getDistanceToWall();
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitSensor("wallDist", arg); }
+
     @Override
     public String toString(){
         return "WallDist";
@@ -1003,6 +1359,13 @@ class Num implements IntNode{
         return num;
     }
 
+    public int getValue() {
+        return num;
+    }
+
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitNumber(num, arg); }
+
     @Override
     public String toString(){
         return "WallDist";
@@ -1014,17 +1377,25 @@ class Num implements IntNode{
  */
 class Add implements IntNode{
     IntNode int1, int2;
+    private int size;
 
     public Add(IntNode int1, IntNode int2){
         this.int1 = int1;
         this.int2 = int2;
+        this.size = 1 + int1.size() + int2.size();
     }
 
+    @Override
+    public int size() { return size; }
+
     @Override
     public int evaluate(Robot r) {
         return int1.evaluate(r) + int2.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitOperation("add", int1, int2, arg); }
+
     @Override
     public String toString(){
         return String.format("%s + %s", int1.toString(), int2.toString());
@@ -1036,17 +1407,25 @@ class Add implements IntNode{
  */
 class Subtract implements IntNode{
     IntNode int1, int2;
+    private int size;
 
     public Subtract(IntNode int1, IntNode int2){
         this.int1 = int1;
         this.int2 = int2;
+        this.size = 1 + int1.size() + int2.size();
     }
 
+    @Override
+    public int size() { return size; }
+
     @Override
     public int evaluate(Robot r) {
         return int1.evaluate(r) - int2.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitOperation("sub", int1, int2, arg); }
+
     @Override
     public String toString(){
         return String.format("(%s - %s)", int1.toString(), int2.toString());
@@ -1058,17 +1437,25 @@ class Subtract implements IntNode{
  */
 class Mulitiply implements IntNode{
     IntNode int1, int2;
+    private int size;
 
     public Mulitiply(IntNode int1, IntNode int2){
         this.int1 = int1;
         this.int2 = int2;
+        this.size = 1 + int1.size() + int2.size();
     }
 
+    @Override
+    public int size() { return size; }
+
     @Override
     public int evaluate(Robot r) {
         return int1.evaluate(r) * int2.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitOperation("mul", int1, int2, arg); }
+
     @Override
     public String toString(){
         return String.format("(%s * %s)", int1.toString(), int2.toString());
@@ -1080,17 +1467,25 @@ class Mulitiply implements IntNode{
  */
 class Divide implements IntNode{
     IntNode int1, int2;
+    private int size;
 
     public Divide(IntNode int1, IntNode int2){
         this.int1 = int1;
         this.int2 = int2;
+        this.size = 1 + int1.size() + int2.size();
     }
 
+    @Override
+    public int size() { return size; }
+
     @Override
     public int evaluate(Robot r) {
         return int1.evaluate(r) / int2.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitOperation("div", int1, int2, arg); }
+
     @Override
     public String toString(){
         return String.format("(%s / %s)", int1.toString(), int2.toString());
@@ -1111,9 +1506,13 @@ class And implements BoolNode {
 
     @Override
     public boolean evaluate(Robot r) {
+        r.countInstruction();
         return first.evaluate(r) && second.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitLogic("and", first, second, arg); }
+
     @Override
     public String toString(){
         return "and";
@@ -1134,9 +1533,13 @@ class Or implements BoolNode {
 
     @Override
     public boolean evaluate(Robot r) {
+        r.countInstruction();
         return first.evaluate(r) || second.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitLogic("or", first, second, arg); }
+
     @Override
     public String toString(){
         return "or";
@@ -1155,9 +1558,13 @@ class Not implements BoolNode {
 
     @Override
     public boolean evaluate(Robot r) {
+        r.countInstruction();
         return !first.evaluate(r);
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitNot(first, arg); }
+
     @Override
     public String toString(){
         return "not";
@@ -1178,9 +1585,13 @@ class SetVariable implements ProgramNode {
 
     @Override
     public void execute(Robot robot) {
-        Variable.add(key, value.evaluate(robot));
+        robot.countInstructions(1 + value.size());
+        robot.setVariable(key, value.evaluate(robot));
     }
 
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitAssign(key, value, arg); }
+
     @Override
     public String toString(){
         return(String.format("Set Variable: %s", key));
@@ -1199,32 +1610,15 @@ class useVariable implements IntNode{
 
     @Override
     public int evaluate(Robot r) {
-        return Variable.get(key);
+        return r.getVariable(key);
     }
     
-    @Override
-    public String toString(){
-        return(String.format("Use Variable: %s", key));
-    }
-}
 
-/**
- * Stores static vairables that can be accessed anywhere within the abstract syntax tree
- */
-class Variable{
-    private static Map<String, Integer> variable = new HashMap<>();
-
-    public static void add(String key, int value){
-        variable.put(key, value);
-    }
-
-    public static int get(String key){
-        if (variable.keySet().contains(key)){ return variable.get(key); }
-        else { add(key, 0); return 0;}
-    }
+    @Override
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg) { return v.visitVariable(key, arg); }
 
     @Override
     public String toString(){
-        return(String.format("All Variable: %s", variable.toString()));
+        return(String.format("Use Variable: %s", key));
     }
-}
\ No newline at end of file
+}
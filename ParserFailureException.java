@@ -1,6 +1,25 @@
 @SuppressWarnings("serial")
 public class ParserFailureException extends RuntimeException {
+	private final long position;
+
 	public ParserFailureException(String msg) {
+		this(msg, -1);
+	}
+
+	/**
+	 * @param position the character offset in the source where parsing
+	 *        failed, or -1 if unknown
+	 */
+	public ParserFailureException(String msg, long position) {
 		super(msg);
+		this.position = position;
+	}
+
+	/**
+	 * @return the character offset in the source where parsing failed, or
+	 *         -1 if the source does not track positions
+	 */
+	public long getPosition() {
+		return position;
 	}
 }
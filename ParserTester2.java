@@ -69,7 +69,7 @@ public class ParserTester2{
 
 
 
-    private static final String[][][] programs = new String[][][]{
+    static final String[][][] programs = new String[][][]{
         {//STAGE 0
             {"VALID", "move;",  "move action"},
             {"VALID", "turnL;",  "turnL action"},
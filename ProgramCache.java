@@ -0,0 +1,488 @@
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Instant;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Deque;
+import java.util.HashMap;
+import java.util.HexFormat;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Loads robot programs without parsing the same source twice. Programs are
+ * looked up by a hash of their source, first among those already loaded by
+ * this process and then among the .progc files saved by earlier ones, which
+ * hold the parsed program in a compact binary form that is read back without
+ * any tokenising or backtracking. Only a source that has never been seen
+ * before is parsed, and its .progc is written for next time, unless it came
+ * from somewhere that could send any number of programs, such as the network.
+ * Both are bounded: the process keeps the CACHE_SIZE programs it used last,
+ * and the directory the SAVED files it used last.
+ *
+ * Parser errors are not cached, so a program that fails to parse is parsed,
+ * and fails, each time it is loaded.
+ */
+public class ProgramCache {
+
+    /** Where .progc files are kept. Nothing is saved if its parent is missing. */
+    static Path directory = Paths.get(RoboGame.CODE_DIRECTORY, ".progc");
+
+    // the first bytes of every .progc file; the version changes whenever the tags do
+    static final byte[] MAGIC = { 'P', 'R', 'O', 'G', 'C', 1 };
+
+    private static final int CACHE_SIZE = 256;
+    private static final int SAVED = 1024;
+
+    // recently used programs by the hash of their source, least recently used first
+    private static final Map<String, ProgramNode> programs = Collections.synchronizedMap(
+        new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, ProgramNode> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    // looking a digest up costs more than hashing a program with it
+    private static final ThreadLocal<MessageDigest> DIGEST = ThreadLocal.withInitial(() -> {
+        try {
+            return MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException("every JVM has SHA-256", e);
+        }
+    });
+
+    private ProgramCache() {
+    }
+
+    /**
+     * Loads a program file by mapping it into memory.
+     * @return the program, or null if the file holds an empty program
+     */
+    public static ProgramNode load(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            return load(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), file.toString());
+        }
+    }
+
+    /**
+     * Loads the program whose source is in the buffer, which is left as it
+     * was, and saves its .progc if it had to be parsed.
+     * @param name where the source came from, for recordings, or null
+     * @return the program, or null if the source is an empty program
+     */
+    public static ProgramNode load(ByteBuffer source, String name) {
+        return load(source, name, true);
+    }
+
+    /**
+     * Loads the program whose source is in the buffer, which is left as it was.
+     * @param name where the source came from, for recordings, or null
+     * @param save whether to save its .progc if it had to be parsed
+     * @return the program, or null if the source is an empty program
+     */
+    public static ProgramNode load(ByteBuffer source, String name, boolean save) {
+        byte[] hash = hash(source);
+        String key = HexFormat.of().formatHex(hash);
+        ProgramNode prog = programs.get(key);
+        if (prog != null) return prog;
+        Path saved = directory.resolve(key + ".progc");
+        prog = read(saved, hash);
+        if (prog == null) {
+            prog = new Parser().parse(new ProgramLexer(source.duplicate()), name);
+            if (prog == null) return null;
+            if (save) save(prog, saved, hash);
+        }
+        programs.put(key, prog);
+        return prog;
+    }
+
+    static byte[] hash(ByteBuffer source) {
+        MessageDigest digest = DIGEST.get();
+        digest.update(source.duplicate());
+        return digest.digest();
+    }
+
+    /**
+     * @return the program saved in the file, or null if there is none or it
+     * is not a whole .progc for this hash
+     */
+    private static ProgramNode read(Path file, byte[] hash) {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            ProgramNode prog = decode(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()), hash);
+            // so that prune() keeps the files in use
+            if (prog != null) Files.setLastModifiedTime(file, FileTime.from(Instant.now()));
+            return prog;
+        } catch (IOException e) {
+            // not saved yet or unreadable; parse the source again
+            return null;
+        }
+    }
+
+    /**
+     * @return the program in the contents of a .progc file, or null if they
+     * are not a whole .progc for this hash
+     */
+    static ProgramNode decode(ByteBuffer in, byte[] hash) {
+        try {
+            byte[] header = new byte[MAGIC.length + hash.length];
+            in.get(header);
+            if (!Arrays.equals(header, 0, MAGIC.length, MAGIC, 0, MAGIC.length)
+                || !Arrays.equals(header, MAGIC.length, header.length, hash, 0, hash.length)) {
+                return null;
+            }
+            return ProgramDecoder.decode(in);
+        } catch (RuntimeException e) {
+            // cut short, or written by something else
+            return null;
+        }
+    }
+
+    /**
+     * @return the contents of the .progc file for the program with this hash
+     */
+    static byte[] encode(ProgramNode prog, byte[] hash) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        out.writeBytes(MAGIC);
+        out.writeBytes(hash);
+        ProgramEncoder.encode(prog, out);
+        return out.toByteArray();
+    }
+
+    /**
+     * Saves the program, if the directory is there to save it in. The file
+     * is written under another name and moved into place, so other
+     * processes never see half of it.
+     */
+    private static void save(ProgramNode prog, Path file, byte[] hash) {
+        Path parent = directory.toAbsolutePath().getParent();
+        if (parent == null || !Files.isDirectory(parent)) return;
+        try {
+            Files.createDirectories(directory);
+            Path temp = Files.createTempFile(directory, null, ".tmp");
+            try {
+                Files.write(temp, encode(prog, hash));
+                Files.move(temp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+            } finally {
+                Files.deleteIfExists(temp);
+            }
+            prune();
+        } catch (IOException e) {
+            // the cache is only an optimisation; the next load will parse it again
+        }
+    }
+
+    /**
+     * Deletes the .progc files used least recently, by their modification
+     * times, until there are no more than SAVED.
+     */
+    private static void prune() throws IOException {
+        List<Path> files = new ArrayList<>();
+        Map<Path, FileTime> used = new HashMap<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.progc")) {
+            for (Path file : stream) files.add(file);
+        }
+        if (files.size() <= SAVED) return;
+        for (Path file : files) {
+            try {
+                used.put(file, Files.getLastModifiedTime(file));
+            } catch (IOException e) {
+                // deleted by another process
+                used.put(file, FileTime.fromMillis(0));
+            }
+        }
+        files.sort(Comparator.comparing(used::get));
+        for (Path file : files.subList(0, files.size() - SAVED)) {
+            Files.deleteIfExists(file);
+        }
+    }
+}
+
+/**
+ * The tags of the .progc format, one for each kind of node, named by the
+ * words of the language (with assign, num and var for the nodes that have
+ * no word). Adding or reordering them means changing the version in the
+ * magic number.
+ */
+final class ProgramTags {
+    static final String[] WORDS = {
+        "prog", "turnL", "turnR", "turnAround", "takeFuel", "shieldOn", "shieldOff", "move", "wait",
+        "if", "while", "loop", "assign", "lt", "gt", "eq", "and", "or", "not",
+        "num", "var", "fuelLeft", "oppLR", "oppFB", "numBarrels", "wallDist", "barrelDist", "barrelDir",
+        "barrelLR", "barrelFB", "add", "sub", "mul", "div",
+    };
+
+    static final Map<String, Integer> TAGS = new HashMap<>();
+    static {
+        for (int i = 0; i < WORDS.length; i++) TAGS.put(WORDS[i], i);
+    }
+
+    private ProgramTags() {
+    }
+}
+
+/**
+ * Writes a program in postfix order: each node's parts come before its tag,
+ * which is followed by whatever the decoder needs to put the node back
+ * together, such as how many statements each block has, as zigzag varints.
+ * Like the printer, the walk keeps its own stack rather than recursing.
+ */
+final class ProgramEncoder implements ProgramVisitor<Void, Void> {
+
+    private final ByteArrayOutputStream out;
+    // what is left to write, next on top: nodes, the rest of blocks, and
+    // tags (String), numbers (Integer) and names (byte[]) to write as they are
+    private final Deque<Object> pending = new ArrayDeque<>();
+
+    private ProgramEncoder(ByteArrayOutputStream out) {
+        this.out = out;
+    }
+
+    static void encode(ProgramNode prog, ByteArrayOutputStream out) {
+        new ProgramEncoder(out).write(prog);
+    }
+
+    private void write(ProgramNode prog) {
+        pending.push(prog);
+        while (!pending.isEmpty()) {
+            Object item = pending.pop();
+            if (item instanceof String) {
+                out.write(ProgramTags.TAGS.get((String) item));
+            } else if (item instanceof Integer) {
+                int n = (Integer) item;
+                int zigzag = (n << 1) ^ (n >> 31);
+                while ((zigzag & ~0x7f) != 0) {
+                    out.write((zigzag & 0x7f) | 0x80);
+                    zigzag >>>= 7;
+                }
+                out.write(zigzag);
+            } else if (item instanceof byte[]) {
+                out.writeBytes((byte[]) item);
+            } else if (item instanceof Iterator) {
+                Iterator<?> block = (Iterator<?>) item;
+                Object statement = block.next();
+                if (block.hasNext()) pending.push(block);
+                pending.push(statement);
+            } else if (item instanceof IntNode) {
+                ((IntNode) item).accept(this, null);
+            } else if (item instanceof BoolNode) {
+                ((BoolNode) item).accept(this, null);
+            } else {
+                ((ProgramNode) item).accept(this, null);
+            }
+        }
+    }
+
+    /** Leaves the items to be written next, in order */
+    private Void then(Object... items) {
+        for (int i = items.length - 1; i >= 0; i--) {
+            pending.push(items[i]);
+        }
+        return null;
+    }
+
+    private Object block(List<ProgramNode> statements) {
+        return statements.isEmpty() ? new byte[0] : statements.iterator();
+    }
+
+    @Override
+    public Void visitProgram(List<ProgramNode> statements, Void arg) {
+        return then(block(statements), "prog", statements.size());
+    }
+
+    @Override
+    public Void visitAction(String action, Void arg) {
+        return then(action);
+    }
+
+    @Override
+    public Void visitRepeatedAction(String action, IntNode times, Void arg) {
+        return then(times, action);
+    }
+
+    @Override
+    public Void visitIf(BoolNode[] guards, ProgramNode[][] bodies, ProgramNode[] elseBody, Void arg) {
+        // pushed from the end: the tag and sizes, then the else block, then each guard and body
+        then(elseBody.length);
+        for (int i = guards.length - 1; i >= 0; i--) then(bodies[i].length);
+        then("if", guards.length);
+        then(block(Arrays.asList(elseBody)));
+        for (int i = guards.length - 1; i >= 0; i--) then(guards[i], block(Arrays.asList(bodies[i])));
+        return null;
+    }
+
+    @Override
+    public Void visitWhile(BoolNode guard, List<ProgramNode> body, Void arg) {
+        return then(guard, block(body), "while", body.size());
+    }
+
+    @Override
+    public Void visitLoop(List<ProgramNode> body, Void arg) {
+        return then(block(body), "loop", body.size());
+    }
+
+    @Override
+    public Void visitAssign(String variable, IntNode value, Void arg) {
+        return then(value, "assign", variable.length(), variable.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public Void visitComparison(String relop, IntNode first, IntNode second, Void arg) {
+        return then(first, second, relop);
+    }
+
+    @Override
+    public Void visitLogic(String op, BoolNode first, BoolNode second, Void arg) {
+        return then(first, second, op);
+    }
+
+    @Override
+    public Void visitNot(BoolNode operand, Void arg) {
+        return then(operand, "not");
+    }
+
+    @Override
+    public Void visitNumber(int value, Void arg) {
+        return then("num", value);
+    }
+
+    @Override
+    public Void visitVariable(String variable, Void arg) {
+        return then("var", variable.length(), variable.getBytes(StandardCharsets.ISO_8859_1));
+    }
+
+    @Override
+    public Void visitSensor(String sensor, Void arg) {
+        return then(sensor);
+    }
+
+    @Override
+    public Void visitBarrel(String sensor, IntNode index, Void arg) {
+        return then(index, sensor);
+    }
+
+    @Override
+    public Void visitOperation(String op, IntNode first, IntNode second, Void arg) {
+        return then(first, second, op);
+    }
+}
+
+/**
+ * Reads back what ProgramEncoder wrote. As the tags are in postfix order,
+ * each node's parts are already on the stack when its tag is read.
+ * Anything that is not a whole program fails with a RuntimeException.
+ */
+final class ProgramDecoder {
+
+    private final ByteBuffer in;
+    private final ArrayList<Object> stack = new ArrayList<>();
+
+    private ProgramDecoder(ByteBuffer in) {
+        this.in = in;
+    }
+
+    static ProgramNode decode(ByteBuffer in) {
+        return new ProgramDecoder(in).read();
+    }
+
+    private ProgramNode read() {
+        String word = null;
+        while (in.hasRemaining()) {
+            word = ProgramTags.WORDS[in.get()];
+            stack.add(switch (word) {
+                case "prog" -> Parser.program(statements(number()));
+                case "turnL", "turnR", "turnAround", "takeFuel", "shieldOn", "shieldOff" -> Parser.action(word);
+                case "move", "wait" -> Parser.repeatedAction(word, pop(IntNode.class));
+                case "if" -> conditional();
+                case "while" -> {
+                    List<ProgramNode> body = statements(number());
+                    yield Parser.whileLoop(pop(BoolNode.class), body);
+                }
+                case "loop" -> Parser.loop(statements(number()));
+                case "assign" -> Parser.assign(name(), pop(IntNode.class));
+                case "lt", "gt", "eq" -> {
+                    IntNode second = pop(IntNode.class), first = pop(IntNode.class);
+                    yield Parser.comparison(word, first, second);
+                }
+                case "and", "or" -> {
+                    BoolNode second = pop(BoolNode.class), first = pop(BoolNode.class);
+                    yield Parser.logic(word, first, second);
+                }
+                case "not" -> Parser.not(pop(BoolNode.class));
+                case "num" -> Parser.number(number());
+                case "var" -> Parser.variable(name());
+                case "barrelLR", "barrelFB" -> Parser.barrel(word, pop(IntNode.class));
+                case "add", "sub", "mul", "div" -> {
+                    IntNode second = pop(IntNode.class), first = pop(IntNode.class);
+                    yield Parser.operation(word, first, second);
+                }
+                default -> Parser.sensor(word);
+            });
+        }
+        // a program is only ever at the top, so it is whole if it ends with one
+        if (stack.size() != 1 || !"prog".equals(word)) throw new IllegalStateException("not a whole program");
+        return pop(ProgramNode.class);
+    }
+
+    private ProgramNode conditional() {
+        int count = number();
+        if (count < 1 || count > stack.size()) throw new IllegalStateException("more guards than nodes");
+        int[] sizes = new int[count];
+        for (int i = 0; i < count; i++) sizes[i] = number();
+        List<ProgramNode> elseBody = statements(number());
+        List<BoolNode> guards = new ArrayList<>();
+        List<List<ProgramNode>> bodies = new ArrayList<>();
+        for (int i = count - 1; i >= 0; i--) {
+            bodies.add(0, statements(sizes[i]));
+            guards.add(0, pop(BoolNode.class));
+        }
+        return Parser.ifChain(guards, bodies, elseBody);
+    }
+
+    private int number() {
+        int zigzag = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = in.get();
+            zigzag |= (b & 0x7f) << shift;
+            if (b >= 0) break;
+        }
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    private String name() {
+        int length = number();
+        if (length < 0 || length > in.remaining()) throw new IllegalStateException("name runs past the end");
+        byte[] bytes = new byte[length];
+        in.get(bytes);
+        return new String(bytes, StandardCharsets.ISO_8859_1);
+    }
+
+    private <T> T pop(Class<T> type) {
+        return type.cast(stack.remove(stack.size() - 1));
+    }
+
+    /** Takes the last count nodes off the stack, in order */
+    private List<ProgramNode> statements(int count) {
+        List<Object> top = stack.subList(stack.size() - count, stack.size());
+        List<ProgramNode> statements = new ArrayList<>(count);
+        for (Object node : top) statements.add((ProgramNode) node);
+        top.clear();
+        return statements;
+    }
+}
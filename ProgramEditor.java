@@ -0,0 +1,163 @@
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.event.ActionEvent;
+import java.awt.event.InputEvent;
+import java.awt.event.KeyEvent;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+
+import javax.swing.AbstractAction;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
+import javax.swing.KeyStroke;
+import javax.swing.SwingUtilities;
+import javax.swing.event.DocumentEvent;
+import javax.swing.event.DocumentListener;
+import javax.swing.text.AbstractDocument;
+import javax.swing.text.BadLocationException;
+import javax.swing.text.DefaultHighlighter;
+import javax.swing.text.Element;
+import javax.swing.text.Highlighter;
+
+/**
+ * A pane for editing a robot program, which parses the program as it is
+ * typed and marks where the parser gave up, with its message underneath.
+ * Only the blocks that have changed are parsed again (see IncrementalParser),
+ * so large programs stay quick to edit.
+ *
+ * Saving (Ctrl+S) writes the file back, and any robot running the program
+ * is given the new one, as the world watches the files its programs came from.
+ */
+@SuppressWarnings("serial")
+public class ProgramEditor extends JPanel {
+
+    private static final Color ERROR_COLOUR = new Color(255, 180, 180);
+
+    private final JLabel title = new JLabel("No program open");
+    private final JTextArea text = new JTextArea();
+    private final JLabel status = new JLabel(" ");
+    private final IncrementalParser parser;
+    private final Highlighter.HighlightPainter errorPainter = new DefaultHighlighter.DefaultHighlightPainter(ERROR_COLOUR);
+    private Object errorHighlight;
+    private File file;
+    private boolean reparsePending;
+
+    public ProgramEditor() {
+        super(new BorderLayout());
+        setPreferredSize(new Dimension(420, WorldPainter.WIDTH));
+        text.setFont(new Font(Font.MONOSPACED, Font.PLAIN, 12));
+        text.setTabSize(4);
+        parser = new IncrementalParser((AbstractDocument) text.getDocument());
+        text.getDocument().addDocumentListener(new DocumentListener() {
+                public void insertUpdate(DocumentEvent e) { reparseLater(); }
+                public void removeUpdate(DocumentEvent e) { reparseLater(); }
+                public void changedUpdate(DocumentEvent e) { }
+            });
+        text.getInputMap().put(KeyStroke.getKeyStroke(KeyEvent.VK_S, InputEvent.CTRL_DOWN_MASK), "save");
+        text.getActionMap().put("save", new AbstractAction() {
+                public void actionPerformed(ActionEvent e) { save(); }
+            });
+
+        add(title, BorderLayout.NORTH);
+        add(new JScrollPane(text), BorderLayout.CENTER);
+        add(status, BorderLayout.SOUTH);
+    }
+
+    /**
+     * Shows the program in the file for editing, in place of the last one.
+     */
+    public void open(File file) {
+        try {
+            String source = new String(Files.readAllBytes(file.toPath()), StandardCharsets.ISO_8859_1);
+            this.file = file;
+            title.setText(file.getName());
+            text.setText(source);
+            text.setCaretPosition(0);
+        } catch (IOException e) {
+            status.setText("Cannot read " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Writes the program back to its file.
+     */
+    public void save() {
+        if (file == null) return;
+        try {
+            Files.write(file.toPath(), text.getText().getBytes(StandardCharsets.ISO_8859_1));
+            title.setText(file.getName());
+        } catch (IOException e) {
+            status.setText("Cannot save " + file.getName() + ": " + e.getMessage());
+        }
+    }
+
+    // typing often changes the document several times at once, so parse once they are all done
+    private void reparseLater() {
+        if (file != null) title.setText(file.getName() + " *");
+        if (reparsePending) return;
+        reparsePending = true;
+        SwingUtilities.invokeLater(() -> {
+                reparsePending = false;
+                reparse();
+            });
+    }
+
+    private void reparse() {
+        parser.reparse();
+        Highlighter highlighter = text.getHighlighter();
+        if (errorHighlight != null) {
+            highlighter.removeHighlight(errorHighlight);
+            errorHighlight = null;
+        }
+        ParserFailureException error = parser.getError();
+        if (error == null) {
+            status.setText("OK");
+            status.setToolTipText(null);
+            return;
+        }
+        String message = error.getMessage();
+        int newline = message.indexOf('\n');
+        String summary = newline < 0 ? message : message.substring(0, newline);
+
+        int length = text.getDocument().getLength();
+        int start = (int) Math.max(0, Math.min(error.getPosition(), length));
+        Element lines = text.getDocument().getDefaultRootElement();
+        int line = lines.getElementIndex(start);
+        int column = start - lines.getElement(line).getStartOffset();
+        status.setText((line + 1) + ":" + (column + 1) + "  " + summary);
+        status.setToolTipText(message);
+
+        // mark the token the parser stopped at, or the last character if it ran out
+        int end = start;
+        if (start == length) {
+            start = Math.max(0, length - 1);
+        } else if (isDelimiter(charAt(start))) {
+            end = start + 1;
+        } else {
+            while (end < length && !isDelimiter(charAt(end)) && !Character.isWhitespace(charAt(end))) end++;
+        }
+        try {
+            errorHighlight = highlighter.addHighlight(start, end, errorPainter);
+        } catch (BadLocationException e) {
+            // nothing to mark
+        }
+    }
+
+    private char charAt(int offset) {
+        try {
+            return text.getDocument().getText(offset, 1).charAt(0);
+        } catch (BadLocationException e) {
+            return ' ';
+        }
+    }
+
+    private static boolean isDelimiter(char c) {
+        return "{}(),;".indexOf(c) >= 0;
+    }
+}
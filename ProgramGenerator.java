@@ -0,0 +1,360 @@
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.StringWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Generates random programs from the grammar the Parser accepts, for
+ * stress-testing and benchmarking the parser and interpreter.
+ * The same seed and settings always give the same program. Programs are
+ * written straight to a Writer as they are generated, so any size can be
+ * produced without holding it in memory.
+ *
+ * In invalid mode one statement, at a random point, is given a syntax error
+ * of the kinds found in the s*_bad*.prog files.
+ *
+ * Usage: java ProgramGenerator [-n size] [-d depth] [-e exprDepth] [-r sensorRate]
+ *            [-v variables] [-c compoundRate] [-x] [-s seed] [-k count] [-o output]
+ * With -k, count programs are written to the output directory as gen0.prog,
+ * gen1.prog, ..., using seeds seed, seed+1, ...; otherwise one program is
+ * written to the output file, or to standard output.
+ */
+public class ProgramGenerator {
+
+    private static final String[] ACTIONS = { "turnL", "turnR", "takeFuel", "turnAround", "shieldOn", "shieldOff" };
+    private static final String[] SENSORS = { "fuelLeft", "oppLR", "oppFB", "numBarrels", "wallDist", "barrelLR", "barrelFB",
+                                              "barrelDist", "barrelDir" };
+    private static final String[] RELOPS = { "lt", "gt", "eq" };
+    private static final String[] OPS = { "add", "sub", "mul", "div" };
+
+    private static final int MAX_BLOCK = 4;
+    private static final int MAX_ELIFS = 2;
+    private static final int MAX_NUM = 20;
+    private static final int FLUSH_AT = 1 << 16;
+
+    private enum Fault { MISSING_SEMICOLON, UNKNOWN_ACTION, EMPTY_BLOCK, BAD_CONDITION, MISSING_PAREN, ASSIGN_IN_EXPR }
+
+    // The knobs
+    /** Approximate number of characters in each program */
+    public long size = 4096;
+    /** How deep blocks may be nested */
+    public int depth = 6;
+    /** How deep expressions and conditions may be nested */
+    public int exprDepth = 3;
+    /** Chance that an expression leaf is a sensor rather than a number or variable */
+    public double sensorRate = 0.5;
+    /** Number of distinct variables used; none are used if 0 */
+    public int variables = 3;
+    /** Chance that a statement is a loop, if or while rather than an action or assignment */
+    public double compoundRate = 0.3;
+    /** Whether each program is given one syntax error */
+    public boolean invalid = false;
+
+    // The state of the program being generated
+    private SplittableRandom rand;
+    private Writer out;
+    private final StringBuilder buffer = new StringBuilder(FLUSH_AT + 1024);
+    private long flushed, faultAt;
+    private boolean faultPending;
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        ProgramGenerator settings = new ProgramGenerator();
+        long seed = 1;
+        int count = 0;
+        String output = null;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-n" -> settings.size = Long.parseLong(args[++i]);
+            case "-d" -> settings.depth = Integer.parseInt(args[++i]);
+            case "-e" -> settings.exprDepth = Integer.parseInt(args[++i]);
+            case "-r" -> settings.sensorRate = Double.parseDouble(args[++i]);
+            case "-v" -> settings.variables = Integer.parseInt(args[++i]);
+            case "-c" -> settings.compoundRate = Double.parseDouble(args[++i]);
+            case "-x" -> settings.invalid = true;
+            case "-s" -> seed = Long.parseLong(args[++i]);
+            case "-k" -> count = Integer.parseInt(args[++i]);
+            case "-o" -> output = args[++i];
+            default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+
+        if (count == 0) {
+            if (output == null) {
+                Writer stdout = new OutputStreamWriter(System.out, StandardCharsets.US_ASCII);
+                settings.copy().generate(seed, stdout);
+                stdout.flush();
+            } else {
+                settings.copy().write(seed, Paths.get(output));
+            }
+            return;
+        }
+
+        Path directory = Paths.get(output == null ? "." : output);
+        Files.createDirectories(directory);
+        // generation recurses once per level of nesting, so give it room
+        ExecutorService pool = Executors.newFixedThreadPool(Runtime.getRuntime().availableProcessors(),
+                                                            r -> new Thread(null, r, "generator", 256L << 20));
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (int i = 0; i < count; i++) {
+                Path file = directory.resolve("gen" + i + ".prog");
+                long fileSeed = seed + i;
+                pending.add(pool.submit(() -> {
+                    settings.copy().write(fileSeed, file);
+                    return null;
+                }));
+            }
+            for (Future<?> f : pending) f.get();
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * A generator with the same settings, as each one can only generate one
+     * program at a time.
+     */
+    public ProgramGenerator copy() {
+        ProgramGenerator g = new ProgramGenerator();
+        g.size = size;
+        g.depth = depth;
+        g.exprDepth = exprDepth;
+        g.sensorRate = sensorRate;
+        g.variables = variables;
+        g.compoundRate = compoundRate;
+        g.invalid = invalid;
+        return g;
+    }
+
+    /**
+     * Writes the program for the given seed to a file.
+     */
+    public void write(long seed, Path file) throws IOException {
+        try (Writer w = new OutputStreamWriter(new BufferedOutputStream(new FileOutputStream(file.toFile()), FLUSH_AT),
+                                               StandardCharsets.US_ASCII)) {
+            generate(seed, w);
+        }
+    }
+
+    /**
+     * Returns the program for the given seed as a string.
+     */
+    public String generate(long seed) {
+        StringWriter w = new StringWriter();
+        try {
+            generate(seed, w);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return w.toString();
+    }
+
+    /**
+     * Writes the program for the given seed, statement by statement, until
+     * it is about size characters long.
+     */
+    public void generate(long seed, Writer out) throws IOException {
+        this.rand = new SplittableRandom(seed);
+        this.out = out;
+        this.flushed = 0;
+        this.faultPending = invalid;
+        this.faultAt = invalid ? rand.nextLong(Math.max(1, size)) : -1;
+        buffer.setLength(0);
+        try {
+            do {
+                stmt(0);
+                newline(0);
+            } while (written() < size);
+            if (faultPending) {
+                // the error was meant to go in a statement that had already started
+                faultAt = 0;
+                stmt(0);
+                newline(0);
+            }
+            flush();
+        } finally {
+            this.out = null;
+        }
+    }
+
+    private long written() {
+        return flushed + buffer.length();
+    }
+
+    private void flush() throws IOException {
+        out.append(buffer);
+        flushed += buffer.length();
+        buffer.setLength(0);
+    }
+
+    private ProgramGenerator emit(String s) throws IOException {
+        buffer.append(s);
+        if (buffer.length() >= FLUSH_AT) flush();
+        return this;
+    }
+
+    private void newline(int level) throws IOException {
+        buffer.append('\n');
+        for (int i = 0; i < level; i++) buffer.append("  ");
+        if (buffer.length() >= FLUSH_AT) flush();
+    }
+
+    /**
+     * Returns the fault to give the statement starting now, if any.
+     */
+    private Fault takeFault() {
+        if (!faultPending || written() < faultAt) return null;
+        faultPending = false;
+        Fault[] faults = Fault.values();
+        Fault f = faults[rand.nextInt(faults.length)];
+        // there is nothing to assign to without variables
+        return (f == Fault.ASSIGN_IN_EXPR && variables == 0) ? Fault.MISSING_SEMICOLON : f;
+    }
+
+    //----------------------------------------------------------------
+    // One method per grammar rule
+
+    private void stmt(int level) throws IOException {
+        Fault fault = takeFault();
+        boolean compound = level < depth && written() < size && rand.nextDouble() < compoundRate;
+        if (fault == Fault.UNKNOWN_ACTION) {
+            emit("jump;");
+        } else if (fault == Fault.MISSING_SEMICOLON) {
+            emit(ACTIONS[rand.nextInt(ACTIONS.length)]).emit(" ");
+        } else if (fault == Fault.ASSIGN_IN_EXPR) {
+            emit(variable()).emit(" = add(").emit(variable()).emit(" = 1, 1);");
+        } else if (compound || fault != null) {
+            // errors in a condition need a statement that has one
+            boolean guarded = fault == Fault.BAD_CONDITION || fault == Fault.MISSING_PAREN;
+            switch (guarded ? 1 + rand.nextInt(2) : rand.nextInt(3)) {
+            case 0 -> {
+                emit("loop ");
+                block(level, fault == Fault.EMPTY_BLOCK);
+            }
+            case 1 -> {
+                emit("while ");
+                guard(fault);
+                block(level, fault == Fault.EMPTY_BLOCK);
+            }
+            default -> {
+                emit("if ");
+                guard(fault);
+                block(level, fault == Fault.EMPTY_BLOCK);
+                int elifs = rand.nextInt(MAX_ELIFS + 1);
+                for (int i = 0; i < elifs; i++) {
+                    emit(" elif ");
+                    guard(null);
+                    block(level, false);
+                }
+                if (rand.nextBoolean()) {
+                    emit(" else ");
+                    block(level, false);
+                }
+            }
+            }
+        } else if (variables > 0 && rand.nextInt(4) == 0) {
+            emit(variable()).emit(" = ");
+            expr(0);
+            emit(";");
+        } else {
+            act();
+        }
+    }
+
+    private void act() throws IOException {
+        int choice = rand.nextInt(ACTIONS.length + 2);
+        if (choice < ACTIONS.length) {
+            emit(ACTIONS[choice]);
+        } else {
+            emit(choice == ACTIONS.length ? "move" : "wait");
+            if (rand.nextBoolean()) {
+                emit("(");
+                expr(0);
+                emit(")");
+            }
+        }
+        emit(";");
+    }
+
+    private void block(int level, boolean empty) throws IOException {
+        emit("{");
+        if (!empty) {
+            int count = (written() < size) ? 1 + rand.nextInt(MAX_BLOCK) : 1;
+            for (int i = 0; i < count; i++) {
+                newline(level + 1);
+                stmt(level + 1);
+            }
+            newline(level);
+        }
+        emit("}");
+    }
+
+    private void guard(Fault fault) throws IOException {
+        emit("(");
+        if (fault == Fault.BAD_CONDITION) {
+            expr(0);
+        } else {
+            cond(0);
+        }
+        if (fault != Fault.MISSING_PAREN) emit(")");
+        emit(" ");
+    }
+
+    private void cond(int level) throws IOException {
+        int choice = (level < exprDepth) ? rand.nextInt(6) : 0;
+        if (choice < 3) {
+            emit(RELOPS[rand.nextInt(RELOPS.length)]).emit("(");
+            expr(level + 1);
+            emit(", ");
+            expr(level + 1);
+        } else if (choice == 5) {
+            emit("not(");
+            cond(level + 1);
+        } else {
+            emit(choice == 3 ? "and(" : "or(");
+            cond(level + 1);
+            emit(", ");
+            cond(level + 1);
+        }
+        emit(")");
+    }
+
+    private void expr(int level) throws IOException {
+        if (level < exprDepth && rand.nextInt(3) == 0) {
+            emit(OPS[rand.nextInt(OPS.length)]).emit("(");
+            expr(level + 1);
+            emit(", ");
+            expr(level + 1);
+            emit(")");
+        } else if (rand.nextDouble() < sensorRate) {
+            String sensor = SENSORS[rand.nextInt(SENSORS.length)];
+            emit(sensor);
+            if ((sensor.equals("barrelLR") || sensor.equals("barrelFB")) && rand.nextBoolean()) {
+                emit("(");
+                expr(level + 1);
+                emit(")");
+            }
+        } else if (variables > 0 && rand.nextBoolean()) {
+            emit(variable());
+        } else {
+            emit(Integer.toString(rand.nextInt(2 * MAX_NUM + 1) - MAX_NUM));
+        }
+    }
+
+    private String variable() {
+        return "$v" + rand.nextInt(variables);
+    }
+}
@@ -0,0 +1,152 @@
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * Splits a program into tokens straight from its bytes, reading a channel
+ * through a small fixed buffer (or walking a memory-mapped file), so the
+ * source is never held in memory as a string however large it is.
+ * Programs are plain ASCII; any other byte ends up in a token the parser
+ * will reject.
+ */
+public class ProgramLexer implements TokenStream {
+
+    private static final int BUFFER_SIZE = 1 << 16;
+
+    private final ReadableByteChannel channel;
+    private final ByteBuffer buffer;
+    private final StringBuilder token = new StringBuilder();
+    private boolean eof;
+    private String peeked;
+    private long offset, peekedOffset;
+    private int line = 1, peekedLine;
+
+    /**
+     * Reads tokens from a channel, a buffer at a time.
+     */
+    public ProgramLexer(ReadableByteChannel channel) {
+        this.channel = channel;
+        this.buffer = ByteBuffer.allocate(BUFFER_SIZE);
+        buffer.flip();
+    }
+
+    /**
+     * Reads tokens from a buffer holding the whole program, such as a
+     * memory-mapped file.
+     */
+    public ProgramLexer(ByteBuffer source) {
+        this.channel = null;
+        this.buffer = source;
+        this.eof = true;
+    }
+
+    @Override
+    public boolean hasNext() {
+        return peek() != null;
+    }
+
+    @Override
+    public String peek() {
+        if (peeked == null) {
+            peeked = read();
+        }
+        return peeked;
+    }
+
+    @Override
+    public String next() {
+        String next = peek();
+        peeked = null;
+        return next;
+    }
+
+    @Override
+    public long position() {
+        peek();
+        return peekedOffset;
+    }
+
+    @Override
+    public int line() {
+        peek();
+        return peekedLine;
+    }
+
+    /**
+     * Reads the next token from the source, or returns null at the end.
+     */
+    private String read() {
+        int c = skipWhitespace();
+        peekedOffset = offset;
+        peekedLine = line;
+        if (c < 0) {
+            return null;
+        }
+        if (isDelimiter(c)) {
+            advance();
+            return String.valueOf((char) c);
+        }
+        token.setLength(0);
+        while (c >= 0 && !isDelimiter(c) && !isWhitespace(c)) {
+            token.append((char) c);
+            advance();
+            c = current();
+        }
+        return token.toString();
+    }
+
+    private int skipWhitespace() {
+        int c = current();
+        while (c >= 0 && isWhitespace(c)) {
+            if (c == '\n') line++;
+            advance();
+            c = current();
+        }
+        return c;
+    }
+
+    /**
+     * @return the byte at the current position, or -1 at the end
+     */
+    private int current() {
+        if (!buffer.hasRemaining() && !fill()) {
+            return -1;
+        }
+        return buffer.get(buffer.position()) & 0xFF;
+    }
+
+    private void advance() {
+        buffer.position(buffer.position() + 1);
+        offset++;
+    }
+
+    private boolean fill() {
+        if (eof) {
+            return false;
+        }
+        try {
+            buffer.clear();
+            int read = 0;
+            while (read == 0) {
+                read = channel.read(buffer);
+            }
+            buffer.flip();
+            if (read < 0) {
+                eof = true;
+                return false;
+            }
+            return true;
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    private static boolean isDelimiter(int c) {
+        return c == '{' || c == '}' || c == '(' || c == ')' || c == ',' || c == ';';
+    }
+
+    private static boolean isWhitespace(int c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\r' || c == '\f' || c == 0x0B;
+    }
+}
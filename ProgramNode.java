@@ -5,4 +5,7 @@
 
 interface ProgramNode {
     public void execute(Robot robot);
+
+    /** Calls the visitor's method for this kind of node (see ProgramVisitor) */
+    public <R, P> R accept(ProgramVisitor<R, P> v, P arg);
 }
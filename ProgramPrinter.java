@@ -0,0 +1,218 @@
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Writes a parsed program out to any Appendable, one token at a time, either
+ * in the language's own syntax, which the parser reads back into the same
+ * program, or with infix operators for people to read. Both put one statement
+ * on a line. Only the form for people indents blocks, and no deeper than
+ * MAX_INDENT levels, so deeply nested programs print in linear space.
+ *
+ * Nothing bigger than a token is built up, and the walk keeps its own stack
+ * of what is left to write instead of recursing, so it holds on to no more
+ * than the current path through the program, and programs nested deeper
+ * than a thread's stack still print.
+ */
+final class ProgramPrinter implements ProgramVisitor<Void, Boolean> {
+
+    private static final String INDENT = "    ";
+    private static final int MAX_INDENT = 16;
+
+    /** Layout marks left on the stack between the tokens */
+    private enum Mark { LINE, OPEN, CLOSE }
+
+    /** An expression or condition, and whether it is an operand of another */
+    private static final class Operand {
+        final Object node;
+        final boolean nested;
+
+        Operand(Object node, boolean nested) {
+            this.node = node;
+            this.nested = nested;
+        }
+    }
+
+    private final Appendable out;
+    private final boolean canonical;
+    // what is left to write, next on top: strings, marks, statements, operands and the rest of blocks
+    private final Deque<Object> pending = new ArrayDeque<>();
+    private int depth;
+
+    private ProgramPrinter(Appendable out, boolean canonical) {
+        this.out = out;
+        this.canonical = canonical;
+    }
+
+    /**
+     * Writes the program in the syntax the parser reads.
+     */
+    static void canonical(ProgramNode prog, Appendable out) throws IOException {
+        new ProgramPrinter(out, true).print(prog);
+    }
+
+    /**
+     * @return the program in the syntax the parser reads
+     */
+    static String canonical(ProgramNode prog) {
+        StringBuilder sb = new StringBuilder();
+        try {
+            canonical(prog, sb);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Writes the program for people to read, with infix operators.
+     */
+    static void pretty(ProgramNode prog, Appendable out) throws IOException {
+        new ProgramPrinter(out, false).print(prog);
+    }
+
+    private void print(ProgramNode prog) throws IOException {
+        pending.push(prog);
+        while (!pending.isEmpty()) {
+            Object item = pending.pop();
+            if (item instanceof String) {
+                out.append((String) item);
+            } else if (item instanceof Mark) {
+                switch ((Mark) item) {
+                    case LINE -> {
+                        if (!canonical) {
+                            for (int i = 0; i < Math.min(depth, MAX_INDENT); i++) out.append(INDENT);
+                        }
+                    }
+                    case OPEN -> depth++;
+                    case CLOSE -> depth--;
+                }
+            } else if (item instanceof Iterator) {
+                Iterator<?> block = (Iterator<?>) item;
+                Object statement = block.next();
+                if (block.hasNext()) pending.push(block);
+                pending.push(statement);
+                pending.push(Mark.LINE);
+            } else if (item instanceof Operand) {
+                Operand operand = (Operand) item;
+                if (operand.node instanceof IntNode) ((IntNode) operand.node).accept(this, operand.nested);
+                else ((BoolNode) operand.node).accept(this, operand.nested);
+            } else {
+                ((ProgramNode) item).accept(this, false);
+            }
+        }
+    }
+
+    /** Leaves the items to be written next, in order */
+    private Void then(Object... items) {
+        for (int i = items.length - 1; i >= 0; i--) {
+            pending.push(items[i]);
+        }
+        return null;
+    }
+
+    private Object block(List<ProgramNode> statements) {
+        return statements.isEmpty() ? "" : statements.iterator();
+    }
+
+    /** An operator over two operands, as op(first, second) or (first op second) */
+    private Void binary(String word, String symbol, Object first, Object second, boolean nested) {
+        if (canonical) {
+            return then(word, "(", new Operand(first, false), ", ", new Operand(second, false), ")");
+        }
+        return then(nested ? "(" : "", new Operand(first, true), " " + symbol + " ", new Operand(second, true),
+                    nested ? ")" : "");
+    }
+
+    @Override
+    public Void visitProgram(List<ProgramNode> statements, Boolean nested) {
+        return then(block(statements));
+    }
+
+    @Override
+    public Void visitAction(String action, Boolean nested) {
+        return then(action, ";\n");
+    }
+
+    @Override
+    public Void visitRepeatedAction(String action, IntNode times, Boolean nested) {
+        return then(action, "(", new Operand(times, false), ");\n");
+    }
+
+    @Override
+    public Void visitIf(BoolNode[] guards, ProgramNode[][] bodies, ProgramNode[] elseBody, Boolean nested) {
+        // pushed from the end, so the else block goes first
+        then("\n");
+        if (elseBody.length > 0) {
+            then(" else {\n", Mark.OPEN, block(Arrays.asList(elseBody)), Mark.CLOSE, Mark.LINE, "}");
+        }
+        for (int i = guards.length - 1; i >= 0; i--) {
+            then(i == 0 ? "if (" : " elif (", new Operand(guards[i], false), ") {\n",
+                 Mark.OPEN, block(Arrays.asList(bodies[i])), Mark.CLOSE, Mark.LINE, "}");
+        }
+        return null;
+    }
+
+    @Override
+    public Void visitWhile(BoolNode guard, List<ProgramNode> body, Boolean nested) {
+        return then("while (", new Operand(guard, false), ") {\n",
+                    Mark.OPEN, block(body), Mark.CLOSE, Mark.LINE, "}\n");
+    }
+
+    @Override
+    public Void visitLoop(List<ProgramNode> body, Boolean nested) {
+        return then("loop {\n", Mark.OPEN, block(body), Mark.CLOSE, Mark.LINE, "}\n");
+    }
+
+    @Override
+    public Void visitAssign(String variable, IntNode value, Boolean nested) {
+        return then(variable, " = ", new Operand(value, false), ";\n");
+    }
+
+    @Override
+    public Void visitComparison(String relop, IntNode first, IntNode second, Boolean nested) {
+        String symbol = relop.equals("lt") ? "<" : relop.equals("gt") ? ">" : "==";
+        return binary(relop, symbol, first, second, nested);
+    }
+
+    @Override
+    public Void visitLogic(String op, BoolNode first, BoolNode second, Boolean nested) {
+        return binary(op, op, first, second, nested);
+    }
+
+    @Override
+    public Void visitNot(BoolNode operand, Boolean nested) {
+        if (canonical) return then("not(", new Operand(operand, false), ")");
+        return then("not ", new Operand(operand, true));
+    }
+
+    @Override
+    public Void visitNumber(int value, Boolean nested) {
+        return then(Integer.toString(value));
+    }
+
+    @Override
+    public Void visitVariable(String variable, Boolean nested) {
+        return then(variable);
+    }
+
+    @Override
+    public Void visitSensor(String sensor, Boolean nested) {
+        return then(sensor);
+    }
+
+    @Override
+    public Void visitBarrel(String sensor, IntNode index, Boolean nested) {
+        if (Parser.isClosestBarrel(index)) return then(sensor);
+        return then(sensor, "(", new Operand(index, false), ")");
+    }
+
+    @Override
+    public Void visitOperation(String op, IntNode first, IntNode second, Boolean nested) {
+        String symbol = op.equals("add") ? "+" : op.equals("sub") ? "-" : op.equals("mul") ? "*" : "/";
+        return binary(op, symbol, first, second, nested);
+    }
+}
@@ -0,0 +1,7 @@
+/**
+ * Thrown on a robot's thread, when the world lets it carry on, to unwind the
+ * old program once a new one has been swapped in at a tick boundary.
+ */
+@SuppressWarnings("serial")
+public class ProgramReloadException extends RuntimeException {
+}
@@ -0,0 +1,57 @@
+import java.util.List;
+
+/**
+ * Walks the nodes of a parsed program without being able to see inside them.
+ * Each node's accept() calls the method for its kind of node with its parts,
+ * named by the words of the language, and leaves it to the visitor to decide
+ * whether and in what order to visit those parts.
+ * The arg is passed through unchanged, for whatever the visitor needs.
+ */
+interface ProgramVisitor<R, P> {
+
+    /** The whole program, or a block */
+    public R visitProgram(List<ProgramNode> statements, P arg);
+
+    /** turnL, turnR, turnAround, takeFuel, shieldOn or shieldOff */
+    public R visitAction(String action, P arg);
+
+    /** move or wait, done the given number of times */
+    public R visitRepeatedAction(String action, IntNode times, P arg);
+
+    /**
+     * The guards of an if and its elifs, in order, each with the block it
+     * guards, and the else block, which is empty if there is no else.
+     */
+    public R visitIf(BoolNode[] guards, ProgramNode[][] bodies, ProgramNode[] elseBody, P arg);
+
+    public R visitWhile(BoolNode guard, List<ProgramNode> body, P arg);
+
+    public R visitLoop(List<ProgramNode> body, P arg);
+
+    public R visitAssign(String variable, IntNode value, P arg);
+
+    /** lt, gt or eq */
+    public R visitComparison(String relop, IntNode first, IntNode second, P arg);
+
+    /** and or or, which only evaluate second if first does not decide */
+    public R visitLogic(String op, BoolNode first, BoolNode second, P arg);
+
+    public R visitNot(BoolNode operand, P arg);
+
+    public R visitNumber(int value, P arg);
+
+    public R visitVariable(String variable, P arg);
+
+    /** fuelLeft, oppLR, oppFB, numBarrels, wallDist, barrelDist or barrelDir */
+    public R visitSensor(String sensor, P arg);
+
+    /**
+     * barrelLR or barrelFB. The index is evaluated first; if it comes to
+     * Integer.MIN_VALUE, which is what the parser gives when no index was
+     * written, the closest barrel is meant.
+     */
+    public R visitBarrel(String sensor, IntNode index, P arg);
+
+    /** add, sub, mul or div */
+    public R visitOperation(String op, IntNode first, IntNode second, P arg);
+}
@@ -0,0 +1,107 @@
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Consumer;
+
+/**
+ * Watches robot program files and parses each one again whenever it is
+ * saved, on a thread of its own so the simulation never waits for the
+ * parser. Programs that parse are handed to the file's callback, on the
+ * watcher's thread; programs that don't are reported and ignored, so the
+ * last good program keeps running.
+ */
+public class ProgramWatcher implements Closeable {
+
+    // editors often write a file in several steps, so wait for them to finish
+    private static final long SETTLE_MILLIS = 100;
+
+    private final WatchService service;
+    private final Map<Path, Consumer<ProgramNode>> files = new ConcurrentHashMap<>();
+    private final Set<Path> directories = ConcurrentHashMap.newKeySet();
+    private final Thread thread;
+
+    public ProgramWatcher() throws IOException {
+        service = FileSystems.getDefault().newWatchService();
+        thread = new Thread(this::run, "program-watcher");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Calls onChange with the new program each time the file changes,
+     * instead of whatever it was called with before.
+     */
+    public void watch(Path file, Consumer<ProgramNode> onChange) throws IOException {
+        file = file.toAbsolutePath().normalize();
+        Path directory = file.getParent();
+        if (directories.add(directory)) {
+            directory.register(service, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+        }
+        files.put(file, onChange);
+    }
+
+    /**
+     * Stops watching. No more callbacks are made once this returns.
+     */
+    public void close() {
+        files.clear();
+        thread.interrupt();
+        try {
+            service.close();
+        } catch (IOException e) {
+            // nothing more can be done about it
+        }
+    }
+
+    private void run() {
+        try {
+            while (true) {
+                WatchKey key = service.take();
+                Thread.sleep(SETTLE_MILLIS);
+                Set<Path> changed = new LinkedHashSet<>();
+                for (; key != null; key = service.poll()) {
+                    Path directory = (Path) key.watchable();
+                    for (WatchEvent<?> event : key.pollEvents()) {
+                        if (event.kind() == StandardWatchEventKinds.OVERFLOW) {
+                            // we don't know what changed, so reload everything in the directory
+                            for (Path file : files.keySet()) {
+                                if (file.getParent().equals(directory)) changed.add(file);
+                            }
+                        } else {
+                            changed.add(directory.resolve((Path) event.context()));
+                        }
+                    }
+                    key.reset();
+                }
+                for (Path file : changed) {
+                    Consumer<ProgramNode> onChange = files.get(file);
+                    if (onChange != null) reload(file, onChange);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            // closed
+        }
+    }
+
+    private void reload(Path file, Consumer<ProgramNode> onChange) {
+        try {
+            ProgramNode prog = ProgramCache.load(file);
+            if (prog != null) onChange.accept(prog);
+        } catch (IOException e) {
+            System.out.println("Cannot reload " + file + ": " + e);
+        } catch (ParserFailureException e) {
+            System.out.println("Parser error in " + file + ", keeping the old program:");
+            System.out.println(e.getMessage());
+        }
+    }
+}
@@ -14,16 +14,20 @@ import javax.swing.JFrame;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
+import javax.swing.JSlider;
+import javax.swing.SwingUtilities;
 
 @SuppressWarnings("serial")
 public class RoboGame extends JFrame {
 
     private WorldComponent worldComp = new WorldComponent();
+    private ProgramEditor editor = new ProgramEditor();
+    private JSlider timeline = new JSlider(0, 0, 0);
+    private boolean updatingTimeline;
     private File code1, code2;
 
     public static final String ASSET_DIRECTORY ="./assets/";     // the folder containing the images for the robot
     public static final String CODE_DIRECTORY = "./programs/";   // the folder containing the robot programs 
-    public static boolean debugDisplay = true;
 
     /**
      * Set up the interface for the game
@@ -34,8 +38,11 @@ public class RoboGame extends JFrame {
         setResizable(false);
 
         add(worldComp, BorderLayout.CENTER);
+        add(editor, BorderLayout.EAST);
+        add(timeline, BorderLayout.SOUTH);
 
         createMenus();
+        createTimeline();
         pack();
 
         setLocationRelativeTo(null);
@@ -59,6 +66,7 @@ public class RoboGame extends JFrame {
                 code1 = getCodeFile();
                 if (code1 != null) {
                     worldComp.loadRobotProgram(1, code1);
+                    editor.open(code1);
                     worldComp.repaint();
                 }
             });
@@ -67,6 +75,7 @@ public class RoboGame extends JFrame {
                 code2 = getCodeFile();
                 if (code2 != null) {
                     worldComp.loadRobotProgram(2, code2);
+                    editor.open(code2);
                     worldComp.repaint();
                 }
             });
@@ -87,17 +96,47 @@ public class RoboGame extends JFrame {
                     worldComp.loadRobotProgram(2, code2);
                 }
                 worldComp.repaint();
+                updateTimeline();
                 load1.setEnabled(true);
                 load2.setEnabled(true);
                 start.setEnabled(true);
             });
 
-        final JMenuItem debugOn = makeMenuItem("On", debugMenu,(ActionEvent e) -> {debugDisplay = true;});
-        final JMenuItem debugOff = makeMenuItem("Off", debugMenu,(ActionEvent e) -> {debugDisplay = false;});
+        final JMenuItem debugOn = makeMenuItem("On", debugMenu,(ActionEvent e) -> {Robot.debugDisplay = true;});
+        final JMenuItem debugOff = makeMenuItem("Off", debugMenu,(ActionEvent e) -> {Robot.debugDisplay = false;});
         JMenuItem quit = makeMenuItem("Quit", menu,(ActionEvent e) -> {System.exit(0);});
 
     }
 
+    /**
+     * Set up the slider for rewinding the match. Dragging it back shows
+     * earlier ticks from the world's history (the arrow keys step one tick
+     * at a time); moving it to the far right follows the live match again.
+     */
+    private void createTimeline() {
+        timeline.addChangeListener(e -> {
+                if (updatingTimeline) return;
+                int value = timeline.getValue();
+                worldComp.setViewTick(value >= timeline.getMaximum() ? -1 : value);
+            });
+        worldComp.addWorldListener(new WorldListener() {
+                public void tickCommitted(World world, WorldSnapshot frame) {
+                    SwingUtilities.invokeLater(() -> updateTimeline());
+                }
+            });
+    }
+
+    /** Stretches the slider over the recorded ticks, following the live tick if it was there */
+    private void updateTimeline() {
+        WorldHistory history = worldComp.getHistory();
+        boolean live = timeline.getValue() >= timeline.getMaximum();
+        updatingTimeline = true;
+        timeline.setMinimum(Math.max(0, history.getFirstTick()));
+        timeline.setMaximum(Math.max(0, history.getLastTick()));
+        if (live) timeline.setValue(timeline.getMaximum());
+        updatingTimeline = false;
+    }
+
     /** Utility method for making a JMenuItem on a JMenu */
     private JMenuItem makeMenuItem(String name, JMenu menu, ActionListener action){
         JMenuItem menuItem = new JMenuItem(name);
@@ -0,0 +1,298 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Plays matches from the command line without the GUI, writing one result
+ * per line to standard output as JSON or CSV.
+ * Either two program files are given, or a manifest with one match per line:
+ *   red.prog blue.prog [seed [ticks]]
+ * where blank lines and lines starting with # are skipped. The program name
+ * "default" stands for the robot's built-in behaviour. Each program is parsed
+ * once, however many matches it plays in, and the matches are spread over all
+ * cores, with results written in the order the matches were given.
+ *
+ * Usage: java RoboMatch [-s seed] [-t ticks] [-n repeats] [-f json|csv] [-j threads]
+ *            [-b spawns] [-c port] (red.prog blue.prog | -m manifest)
+ * With -n, each match is played with seeds seed, seed+1, ... seed+repeats-1.
+ * With -b, fuel is placed by the named SpawnStrategy (uniform, clustered,
+ * symmetric or a schedule file) instead of uniformly.
+ * With -c, the matches are sent to a MatchDaemon on that port instead of
+ * being played in this process; a schedule file named by -b is then read by
+ * the daemon, from its own -b directory.
+ */
+public class RoboMatch {
+
+    static final String DEFAULT_PROGRAM = "default";
+    static final String CSV_HEADER = "red,blue,seed,ticks,red_fuel,blue_fuel,winner,millis,error";
+    private static final String[] WINNERS = { "draw", "red", "blue" };
+
+    /**
+     * One match to play, with its programs named by path.
+     */
+    static class Match {
+        final String red, blue;
+        final long seed;
+        final int ticks;
+
+        Match(String red, String blue, long seed, int ticks) {
+            this.red = red;
+            this.blue = blue;
+            this.seed = seed;
+            this.ticks = ticks;
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        System.setProperty("java.awt.headless", "true");
+        long seed = 1;
+        int ticks = 1000, repeats = 1, threads = Runtime.getRuntime().availableProcessors(), port = 0;
+        boolean csv = false;
+        String manifest = null, spawnName = "uniform";
+        List<String> files = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-s" -> seed = Long.parseLong(args[++i]);
+            case "-t" -> ticks = Integer.parseInt(args[++i]);
+            case "-n" -> repeats = Integer.parseInt(args[++i]);
+            case "-f" -> csv = args[++i].equals("csv");
+            case "-j" -> threads = Integer.parseInt(args[++i]);
+            case "-m" -> manifest = args[++i];
+            case "-c" -> port = Integer.parseInt(args[++i]);
+            case "-b" -> spawnName = args[++i];
+            default -> files.add(args[i]);
+            }
+        }
+        if (manifest == null && files.size() != 2) {
+            System.err.println("Usage: java RoboMatch [-s seed] [-t ticks] [-n repeats] [-f json|csv] [-j threads]"
+                               + " [-b spawns] [-c port] (red.prog blue.prog | -m manifest)");
+            System.exit(2);
+        }
+        Robot.debugDisplay = false;
+        SpawnStrategy spawns = null;
+        if (port == 0) {
+            try {
+                spawns = SpawnStrategy.named(spawnName);
+            } catch (IOException e) {
+                System.err.println("Cannot read spawn schedule: " + e.getMessage());
+                System.exit(2);
+            }
+        }
+
+        List<Match> matches = new ArrayList<>();
+        if (manifest != null) {
+            try {
+                readManifest(manifest, seed, ticks, repeats, matches);
+            } catch (IOException e) {
+                System.err.println("Cannot read manifest: " + e.getMessage());
+                System.exit(2);
+            }
+        } else {
+            for (int r = 0; r < repeats; r++) {
+                matches.add(new Match(files.get(0), files.get(1), seed + r, ticks));
+            }
+        }
+        if (port > 0) {
+            playRemote(matches, csv, port, spawnName);
+        } else {
+            play(matches, csv, Math.max(1, threads), spawns);
+        }
+    }
+
+    static void readManifest(String manifest, long seed, int ticks, int repeats, List<Match> matches)
+            throws IOException {
+        try (BufferedReader in = Files.newBufferedReader(Paths.get(manifest))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                if (fields.length < 2) {
+                    System.err.println("Skipping manifest line: " + line);
+                    continue;
+                }
+                long s;
+                int t;
+                try {
+                    s = (fields.length > 2) ? Long.parseLong(fields[2]) : seed;
+                    t = (fields.length > 3) ? Integer.parseInt(fields[3]) : ticks;
+                } catch (NumberFormatException e) {
+                    throw new IOException(manifest + ":" + lineNumber + ": expected red blue [seed [ticks]], got: "
+                                          + line);
+                }
+                for (int r = 0; r < repeats; r++) {
+                    matches.add(new Match(fields[0], fields[1], s + r, t));
+                }
+            }
+        }
+    }
+
+    /**
+     * Plays the matches on a pool of threads, printing each result as soon as
+     * it and every match before it has finished.
+     */
+    static void play(List<Match> matches, boolean csv, int threads, SpawnStrategy spawns)
+            throws InterruptedException, ExecutionException {
+        Map<String, ProgramNode> programs = new HashMap<>();
+        Map<String, String> errors = new HashMap<>();
+        for (Match m : matches) {
+            load(m.red, programs, errors);
+            load(m.blue, programs, errors);
+        }
+
+        ExecutorService pool = Executors.newFixedThreadPool(threads);
+        try {
+            List<Future<String>> results = new ArrayList<>();
+            for (Match m : matches) {
+                results.add(pool.submit(() -> {
+                    String error = (errors.get(m.red) != null) ? errors.get(m.red) : errors.get(m.blue);
+                    if (error != null) {
+                        return format(m.red, m.blue, m.seed, null, 0, error, csv);
+                    }
+                    long start = System.nanoTime();
+                    MatchRunner.Result result = MatchRunner.run(programs.get(m.red), programs.get(m.blue), m.seed,
+                                                                m.ticks, spawns);
+                    return format(m.red, m.blue, m.seed, result, System.nanoTime() - start, null, csv);
+                }));
+            }
+            if (csv) System.out.println(CSV_HEADER);
+            for (Future<String> f : results) {
+                System.out.println(f.get());
+            }
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Sends the matches to a MatchDaemon, all at once on a second thread,
+     * and prints the replies as they arrive, which is in the same order.
+     */
+    static void playRemote(List<Match> matches, boolean csv, int port, String spawns)
+            throws IOException, InterruptedException {
+        Map<String, byte[]> sources = new HashMap<>();
+        Map<String, String> errors = new HashMap<>();
+        for (Match m : matches) {
+            for (String name : new String[] { m.red, m.blue }) {
+                if (sources.containsKey(name) || errors.containsKey(name)) continue;
+                try {
+                    sources.put(name, name.equals(DEFAULT_PROGRAM) ? new byte[0] : Files.readAllBytes(Paths.get(name)));
+                } catch (IOException e) {
+                    errors.put(name, name + ": cannot read: " + e);
+                }
+            }
+        }
+
+        try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), port)) {
+            OutputStream out = new BufferedOutputStream(socket.getOutputStream());
+            InputStream in = new BufferedInputStream(socket.getInputStream());
+            IOException[] sendFailure = new IOException[1];
+            Thread sender = new Thread(() -> {
+                try {
+                    for (Match m : matches) {
+                        if (errors.containsKey(m.red) || errors.containsKey(m.blue)) continue;
+                        byte[] red = sources.get(m.red), blue = sources.get(m.blue);
+                        String header = "MATCH " + m.seed + " " + m.ticks + " " + red.length + " " + blue.length
+                            + (spawns.equals("uniform") ? "" : " " + spawns) + "\n";
+                        out.write(header.getBytes(StandardCharsets.US_ASCII));
+                        out.write(red);
+                        out.write(blue);
+                    }
+                    out.flush();
+                } catch (IOException e) {
+                    sendFailure[0] = e;
+                }
+            }, "match-sender");
+            sender.start();
+
+            if (csv) System.out.println(CSV_HEADER);
+            for (Match m : matches) {
+                String error = (errors.get(m.red) != null) ? errors.get(m.red) : errors.get(m.blue);
+                if (error != null) {
+                    System.out.println(format(m.red, m.blue, m.seed, null, 0, error, csv));
+                    continue;
+                }
+                String reply = MatchDaemon.readLine(in);
+                if (reply == null) {
+                    throw (sendFailure[0] != null) ? sendFailure[0] : new EOFException("daemon closed the connection");
+                }
+                String[] fields = reply.split(" ");
+                if (fields[0].equals("RESULT")) {
+                    MatchRunner.Result result = new MatchRunner.Result(m.seed, Integer.parseInt(fields[1]),
+                        Integer.parseInt(fields[2]), Integer.parseInt(fields[3]));
+                    System.out.println(format(m.red, m.blue, m.seed, result, Long.parseLong(fields[5]) * 1000, null, csv));
+                } else {
+                    System.out.println(format(m.red, m.blue, m.seed, null, 0, reply.substring(reply.indexOf(' ') + 1), csv));
+                }
+            }
+            sender.join();
+        }
+    }
+
+    private static void load(String name, Map<String, ProgramNode> programs, Map<String, String> errors) {
+        if (programs.containsKey(name) || errors.containsKey(name)) return;
+        if (name.equals(DEFAULT_PROGRAM)) {
+            programs.put(name, null);
+            return;
+        }
+        try {
+            programs.put(name, CompiledProgram.compile(ProgramCache.load(Paths.get(name))));
+        } catch (IOException e) {
+            errors.put(name, name + ": cannot read: " + e);
+        } catch (ParserFailureException e) {
+            errors.put(name, name + ": " + e.getMessage());
+        }
+    }
+
+    /**
+     * Formats the result of a match, or the reason it could not be played
+     * (when result is null), as a JSON object or a CSV row.
+     */
+    static String format(String red, String blue, long seed, MatchRunner.Result result, long nanos,
+                         String error, boolean csv) {
+        String winner = (result == null) ? null : WINNERS[result.getWinner()];
+        String millis = String.format(Locale.ROOT, "%.3f", nanos / 1e6);
+        if (csv) {
+            if (result == null) {
+                return String.join(",", csvField(red), csvField(blue), Long.toString(seed), "", "", "", "", "",
+                                   csvField(error));
+            }
+            return String.join(",", csvField(red), csvField(blue), Long.toString(seed),
+                               Integer.toString(result.getTicks()), Integer.toString(result.getFuel(1)),
+                               Integer.toString(result.getFuel(2)), winner, millis, "");
+        }
+        if (result == null) {
+            return String.format("{\"red\":%s,\"blue\":%s,\"seed\":%d,\"error\":%s}",
+                                 Json.quote(red), Json.quote(blue), seed, Json.quote(error));
+        }
+        return String.format("{\"red\":%s,\"blue\":%s,\"seed\":%d,\"ticks\":%d,\"redFuel\":%d,\"blueFuel\":%d,"
+                             + "\"winner\":%s,\"millis\":%s}",
+                             Json.quote(red), Json.quote(blue), seed, result.getTicks(), result.getFuel(1),
+                             result.getFuel(2), Json.quote(winner), millis);
+    }
+
+    private static String csvField(String s) {
+        if (s.indexOf(',') < 0 && s.indexOf('"') < 0 && s.indexOf('\n') < 0) return s;
+        return '"' + s.replace("\"", "\"\"") + '"';
+    }
+}
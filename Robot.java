@@ -7,10 +7,16 @@ import java.awt.geom.Arc2D;
 import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.IOException;
-import java.util.ArrayList;
-import java.util.Collections;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayDeque;
+import java.util.Arrays;
 import java.util.Comparator;
-import java.util.List;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
 
 import javax.imageio.ImageIO;
 
@@ -28,27 +34,17 @@ public class Robot {
      */
     public void move() {
         debug("move");
-        currentAction = ACTION_MOVE;
-        switch (dir) {
-        case NORTH -> { targetY -= 1; }
-        case WEST -> { targetX -= 1; }
-        case SOUTH -> { targetY += 1; }
-        case EAST -> { targetX += 1; }
-        }
-        targetX = Math.max(0, targetX);
-        targetY = Math.max(0, targetY);
-        targetX = Math.min(11, targetX);
-        targetY = Math.min(11, targetY);
-        Robot other = world.getOtherRobot(this);
-        if (other != null) {
-            if (other.targetX == targetX && other.targetY == targetY) {
-                // not allowed to move
-                targetX = x;
-                targetY = y;
-            }
-        }
-        processFuelAndBlock();
-        readState();
+        act(ACTION_MOVE, 1);
+    }
+
+    /**
+     * Move forward the given number of steps, one each tick. The world takes
+     * them all as one action, so the program is not held up between them.
+     */
+    public void move(int steps) {
+        if (steps <= 0) return;
+        debug("move");
+        act(ACTION_MOVE, steps);
     }
 
     /**
@@ -56,15 +52,7 @@ public class Robot {
      */
     public void turnLeft() {
         debug("turnL");
-        currentAction = ACTION_TURN_LEFT;
-        switch (dir) {
-        case NORTH -> { targetDir = DIRECTION.WEST;}			
-        case WEST -> { targetDir = DIRECTION.SOUTH; }
-        case SOUTH -> { targetDir = DIRECTION.EAST; }
-        case EAST -> { targetDir = DIRECTION.NORTH; }
-        }
-        processFuelAndBlock();
-        readState();
+        act(ACTION_TURN_LEFT, 1);
     }
 
     /**
@@ -72,15 +60,7 @@ public class Robot {
      */
     public void turnRight() {
         debug("turnR");
-        currentAction = ACTION_TURN_RIGHT;
-        switch (dir) {
-        case NORTH -> {targetDir = DIRECTION.EAST; }
-        case WEST -> {targetDir = DIRECTION.NORTH; }
-        case SOUTH -> {targetDir = DIRECTION.WEST; }
-        case EAST -> {targetDir = DIRECTION.SOUTH; }
-        }
-        processFuelAndBlock();
-        readState();
+        act(ACTION_TURN_RIGHT, 1);
     }
 
     /**
@@ -88,15 +68,7 @@ public class Robot {
      */
     public void turnAround() {
         debug("turnAround");
-        currentAction = ACTION_TURN_AROUND;
-        switch (dir) {
-        case NORTH -> {targetDir = DIRECTION.SOUTH; }
-        case WEST -> {targetDir = DIRECTION.EAST; }
-        case SOUTH -> {targetDir = DIRECTION.NORTH; }
-        case EAST -> {targetDir = DIRECTION.WEST; }
-        }
-        processFuelAndBlock();
-        readState();
+        act(ACTION_TURN_AROUND, 1);
     }
 
     /**
@@ -106,7 +78,6 @@ public class Robot {
     public void setShield(boolean shield) {
         debug("shield " + (shield ? "on" : "off"));
         this.shield = shield;
-        readState();
     }
 
     /**
@@ -114,9 +85,7 @@ public class Robot {
      */
     public void takeFuel() {
         debug("takeFuel");
-        currentAction = ACTION_TAKE_FUEL;
-        processFuelAndBlock();
-        readState();
+        act(ACTION_TAKE_FUEL, 1);
     }
 
     /**
@@ -124,9 +93,16 @@ public class Robot {
      */
     public void idleWait() {
         debug("wait");
-        currentAction = ACTION_WAIT;
-        processFuelAndBlock();
-        readState();
+        act(ACTION_WAIT, 1);
+    }
+
+    /**
+     * Do nothing for the given number of ticks, as one action (see move(int)).
+     */
+    public void idleWait(int ticks) {
+        if (ticks <= 0) return;
+        debug("wait");
+        act(ACTION_WAIT, ticks);
     }
 
     // -------------
@@ -140,8 +116,7 @@ public class Robot {
      * @return
      */
     public int getDistanceToWall() {
-        if (cancelled)
-            throw new RobotInterruptedException();
+        awaitCommitted();
         switch (dir) {
         case NORTH -> {return y;}
         case SOUTH -> {return 11 - y;}
@@ -159,8 +134,8 @@ public class Robot {
      *         if to the right and 0 if directly in front or behind
      */
     public int getOpponentLR() {
-        if (cancelled)
-            throw new RobotInterruptedException();
+        awaitCommitted();
+        Point otherRobotPos = opponentPosition();
         if (otherRobotPos == null) {
             debug("oppLR=INFINTY");
             return INFINITY;
@@ -178,8 +153,8 @@ public class Robot {
      *         behind and 0 if directly to the left or right.
      */
     public int getOpponentFB() {
-        if (cancelled)
-            throw new RobotInterruptedException();
+        awaitCommitted();
+        Point otherRobotPos = opponentPosition();
         if (otherRobotPos == null) {
             debug("oppFB=INFINTY");
             return INFINITY;
@@ -193,10 +168,9 @@ public class Robot {
      * @return The number of barrels currently in the world
      */
     public int numBarrels() {
-        if (cancelled)
-            throw new RobotInterruptedException();
-        debug("numBarrels = " + barrels.size());
-        return barrels.size();
+        awaitCommitted();
+        debug("numBarrels = " + sensorFrame.getBarrels().size());
+        return sensorFrame.getBarrels().size();
     }
 
     /**
@@ -207,8 +181,7 @@ public class Robot {
      *         the right and 0 if directly in front or behind
      */
     public int getClosestBarrelLR() {
-        if (cancelled)
-            throw new RobotInterruptedException();
+        awaitCommitted();
         return getBarrelLR(0);
     }
 
@@ -220,8 +193,7 @@ public class Robot {
      *         and 0 if directly to the left or right.
      */
     public int getClosestBarrelFB() {
-        if (cancelled)
-            throw new RobotInterruptedException();
+        awaitCommitted();
         return getBarrelFB(0);
     }
 
@@ -233,9 +205,9 @@ public class Robot {
      *         if to the right and 0 if directly in front or behind
      */
     public int getBarrelLR(int n) {
-        if (cancelled)
-            throw new RobotInterruptedException();
-        int val = (n >= barrels.size()) ? INFINITY : barrels.get(n).x;
+        awaitCommitted();
+        Point barrel = nthBarrel(n);
+        int val = (barrel == null) ? INFINITY : barrel.x;
         debug(((n == 0) ? "" : (n + "th")) + "closestBarrelLR = " + ((val == INFINITY) ? "INFINITY" : "" + val));
         return val;
     }
@@ -248,21 +220,67 @@ public class Robot {
      *         if behind and 0 if directly to the left or right.
      */
     public int getBarrelFB(int n) {
-        if (cancelled)
-            throw new RobotInterruptedException();
-        int val = (n >= barrels.size()) ? INFINITY : barrels.get(n).y;
+        awaitCommitted();
+        Point barrel = nthBarrel(n);
+        int val = (barrel == null) ? INFINITY : barrel.y;
         debug(((n == 0) ? "" : (n + "th")) + "closestBarrelFB = " + ((val == INFINITY) ? "INFINITY" : "" + val));
         return val;
     }
 
+    /**
+     * Number of moves along the shortest path to the nearest fuel barrel,
+     * going around the other robot.
+     * 
+     * @return INFINITY if there are no barrels that can be reached, 0 if
+     *         the robot is on a barrel
+     */
+    public int getBarrelDistance() {
+        awaitCommitted();
+        int val = distances().distance(x, y);
+        val = (val == DistanceField.UNREACHABLE) ? INFINITY : val;
+        debug("barrelDist = " + ((val == INFINITY) ? "INFINITY" : "" + val));
+        return val;
+    }
+
+    /**
+     * Which way to take the first step along the shortest path to the
+     * nearest fuel barrel, going around the other robot. Straight ahead is
+     * preferred, then left, then right, when more than one is as short.
+     * 
+     * @return INFINITY if there are no barrels that can be reached, 0 if
+     *         ahead (or on a barrel), -1 if to the left, 1 if to the right and
+     *         2 if behind
+     */
+    public int getBarrelDirection() {
+        awaitCommitted();
+        DistanceField distances = distances();
+        int here = distances.distance(x, y);
+        int val = INFINITY;
+        if (here == 0) {
+            val = 0;
+        } else if (here != DistanceField.UNREACHABLE) {
+            for (int turn : new int[] { 0, -1, 1, 2 }) {
+                // DIRECTION goes anticlockwise, so a left turn is the next one
+                DIRECTION d = DIRECTION.values()[(dir.ordinal() - turn + 4) % 4];
+                int nx = x + ((d == DIRECTION.EAST) ? 1 : (d == DIRECTION.WEST) ? -1 : 0);
+                int ny = y + ((d == DIRECTION.SOUTH) ? 1 : (d == DIRECTION.NORTH) ? -1 : 0);
+                if (distances.distance(nx, ny) == here - 1) {
+                    val = turn;
+                    break;
+                }
+            }
+        }
+        debug("barrelDir = " + ((val == INFINITY) ? "INFINITY" : "" + val));
+        return val;
+    }
+
     /**
      * Gets the amount of fuel this robot has remaining.
      * 
      * @return
      */
     public int getFuel() {
-        if (cancelled)
-            throw new RobotInterruptedException();
+        awaitCommitted();
         debug("fuel=" + fuel);
         return fuel;
     }
@@ -277,6 +295,26 @@ public class Robot {
         return shield;
     }
 
+    // -------------------
+    // Interpreter state
+    // -------------------
+
+    /**
+     * Sets the value of a program variable for this robot.
+     */
+    public void setVariable(String name, int value) {
+        variables.put(name, value);
+        variablesChanged = true;
+    }
+
+    /**
+     * @return the value of a program variable, 0 if it has never been set
+     */
+    public int getVariable(String name) {
+        Integer value = variables.get(name);
+        return (value == null) ? 0 : value;
+    }
+
     // =======================================================
     // The internal workings of the robot, not needed by the parser or
     // interpreter.
@@ -287,24 +325,100 @@ public class Robot {
         ACTION_TURN_AROUND = 4, ACTION_TAKE_FUEL = 5, ACTION_WAIT = 6,
         INFINITY = Integer.MAX_VALUE;  
 
+    // the actions by number, as the language names them
+    private static final String[] ACTION_NAMES = {
+        null, "move", "turnL", "turnR", "turnAround", "takeFuel", "wait"
+    };
+
+    /**
+     * The number of interpreter steps a robot may take between two actions
+     * before it is forced to wait out the current tick. Every statement, loop
+     * pass, condition and expression node evaluated is a step. Running out
+     * is not free: the forced wait is a real action, which takes the robot's
+     * tick, burns fuel as any wait does and appears in its action trace.
+     */
+    public static final int MAX_INSTRUCTIONS_PER_TICK = 10000;
+
+    /**
+     * The number of actions a program may choose before the world has
+     * started on the first of them.
+     */
+    public static final int ACTION_QUEUE_SIZE = 16;
+
     private static final int
         FUEL_IDLE = 3, FUEL_MOVE = 6, FUEL_TURN = 5, FUEL_SHIELD = 15;
 
+    /** Whether robots print each action and sensor reading to System.out */
+    public static volatile boolean debugDisplay = true;
+
+    // images are loaded the first time a robot is drawn and shared by all robots
+    private static final Map<String, BufferedImage> SPRITES = new ConcurrentHashMap<>();
+
     private enum DIRECTION { NORTH, WEST, SOUTH, EAST }
 
+    // nearest first, breaking ties the same way every time
+    private static final Comparator<Point> BARREL_ORDER = (p1, p2) -> {
+        int d1 = Math.abs(p1.x) + Math.abs(p1.y);
+        int d2 = Math.abs(p2.x) + Math.abs(p2.y);
+        if (d1 != d2) return d1 - d2;
+        return (p1.y != p2.y) ? p2.y - p1.y : p1.x - p2.x;
+    };
+
+    // past this many, the rest of the barrels are sorted rather than selected
+    private static final int BARRELS_SELECTED = 4;
+
+    /**
+     * What the robot does if it has no valid program: heads for the closest
+     * barrel, turning to face it when it is level, and takes it.
+     */
+    private static final CompiledProgram DEFAULT_PROGRAM = CompiledProgram.compile(new Parser().parse(new ProgramLexer(
+        ByteBuffer.wrap(("while (gt(fuelLeft, 0)) {"
+                         + "  if (eq(numBarrels, 0)) { wait; }"
+                         + "  elif (and(eq(barrelLR, 0), eq(barrelFB, 0))) { takeFuel; }"
+                         + "  elif (eq(barrelFB, 0)) { if (lt(barrelLR, 0)) { turnL; } else { turnR; } }"
+                         + "  elif (gt(barrelFB, 0)) { move; }"
+                         + "  else { turnAround; }"
+                         + "}").getBytes(StandardCharsets.ISO_8859_1)))));
+
     private World world;
-    private Point otherRobotPos;
-    private List<Point> barrels = new ArrayList<Point>();
+    // the frame the sensors read, shared with the world and the other robot,
+    // and what has been worked out from it for this robot so far: its
+    // distance field, and the barrels relative to it, the first
+    // barrelsOrdered of them nearest first
+    private WorldSnapshot sensorFrame = new WorldSnapshot(0, null, null, Set.of());
+    private DistanceField distances;
+    private Point[] barrels;
+    private int barrelsOrdered;
     private ProgramNode program;
+    // a program to swap in at the next tick boundary
+    private ProgramNode nextProgram;
+    // how far the program has got, when the world is stepping it
+    private CompiledProgram.Run stepping;
 
-    private boolean shield, dead, finished, cancelled;
+    // shield is as the program last set it, and activeShield as it was when
+    // the action the world is working on was chosen
+    private boolean shield, activeShield, finished, resolved, reloading;
+    private volatile boolean dead;
+    private volatile boolean cancelled, running;
     private int fuel = 100, targetFuel;
     private int x, y, targetX, targetY;
     private DIRECTION dir, targetDir;
     //	private int x, y, dir, targetX, targetY, targetDir;
-    private int currentAction;
+    // the action the world is working on, and how many more times it is
+    // to be done once this one has been committed
+    private volatile int currentAction;
+    private int repeats;
+    // the actions the program has chosen that the world has not started on
+    private final ArrayDeque<QueuedAction> queue = new ArrayDeque<>();
+    private int instructions;
+    private FlightEvents.LoopPass loopPass;
+    private Map<String, Integer> variables = new HashMap<>();
+    // a copy of the variables as of the program's last action, and of those
+    // as of the action the world is working on
+    private Map<String, Integer> variablesCopy = Map.of();
+    private volatile Map<String, Integer> publishedVariables = Map.of();
+    private boolean variablesChanged;
     private String colour;
-    private BufferedImage robotImage1, robotImage2, shieldImage;
     private boolean noWait = false;
 
     public Robot(World world, int x, int y, String colour, boolean noWait) {
@@ -318,16 +432,21 @@ public class Robot {
         dir = (y < World.SIZE / 2) ? DIRECTION.SOUTH : DIRECTION.NORTH;
         targetDir = dir;
         targetFuel = fuel;
-        try {
-            robotImage1 = ImageIO.read(new File(RoboGame.ASSET_DIRECTORY+"robot_" + colour + "_1.png"));
-            robotImage2 = ImageIO.read(new File(RoboGame.ASSET_DIRECTORY+"robot_" + colour + "_2.png"));
-            shieldImage = ImageIO.read(new File(RoboGame.ASSET_DIRECTORY+ "shield.png"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
     }
 
-    private ArrayList<String> history = new ArrayList<>();
+    /**
+     * Returns the named image from the asset directory, loading it on first use.
+     */
+    static BufferedImage sprite(String name) {
+        return SPRITES.computeIfAbsent(name, n -> {
+                try {
+                    return ImageIO.read(new File(RoboGame.ASSET_DIRECTORY + n));
+                } catch (IOException e) {
+                    e.printStackTrace();
+                    return null;
+                }
+            });
+    }
 
     /**
      * Set the program of this robot, if the controller represents is a valid
@@ -337,81 +456,263 @@ public class Robot {
         program = prog;
     }
 
+    /**
+     * Replaces this robot's program while the world is running. The robot
+     * carries on from where it is, with the same fuel and shield, but runs
+     * the new program from the start, with no variables set. The swap is
+     * made when the world next lets the robot carry on, at a tick boundary,
+     * and any actions the old program had queued are dropped; a robot that
+     * has not started yet just takes the new program.
+     */
+    public void replaceProgram(ProgramNode prog) {
+        synchronized (this) {
+            if (!running && !finished) {
+                program = prog;
+                nextProgram = null;
+            } else {
+                nextProgram = prog;
+            }
+        }
+    }
+
+    /**
+     * Called by the "World" only, at a tick boundary. Gives a robot whose
+     * program has finished the program that has replaced it, if there is one.
+     * 
+     * @return true if the robot's program should be run again
+     */
+    public boolean restartIfReplaced() {
+        synchronized (this) {
+            if (!isFinished() || nextProgram == null || cancelled)
+                return false;
+            program = nextProgram;
+            nextProgram = null;
+            stepping = null;
+            finished = false;
+            reloading = false;
+            shield = activeShield;
+            variables = new HashMap<>();
+            variablesChanged = true;
+            return true;
+        }
+    }
+
     /**
      * Start this robot running. If it has a valid program,, then executes the
      * program, passing in the robot. Otherwise, calls the default program.
+     * When the program is replaced, the new one is started in its place,
+     * with the shield as it is in the world and no variables set.
      */
     public void run() {
-        if (program != null) {
-            program.execute(this);
-        } else {
-            defaultProgram();
+        while (true) {
+            try {
+                // compiled, as the tree recurses as deeply as the program nests
+                CompiledProgram.compile((program != null) ? program : DEFAULT_PROGRAM).execute(this);
+                synchronized (this) {
+                    // it may have run to the end before seeing it was replaced
+                    if (!reloading)
+                        return;
+                }
+            } catch (ProgramReloadException e) {
+                // start the new one
+            }
+            takeNextProgram();
         }
     }
 
+    /**
+     * Called by the "World" only, instead of running the robot on a thread
+     * of its own (see World.startStepped()). Runs the program on the calling
+     * thread until the robot would have to wait for the world, or until the
+     * program has stopped, in which case the robot is marked finished. The
+     * next call carries on from where this one stopped, so the world sees
+     * the same actions, in the same ticks, as it would from a thread.
+     */
+    public void step() {
+        while (running && !cancelled) {
+            try {
+                if (stepping == null)
+                    stepping = CompiledProgram.compile((program != null) ? program : DEFAULT_PROGRAM).start();
+                if (stepping.resume(this))
+                    return;
+                synchronized (this) {
+                    if (!reloading) {
+                        setFinished(true);
+                        return;
+                    }
+                }
+            } catch (ProgramReloadException e) {
+                // start the new one
+            } catch (RobotInterruptedException e) {
+                setFinished(true);
+            } catch (ArithmeticException | IndexOutOfBoundsException e) {
+                // the program divided by zero or asked for a negative barrel
+                debug("stopped: " + e);
+                setFinished(true);
+            }
+            if (!running)
+                return;
+            takeNextProgram();
+        }
+    }
+
+    /**
+     * Whether reading a sensor would make a stepped program wait, as the
+     * world has not yet done every action it has chosen.
+     */
+    boolean wouldWaitToSense() {
+        return !queue.isEmpty() || currentAction != 0;
+    }
+
+    /**
+     * Whether choosing an action would make a stepped program wait, as its
+     * queue is full.
+     */
+    boolean wouldWaitToAct() {
+        return queue.size() >= ACTION_QUEUE_SIZE;
+    }
+
+    /**
+     * Swaps in the program that has replaced the running one, to be run
+     * from the start, with the shield as it is in the world and no
+     * variables set.
+     */
+    private void takeNextProgram() {
+        debug("program replaced");
+        synchronized (this) {
+            program = nextProgram;
+            nextProgram = null;
+            reloading = false;
+            shield = activeShield;
+            stepping = null;
+        }
+        variables = new HashMap<>();
+        variablesChanged = true;
+    }
+
+    /**
+     * Called by the interpreter for every statement, loop iteration or
+     * condition that does not itself perform an action. Once the robot has
+     * used up its budget for the tick it is made to idle-wait, so programs
+     * that never act cannot spin forever without giving the world a turn.
+     */
+    public void countInstruction() {
+        countInstructions(1);
+    }
+
+    /**
+     * Counts n interpreter steps at once, as for an expression of n nodes.
+     * See countInstruction().
+     */
+    public void countInstructions(int n) {
+        instructions += n;
+        if (instructions > MAX_INSTRUCTIONS_PER_TICK) {
+            debug("instruction budget exhausted");
+            idleWait();
+        }
+    }
+
+    /**
+     * Called by the interpreter on every loop back-edge. Stops the program
+     * as soon as the robot has been cancelled, even if the loop never reads a
+     * sensor or performs an action.
+     */
+    public void safepoint() {
+        if (cancelled)
+            throw new RobotInterruptedException();
+        loopPass = FlightEvents.nextLoopPass(loopPass, worldId(), colour);
+        countInstruction();
+    }
+
     /**
      * Unblocks execution of this robot and hopefully completes its execution.
      * Don't call this yourself.
      */
     public void cancel() {
         cancelled = true;
-        updatePending();
-        fuel = 0;
-        targetFuel = 0;
+        synchronized (this) {
+            fuel = 0;
+            targetFuel = 0;
+            currentAction = 0;
+            queue.clear();
+            notifyAll();
+        }
     }
 
     /**
-     * Called when execution of a robot's code completes. You do not need to do
-     * this yourself.
-     * 
-     * @param finished
+     * Called by the world just before it starts a thread running this
+     * robot's program, so that it knows to wait for the robot's actions.
      */
+    public void setRunning(boolean running) {
+        this.running = running;
+    }
+
+    /**
+     * Whether execution of a robot's code has completed, and the world has
+     * done every action it chose.
+     */
+    public synchronized boolean isFinished() {
+        return finished && queue.isEmpty() && currentAction == 0;
+    }
+
     public void setFinished(boolean finished) {
-        this.finished = finished;
-        if (finished)
-            updatePending();
+        synchronized (this) {
+            this.finished = finished;
+            if (finished)
+                running = false;
+            notifyAll();
+        }
     }
 
     /**
+     * Draws this robot as it is in the given frame, part way (time, from 0
+     * to 1) through the action resolved for that frame.
      * Called by the GUI only.
      * 
      * @param g2d
+     * @param state
      * @param time
      */
-    public void draw(Graphics2D g2d, double time) {
-        double x = this.x * (1 - time) + targetX * time;
-        double y = this.y * (1 - time) + targetY * time;
-        x = x * WorldComponent.GRID_SIZE + WorldComponent.GRID_SIZE / 2d;
-        y = y * WorldComponent.GRID_SIZE + WorldComponent.GRID_SIZE / 2d;
+    public void draw(Graphics2D g2d, WorldSnapshot.RobotState state, double time) {
+        double x = state.getX() * (1 - time) + state.getTargetX() * time;
+        double y = state.getY() * (1 - time) + state.getTargetY() * time;
 
-        double angle = getAngle(dir);
-        switch (currentAction) {
+        int action = state.getAction();
+        double angle = getAngle(DIRECTION.values()[state.getDir()]);
+        switch (action) {
         case ACTION_TURN_LEFT -> { angle -= Math.toRadians(90) * time; }
         case ACTION_TURN_RIGHT -> { angle += Math.toRadians(90) * time; }
         case ACTION_TURN_AROUND -> { angle += Math.toRadians(180) * time; }
         }
 
+        boolean moving = ((int) (time * 10)) % 2 == 0 && action < ACTION_TAKE_FUEL && action > 0;
+
+        double fuelCurrent = state.getTargetFuel() * time + state.getFuel() * (1 - time);
+
+        drawAt(g2d, x, y, angle, moving, state.isShieldOn(), fuelCurrent);
+    }
+
+    /**
+     * Draws the robot at grid position (x, y), which need not be whole numbers.
+     */
+    private void drawAt(Graphics2D g2d, double x, double y, double angle, boolean moving, boolean shield, double fuelCurrent) {
+        x = x * WorldComponent.GRID_SIZE + WorldComponent.GRID_SIZE / 2d;
+        y = y * WorldComponent.GRID_SIZE + WorldComponent.GRID_SIZE / 2d;
+
+        BufferedImage robotImage = sprite("robot_" + colour + (moving ? "_2.png" : "_1.png"));
+
         AffineTransform trans = new AffineTransform();
         trans.translate(x, y);
         trans.rotate(angle);
-        trans.translate(-robotImage1.getWidth() / 2d, -robotImage1.getHeight() / 2d);
-
-        if (((int) (time * 10)) % 2 == 0 && currentAction < ACTION_TAKE_FUEL && currentAction > 0) {
-            g2d.drawImage(robotImage2, trans, null);
-        } else {
-            g2d.drawImage(robotImage1, trans, null);
-        }
+        trans.translate(-robotImage.getWidth() / 2d, -robotImage.getHeight() / 2d);
+        g2d.drawImage(robotImage, trans, null);
 
         if (shield) {
             trans = new AffineTransform();
             trans.translate(x - 25, y - 25);
-            g2d.drawImage(shieldImage, trans, null);
+            g2d.drawImage(sprite("shield.png"), trans, null);
         }
 
-        double fuelCurrent = targetFuel * time + fuel * (1 - time);
-        if (fuelCurrent <= 0)
-            dead = true;
-
         // draw fuel indicator
         Arc2D fuelArc = new Arc2D.Double(x - 10, y - 10, 20, 20, -90, 360d * fuelCurrent / 100d, Arc2D.OPEN);
         g2d.setStroke(new BasicStroke(3));
@@ -419,10 +720,18 @@ public class Robot {
         g2d.draw(fuelArc);
     }
 
+    /**
+     * @return whether the world has found this robot out of fuel
+     */
     public boolean isDead() {
         return dead;
     }
 
+    /** Called by the "World" only, when this robot's committed fuel runs out */
+    void setDead() {
+        dead = true;
+    }
+
     private Point getOtherRobotPosition() {
         Robot other = world.getOtherRobot(this);
         return (other != null) ? toRelative(new Point(other.x, other.y)) : null;
@@ -450,9 +759,66 @@ public class Robot {
         return 0;
     }
 
+    /**
+     * Works out the result of a move, which fails if the other robot is
+     * already going to be in the square this robot is moving into.
+     */
+    private void resolveMove() {
+        switch (dir) {
+        case NORTH -> { targetY -= 1; }
+        case WEST -> { targetX -= 1; }
+        case SOUTH -> { targetY += 1; }
+        case EAST -> { targetX += 1; }
+        }
+        targetX = Math.max(0, targetX);
+        targetY = Math.max(0, targetY);
+        targetX = Math.min(11, targetX);
+        targetY = Math.min(11, targetY);
+        Robot other = world.getOtherRobot(this);
+        if (other != null) {
+            if (other.targetX == targetX && other.targetY == targetY) {
+                // not allowed to move
+                targetX = x;
+                targetY = y;
+            }
+        }
+    }
+
+    private void resolveTurn() {
+        switch (currentAction) {
+        case ACTION_TURN_LEFT -> {
+            switch (dir) {
+            case NORTH -> { targetDir = DIRECTION.WEST;}
+            case WEST -> { targetDir = DIRECTION.SOUTH; }
+            case SOUTH -> { targetDir = DIRECTION.EAST; }
+            case EAST -> { targetDir = DIRECTION.NORTH; }
+            }
+        }
+        case ACTION_TURN_RIGHT -> {
+            switch (dir) {
+            case NORTH -> {targetDir = DIRECTION.EAST; }
+            case WEST -> {targetDir = DIRECTION.NORTH; }
+            case SOUTH -> {targetDir = DIRECTION.WEST; }
+            case EAST -> {targetDir = DIRECTION.SOUTH; }
+            }
+        }
+        case ACTION_TURN_AROUND -> {
+            switch (dir) {
+            case NORTH -> {targetDir = DIRECTION.SOUTH; }
+            case WEST -> {targetDir = DIRECTION.EAST; }
+            case SOUTH -> {targetDir = DIRECTION.NORTH; }
+            case EAST -> {targetDir = DIRECTION.WEST; }
+            }
+        }
+        }
+    }
+
+    /**
+     * Uses fuel for the current action. targetFuel starts each tick equal
+     * to fuel, less anything the other robot has already siphoned this tick.
+     */
     private void processFuel() {
         // use fuel
-        targetFuel = fuel;
         switch (currentAction) {
         case ACTION_MOVE ->        { targetFuel -= FUEL_MOVE; }
         case ACTION_TURN_LEFT->    { targetFuel -= FUEL_TURN; }
@@ -463,127 +829,321 @@ public class Robot {
             if (world.getAvailableFuel().contains(new Point(x, y))) {
                 world.getAvailableFuel().remove(new Point(x, y));
                 targetFuel = 100;
+                world.notifyFuelTaken(this, new Point(x, y));
                 return;
             } else {// try to siphon fuel
                 Robot other = world.getOtherRobot(this);
-                if (other != null && !other.shield) {
+                if (other != null && !other.activeShield) {
                     Point otherP = getOtherRobotPosition(); // relative position
                     if (otherP.x == 0 && otherP.y == 1) {
-                        System.out.println("Taking fuel");
+                        debug("siphoning fuel");
                         int takeFuel = Math.min(25, other.targetFuel / 2);
                         takeFuel = Math.min(other.targetFuel, takeFuel);
                         targetFuel = Math.min(100, targetFuel + takeFuel);
                         other.targetFuel -= takeFuel;
+                        world.notifyFuelSiphoned(this, other, takeFuel);
                         return;
                     }
                 }
             }
             targetFuel -= FUEL_IDLE; }
         }
-        if (shield) targetFuel -= FUEL_SHIELD;
+        if (activeShield) targetFuel -= FUEL_SHIELD;
     }
 
-    private void processFuelAndBlock() {
+    /**
+     * Hands an action, to be done the given number of times, to the world.
+     * The program carries on without waiting for it, unless the queue is
+     * full, so it can choose its next actions while the world works on this
+     * one; it only has to wait for the world when it reads a sensor.
+     */
+    private void act(int action, int times) {
         if (cancelled)
             throw new RobotInterruptedException();
-        // use fuel
-        processFuel();
+        instructions = 0;
+        if (variablesChanged) {
+            variablesCopy = Map.copyOf(variables);
+            variablesChanged = false;
+        }
+        synchronized (this) {
+            if (queue.size() >= ACTION_QUEUE_SIZE) {
+                FlightEvents.Handoff event = FlightEvents.startHandoff();
+                while (queue.size() >= ACTION_QUEUE_SIZE && !cancelled && !reloading) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                FlightEvents.endHandoff(event, worldId(), colour, "queue full");
+            }
+            checkInterrupted();
+            queue.add(new QueuedAction(action, times, shield, variablesCopy));
+            notifyAll();
+        }
         if (this.noWait) {
-            updatePending();
-        } else {
-            while (currentAction != 0) {
+            while (!queue.isEmpty() || currentAction != 0) {
+                resolveAction();
+                updatePending();
+                release(world.snapshot());
+            }
+        }
+    }
+
+    /**
+     * Waits until the world has committed every action the program has
+     * chosen, and the sensors have been read from the state they left.
+     */
+    private void awaitCommitted() {
+        if (cancelled)
+            throw new RobotInterruptedException();
+        synchronized (this) {
+            if (!queue.isEmpty() || currentAction != 0) {
+                FlightEvents.Handoff event = FlightEvents.startHandoff();
+                while ((!queue.isEmpty() || currentAction != 0) && !cancelled && !reloading) {
+                    try {
+                        wait();
+                    } catch (InterruptedException e) {
+                    }
+                }
+                FlightEvents.endHandoff(event, worldId(), colour, "sensor");
+            }
+            checkInterrupted();
+        }
+    }
+
+    private int worldId() {
+        return (world == null) ? 0 : world.getId();
+    }
+
+    /**
+     * Stops the program if the robot has been cancelled or given a new one.
+     */
+    private void checkInterrupted() {
+        if (cancelled)
+            throw new RobotInterruptedException();
+        if (reloading)
+            throw new ProgramReloadException();
+    }
+
+    /**
+     * Called by the "World" only. Waits until this robot's program has
+     * chosen its next action, or has stopped running.
+     */
+    public void awaitAction() {
+        synchronized (this) {
+            while (running && !cancelled && currentAction == 0 && queue.isEmpty()) {
                 try {
-                    Thread.sleep(10);
+                    wait();
                 } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
                 }
             }
         }
     }
 
     /**
-     * Called by the "World" only.
+     * Called by the "World" only, once per tick for each robot in a fixed
+     * order. Works out the outcome of the robot's pending action, the next
+     * one in its queue unless it is part way through a repeated one, which
+     * is then committed by the next call to updatePending(). A robot whose
+     * program has finished, and whose queue is empty, just waits.
      */
-    public void updatePending() {
-        // reset turn
-        x = targetX;
-        y = targetY;
-        dir = targetDir;
-        fuel = targetFuel;
-        if (finished) {
-            currentAction = ACTION_WAIT;
+    public void resolveAction() {
+        synchronized (this) {
+            if (resolved || cancelled)
+                return;
+            if (currentAction == 0) {
+                QueuedAction next = queue.poll();
+                if (next != null) {
+                    currentAction = next.action;
+                    repeats = next.times - 1;
+                    activeShield = next.shield;
+                    publishedVariables = next.variables;
+                    // there is room in the queue again
+                    notifyAll();
+                } else if (finished) {
+                    currentAction = ACTION_WAIT;
+                    activeShield = shield;
+                }
+            }
+            switch (currentAction) {
+            case 0 -> { return; }
+            case ACTION_MOVE -> resolveMove();
+            case ACTION_TURN_LEFT, ACTION_TURN_RIGHT, ACTION_TURN_AROUND -> resolveTurn();
+            }
             processFuel();
+            resolved = true;
+            FlightEvents.action(worldId(), colour, ACTION_NAMES[currentAction], repeats);
         }
-        otherRobotPos = getOtherRobotPosition();
-        barrels = new ArrayList<Point>(world.getAvailableFuel());
-        for (int i = 0; i < barrels.size(); i++) {
-            Point p = toRelative(barrels.get(i));
-            barrels.set(i, p);
-        }
-        Collections.sort(barrels, new Comparator<Point>() {
+    }
 
-                @Override
-                public int compare(Point p1, Point p2) {
-                    int d1 = Math.abs(p1.x) + Math.abs(p1.y);
-                    int d2 = Math.abs(p2.x) + Math.abs(p2.y);
-                    return d1 - d2;
-                }
-            });
-        currentAction = 0;
+    /**
+     * Encodes the position, direction, shield, action, fuel and targets of
+     * this robot in a single long, for the world's frames.
+     */
+    public long packState() {
+        return WorldSnapshot.RobotState.pack(x, y, dir.ordinal(), activeShield, currentAction, fuel,
+                                             targetX, targetY, targetFuel);
     }
 
-    public String toString() {
-        return "the " + colour + " robot @(" + x + "," + y + ")";
+    /**
+     * @return the variables of this robot's program as of the action the
+     *         world is working on
+     */
+    public Map<String, Integer> getPublishedVariables() {
+        return publishedVariables;
     }
 
     /**
-     * print a message about the action to System.out if debugging is currently
-     * turned on.
+     * Called by the "World" only. Moves the robot to its target state.
+     * 
+     * @return false if the robot's action has not been resolved yet, in
+     *         which case nothing is committed this tick. This includes a
+     *         robot that has been released but not yet chosen an action,
+     *         which must keep the sensor readings it is deciding on.
      */
-    private void debug(String action) {
-        //		if (RoboGame.debugDisplay && program != null) {
-        System.out.println(colour + " robot: " + action);
-        //}
+    public boolean updatePending() {
+        synchronized (this) {
+            if (!resolved)
+                return false;
+            // reset turn
+            x = targetX;
+            y = targetY;
+            dir = targetDir;
+            fuel = targetFuel;
+            return true;
+        }
     }
 
     /**
-     * What the robot will do if it has no valid controller
+     * Called by the "World" only, after updatePending(). Lets the world move
+     * on to the robot's next action: the same one again if it is to be
+     * repeated, or else the next one in its queue. Once the queue is empty
+     * the robot's sensor readings are taken from the frame of the committed
+     * state, for the program to read. A program that has been replaced
+     * loses the actions it had queued, and starts again.
      */
-    private void defaultProgram() {
-        // dummy program
-        while (getFuel() > 0) {
-            if (numBarrels() == 0) {
-                idleWait();
-            } else {
-                int x = getClosestBarrelLR();
-                int y = getClosestBarrelFB();
-                if (x == 0 && y == 0) {
-                    takeFuel();
-                } else {
-                    if (y == 0) {
-                        if (x < 0)
-                            turnLeft();
-                        else
-                            turnRight();
-                    } else if (y > 0) {
-                        move();
-                    } else {
-                        turnAround();
-                    }
-                }
+    public void release(WorldSnapshot frame) {
+        synchronized (this) {
+            if (nextProgram != null) {
+                // the program swaps itself over when it sees reloading, or
+                // if it has stopped, the world starts the new one
+                queue.clear();
+                repeats = 0;
+                if (running)
+                    reloading = true;
             }
+            resolved = false;
+            if (repeats > 0 && !cancelled && currentAction != 0) {
+                repeats--;
+                debug(ACTION_NAMES[currentAction]);
+                return;
+            }
+            currentAction = 0;
+            if (queue.isEmpty())
+                readSensors(frame);
+            notifyAll();
         }
     }
 
     /**
-     * Encodes the state of the robot, used for automarking.
+     * Points the sensors at a new frame. Nothing is worked out from it until
+     * the program reads a sensor that needs it.
+     */
+    private void readSensors(WorldSnapshot frame) {
+        sensorFrame = frame;
+        distances = null;
+        barrels = null;
+    }
+
+    /**
+     * @return the other robot's position in the sensor frame relative to
+     *         this robot, or null if there isn't one
      */
-    public void readState() {
-        String state = String.format("%-4s @(%2d,%2d) dir:%-5s fuel:%3d %s",
-                                     colour, x, y, dir, fuel, shield?"shielded":"unshielded");
-        history.add(state);
-        //System.out.println(state);
+    private Point opponentPosition() {
+        int otherId = 3 - world.getRobotId(this);
+        WorldSnapshot.RobotState other = (otherId == 1 || otherId == 2) ? sensorFrame.getRobot(otherId) : null;
+        return (other != null) ? toRelative(new Point(other.getX(), other.getY())) : null;
+    }
+
+    /**
+     * @return the distances to the barrels in the sensor frame, going around
+     *         the other robot
+     */
+    private DistanceField distances() {
+        if (distances == null) {
+            int id = world.getRobotId(this);
+            distances = (id == 1 || id == 2) && sensorFrame.getRobot(3 - id) != null
+                ? sensorFrame.getDistances(id)
+                : DistanceField.compute(World.SIZE, sensorFrame.getBarrels(), null);
+        }
+        return distances;
+    }
+
+    /**
+     * The nth nearest barrel in the sensor frame, relative to this robot.
+     * The barrels are only put in order as far as the program has asked,
+     * by picking out the nearest of the rest each time, so a program that
+     * only asks for the closest barrel never sorts them.
+     * 
+     * @return null if there are not more than n barrels
+     */
+    private Point nthBarrel(int n) {
+        if (barrels == null) {
+            barrels = new Point[sensorFrame.getBarrels().size()];
+            int i = 0;
+            for (Point p : sensorFrame.getBarrels()) {
+                barrels[i++] = toRelative(p);
+            }
+            barrelsOrdered = 0;
+        }
+        if (n >= barrels.length) return null;
+        Objects.checkIndex(n, barrels.length);
+        if (n >= BARRELS_SELECTED) {
+            Arrays.sort(barrels, barrelsOrdered, barrels.length, BARREL_ORDER);
+            barrelsOrdered = barrels.length;
+        }
+        for (; barrelsOrdered <= n; barrelsOrdered++) {
+            int nearest = barrelsOrdered;
+            for (int i = nearest + 1; i < barrels.length; i++) {
+                if (BARREL_ORDER.compare(barrels[i], barrels[nearest]) < 0) nearest = i;
+            }
+            Point p = barrels[nearest];
+            barrels[nearest] = barrels[barrelsOrdered];
+            barrels[barrelsOrdered] = p;
+        }
+        return barrels[n];
     }
 
+    public String toString() {
+        return "the " + colour + " robot @(" + x + "," + y + ")";
+    }
 
+    /**
+     * An action a program has chosen, with the shield and variables it had
+     * when it chose it, for the world's frames.
+     */
+    private static class QueuedAction {
+        final int action, times;
+        final boolean shield;
+        final Map<String, Integer> variables;
 
+        QueuedAction(int action, int times, boolean shield, Map<String, Integer> variables) {
+            this.action = action;
+            this.times = times;
+            this.shield = shield;
+            this.variables = variables;
+        }
+    }
+
+    /**
+     * print a message about the action to System.out if debugging is currently
+     * turned on.
+     */
+    private void debug(String action) {
+        if (debugDisplay) {
+            System.out.println(colour + " robot: " + action);
+        }
+    }
 }
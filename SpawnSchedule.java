@@ -0,0 +1,115 @@
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.function.Predicate;
+
+/**
+ * Every fuel barrel a match will be given, worked out before it starts by a
+ * SpawnStrategy. Round 0 is the fuel placed when the world starts, and round
+ * n the fuel added by its nth update. Each barrel comes with a list of
+ * squares to try in order, so that it can go somewhere else when its first
+ * choice already has a barrel or a robot on it; a barrel none of whose
+ * squares are free is not placed.
+ *
+ * Schedules are immutable, so one can be shared by any number of matches
+ * played at once. A repeating schedule starts again from round 1 once its
+ * rounds have been used up; any other has no more fuel after its last round.
+ */
+public final class SpawnSchedule {
+
+    private final int size;
+    private final boolean repeating;
+    // the barrels of round r are roundStart[r] .. roundStart[r+1]-1, and the
+    // squares to try for barrel b are squares[barrelStart[b] .. barrelStart[b+1]-1]
+    private final int[] roundStart, barrelStart, squares;
+
+    private SpawnSchedule(int size, boolean repeating, int[] roundStart, int[] barrelStart, int[] squares) {
+        this.size = size;
+        this.repeating = repeating;
+        this.roundStart = roundStart;
+        this.barrelStart = barrelStart;
+        this.squares = squares;
+    }
+
+    /**
+     * @return the number of rounds, including round 0
+     */
+    public int getRounds() {
+        return roundStart.length - 1;
+    }
+
+    public boolean isRepeating() {
+        return repeating;
+    }
+
+    /**
+     * Adds the barrels due in the given round to the set, each in the first
+     * of its squares that is not already in the set or blocked.
+     */
+    public void spawn(int round, Set<Point> barrels, Predicate<Point> blocked) {
+        int rounds = getRounds();
+        if (round >= rounds) {
+            if (!repeating || rounds <= 1) return;
+            round = 1 + (round - 1) % (rounds - 1);
+        }
+        for (int b = roundStart[round]; b < roundStart[round + 1]; b++) {
+            for (int i = barrelStart[b]; i < barrelStart[b + 1]; i++) {
+                Point p = new Point(squares[i] % size, squares[i] / size);
+                if (!barrels.contains(p) && !blocked.test(p)) {
+                    barrels.add(p);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * Collects the barrels of a schedule round by round.
+     */
+    public static class Builder {
+        private final int size;
+        private int[] roundStart = new int[64], barrelStart = new int[64], squares = new int[256];
+        private int rounds, barrels, count;
+
+        /**
+         * Starts round 0 of a schedule for a size by size arena.
+         */
+        public Builder(int size) {
+            this.size = size;
+        }
+
+        /**
+         * Adds a barrel to the current round, to go in the first free one of
+         * the given squares. Squares off the arena are left out.
+         */
+        public Builder barrel(Point... choices) {
+            if (barrels + 2 > barrelStart.length) barrelStart = Arrays.copyOf(barrelStart, 2 * barrelStart.length);
+            barrelStart[barrels++] = count;
+            for (Point p : choices) {
+                if (p.x < 0 || p.y < 0 || p.x >= size || p.y >= size) continue;
+                if (count == squares.length) squares = Arrays.copyOf(squares, 2 * count);
+                squares[count++] = p.y * size + p.x;
+            }
+            return this;
+        }
+
+        /**
+         * Ends the current round and starts the next.
+         */
+        public Builder nextRound() {
+            if (rounds + 2 > roundStart.length) roundStart = Arrays.copyOf(roundStart, 2 * roundStart.length);
+            roundStart[++rounds] = barrels;
+            return this;
+        }
+
+        /**
+         * Ends the current round and returns the schedule.
+         */
+        public SpawnSchedule build(boolean repeating) {
+            nextRound();
+            barrelStart[barrels] = count;
+            return new SpawnSchedule(size, repeating, Arrays.copyOf(roundStart, rounds + 1),
+                                     Arrays.copyOf(barrelStart, barrels + 1), Arrays.copyOf(squares, count));
+        }
+    }
+}
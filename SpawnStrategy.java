@@ -0,0 +1,295 @@
+import java.awt.Point;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Decides where and when fuel barrels appear in a world.
+ * A strategy turns a match's seed into a SpawnSchedule before the match
+ * starts, so the world draws no random numbers while it runs, and every
+ * program played with the same seed sees exactly the same fuel.
+ * Strategies remember the schedules of recent seeds, so repeated matches
+ * with the same seed share one schedule.
+ */
+public interface SpawnStrategy {
+
+    /** The number of rounds of a generated schedule before it repeats */
+    public static final int HORIZON = 1024;
+
+    /** The number of squares tried for each generated barrel */
+    public static final int CHOICES = 4;
+
+    /** A barrel anywhere, with a one in five chance each tick, as worlds always had */
+    public static final SpawnStrategy UNIFORM = new UniformSpawns(0.2);
+
+    /**
+     * @return the schedule for a match with the given seed
+     */
+    public SpawnSchedule schedule(long seed);
+
+    /**
+     * Barrels gathered around a few spots, chosen from the seed, each at most
+     * spread squares away from its spot.
+     */
+    public static SpawnStrategy clustered(double rate, int clusters, int spread) {
+        return new ClusteredSpawns(rate, clusters, spread);
+    }
+
+    /**
+     * Barrels in pairs, each the mirror image of the other through the
+     * centre of the arena, so neither starting corner is favoured.
+     */
+    public static SpawnStrategy symmetric(double pairRate) {
+        return new SymmetricSpawns(pairRate);
+    }
+
+    /**
+     * Barrels at the ticks and squares listed in a file, whatever the seed.
+     * Each line is "tick x y", with ticks from 0, the fuel placed at the
+     * start, up to a million, and blank lines and lines starting with # are
+     * skipped.
+     */
+    public static SpawnStrategy fromFile(Path file) throws IOException {
+        return new ScheduledSpawns(file);
+    }
+
+    /**
+     * @param name uniform, clustered or symmetric for those strategies with
+     *             their usual settings, or else the file to read a schedule from
+     */
+    public static SpawnStrategy named(String name) throws IOException {
+        switch (name) {
+        case "uniform": return UNIFORM;
+        case "clustered": return clustered(0.2, 3, 2);
+        case "symmetric": return symmetric(0.1);
+        default: return fromFile(Paths.get(name));
+        }
+    }
+
+    /**
+     * As named(), but reads schedule files only from dir, so that a name
+     * from an untrusted source cannot open any other file.
+     *
+     * @param dir the directory to read schedule files from, or null to
+     *            allow only the built-in strategies
+     * @throws IOException if the name is neither built in nor a file in dir
+     */
+    public static SpawnStrategy named(String name, Path dir) throws IOException {
+        switch (name) {
+        case "uniform", "clustered", "symmetric": return named(name);
+        default:
+            if (dir == null) throw new IOException("unknown spawn strategy " + name);
+            Path base = dir.toRealPath(), file;
+            try {
+                file = base.resolve(name).normalize();
+            } catch (InvalidPathException e) {
+                throw new IOException("bad spawn file name " + name);
+            }
+            // checked before the file is looked at, and again once links are followed
+            if (!file.startsWith(base) || !file.toRealPath().startsWith(base)) {
+                throw new IOException(name + " is not in " + dir);
+            }
+            return fromFile(file);
+        }
+    }
+}
+
+/**
+ * Strategies that generate a schedule from the seed, keeping the most
+ * recently used ones.
+ */
+abstract class GeneratedSpawns implements SpawnStrategy {
+    private static final int CACHE_SIZE = 64;
+
+    private final Map<Long, SpawnSchedule> schedules = Collections.synchronizedMap(
+        new LinkedHashMap<>(CACHE_SIZE, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<Long, SpawnSchedule> eldest) {
+                return size() > CACHE_SIZE;
+            }
+        });
+
+    @Override
+    public SpawnSchedule schedule(long seed) {
+        return schedules.computeIfAbsent(seed, s -> {
+                SpawnSchedule.Builder b = new SpawnSchedule.Builder(World.SIZE);
+                generate(s, b);
+                return b.build(true);
+            });
+    }
+
+    /**
+     * Adds round 0 and HORIZON - 1 more rounds to the builder.
+     */
+    abstract void generate(long seed, SpawnSchedule.Builder b);
+
+    /**
+     * A barrel's squares: the given first choice, then CHOICES - 1 others
+     * anywhere on the arena.
+     */
+    static Point[] choices(Point first, Random rand) {
+        Point[] choices = new Point[CHOICES];
+        choices[0] = first;
+        for (int i = 1; i < CHOICES; i++) {
+            choices[i] = new Point(rand.nextInt(World.SIZE), rand.nextInt(World.SIZE));
+        }
+        return choices;
+    }
+}
+
+/**
+ * Uniformly anywhere. The first choice of every barrel is drawn exactly as
+ * worlds used to draw their barrels, so a seed gives the same fuel it always
+ * did, except where that landed on a robot or another barrel.
+ */
+class UniformSpawns extends GeneratedSpawns {
+    private final double rate;
+
+    UniformSpawns(double rate) {
+        this.rate = rate;
+    }
+
+    @Override
+    void generate(long seed, SpawnSchedule.Builder b) {
+        Random rand = new Random(seed), others = new Random(~seed);
+        for (int i = 0; i < 2; i++) {
+            b.barrel(choices(new Point(rand.nextInt(World.SIZE), rand.nextInt(World.SIZE)), others));
+        }
+        for (int round = 1; round < HORIZON; round++) {
+            b.nextRound();
+            if (rand.nextDouble() < rate) {
+                b.barrel(choices(new Point(rand.nextInt(World.SIZE), rand.nextInt(World.SIZE)), others));
+            }
+        }
+    }
+}
+
+/**
+ * Gathered around a few spots.
+ */
+class ClusteredSpawns extends GeneratedSpawns {
+    private final double rate;
+    private final int clusters, spread;
+
+    ClusteredSpawns(double rate, int clusters, int spread) {
+        this.rate = rate;
+        this.clusters = Math.max(1, clusters);
+        this.spread = Math.max(0, spread);
+    }
+
+    @Override
+    void generate(long seed, SpawnSchedule.Builder b) {
+        Random rand = new Random(seed);
+        Point[] spots = new Point[clusters];
+        for (int i = 0; i < clusters; i++) {
+            spots[i] = new Point(rand.nextInt(World.SIZE), rand.nextInt(World.SIZE));
+        }
+        for (int i = 0; i < 2; i++) {
+            b.barrel(near(spots[i % clusters], rand));
+        }
+        for (int round = 1; round < HORIZON; round++) {
+            b.nextRound();
+            if (rand.nextDouble() < rate) {
+                b.barrel(near(spots[rand.nextInt(clusters)], rand));
+            }
+        }
+    }
+
+    private Point[] near(Point spot, Random rand) {
+        Point[] choices = new Point[CHOICES];
+        for (int i = 0; i < CHOICES; i++) {
+            int x = spot.x + rand.nextInt(2 * spread + 1) - spread;
+            int y = spot.y + rand.nextInt(2 * spread + 1) - spread;
+            choices[i] = new Point(Math.max(0, Math.min(World.SIZE - 1, x)), Math.max(0, Math.min(World.SIZE - 1, y)));
+        }
+        return choices;
+    }
+}
+
+/**
+ * In pairs mirrored through the centre, which swaps the robots' corners.
+ */
+class SymmetricSpawns extends GeneratedSpawns {
+    private final double pairRate;
+
+    SymmetricSpawns(double pairRate) {
+        this.pairRate = pairRate;
+    }
+
+    @Override
+    void generate(long seed, SpawnSchedule.Builder b) {
+        Random rand = new Random(seed);
+        pair(b, rand);
+        for (int round = 1; round < HORIZON; round++) {
+            b.nextRound();
+            if (rand.nextDouble() < pairRate) pair(b, rand);
+        }
+    }
+
+    private static void pair(SpawnSchedule.Builder b, Random rand) {
+        Point[] choices = choices(new Point(rand.nextInt(World.SIZE), rand.nextInt(World.SIZE)), rand);
+        Point[] mirrors = new Point[CHOICES];
+        for (int i = 0; i < CHOICES; i++) {
+            mirrors[i] = new Point(World.SIZE - 1 - choices[i].x, World.SIZE - 1 - choices[i].y);
+        }
+        b.barrel(choices);
+        b.barrel(mirrors);
+    }
+}
+
+/**
+ * Read from a file, once.
+ */
+class ScheduledSpawns implements SpawnStrategy {
+    // the latest tick a file may name: far beyond any match, but every tick
+    // up to it takes a round, so this keeps the schedule to a few megabytes
+    static final int MAX_TICK = 1_000_000;
+
+    private final SpawnSchedule schedule;
+
+    ScheduledSpawns(Path file) throws IOException {
+        SpawnSchedule.Builder b = new SpawnSchedule.Builder(World.SIZE);
+        int round = 0;
+        try (BufferedReader in = Files.newBufferedReader(file)) {
+            String line;
+            int lineNumber = 0;
+            while ((line = in.readLine()) != null) {
+                lineNumber++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) continue;
+                String[] fields = line.split("\\s+");
+                int tick, x, y;
+                try {
+                    tick = Integer.parseInt(fields[0]);
+                    x = Integer.parseInt(fields[1]);
+                    y = Integer.parseInt(fields[2]);
+                } catch (NumberFormatException | ArrayIndexOutOfBoundsException e) {
+                    throw new IOException(file + ":" + lineNumber + ": expected tick x y, got: " + line);
+                }
+                if (tick < round) {
+                    throw new IOException(file + ":" + lineNumber + ": ticks must not go backwards");
+                }
+                if (tick > MAX_TICK) {
+                    throw new IOException(file + ":" + lineNumber + ": tick " + tick + " is after " + MAX_TICK);
+                }
+                while (round < tick) {
+                    b.nextRound();
+                    round++;
+                }
+                b.barrel(new Point(x, y));
+            }
+        }
+        schedule = b.build(false);
+    }
+
+    @Override
+    public SpawnSchedule schedule(long seed) {
+        return schedule;
+    }
+}
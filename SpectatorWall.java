@@ -0,0 +1,256 @@
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Font;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.geom.AffineTransform;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import javax.swing.JComponent;
+import javax.swing.JFrame;
+import javax.swing.JScrollPane;
+import javax.swing.SwingUtilities;
+import javax.swing.Timer;
+
+/**
+ * Shows many live matches at once, as a grid of scaled-down worlds in one
+ * component. One background thread advances every world, and one Swing timer
+ * decides which tiles need painting: a tile is repainted when its world
+ * moves to a new tick, and in between only while a robot on it is moving or
+ * turning, at a lower rate than the main view. Finished matches are not
+ * repainted at all. Painting only touches the tiles that changed, and the
+ * sprites are shared with every other view through the robots' cache.
+ *
+ * Usage: java SpectatorWall [-n matches] [-c columns] [-z tileSize] [-t tickMillis] [-s seed] [prog ...]
+ * The programs (by default every valid program in the programs directory)
+ * are paired up in turn; "default" stands for the robot's built-in behaviour.
+ */
+@SuppressWarnings("serial")
+public class SpectatorWall extends JComponent {
+
+    private static final int RENDER_DELAY = 40;
+    private static final long ANIMATION_INTERVAL = 120_000_000L;
+    private static final int LABEL_HEIGHT = 14;
+
+    /**
+     * One match on the wall, and what has been painted of it.
+     */
+    private static class Tile {
+        final World world;
+        final String label;
+        // written by the simulation thread, read by the render timer
+        volatile long tickStarted = System.nanoTime();
+        volatile boolean changed = true, over;
+        volatile String result;
+        // only used on the event dispatch thread
+        long lastPainted;
+
+        Tile(World world, String label) {
+            this.world = world;
+            this.label = label;
+        }
+    }
+
+    private final List<Tile> tiles = new CopyOnWriteArrayList<>();
+    private final int columns, tileSize, tickMillis;
+    private ScheduledExecutorService simulation;
+    private Timer renderTimer;
+
+    /**
+     * @param columns    tiles per row
+     * @param tileSize   width and height of each world, in pixels
+     * @param tickMillis how long each tick of every world lasts
+     */
+    public SpectatorWall(int columns, int tileSize, int tickMillis) {
+        this.columns = columns;
+        this.tileSize = tileSize;
+        this.tickMillis = tickMillis;
+        setBackground(Color.WHITE);
+        setOpaque(true);
+    }
+
+    /**
+     * Adds a world, which should not have been started, to the wall.
+     */
+    public void addMatch(World world, String label) {
+        Tile tile = new Tile(world, label);
+        world.addListener(new WorldListener() {
+                public void tickCommitted(World w, WorldSnapshot frame) {
+                    tile.tickStarted = System.nanoTime();
+                    tile.changed = true;
+                }
+
+                public void robotDied(World w, int robot) {
+                    tile.over = true;
+                    tile.result = (tile.result == null) ? (robot == 1 ? "blue wins" : "red wins") : "draw";
+                }
+            });
+        tiles.add(tile);
+        int rows = (tiles.size() + columns - 1) / columns;
+        setPreferredSize(new Dimension(columns * tileSize, rows * (tileSize + LABEL_HEIGHT)));
+        revalidate();
+    }
+
+    /**
+     * Starts every world, the thread that advances them and the render timer.
+     */
+    public void start() {
+        for (Tile t : tiles) t.world.start();
+        simulation = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "spectator-wall");
+                t.setDaemon(true);
+                return t;
+            });
+        simulation.scheduleAtFixedRate(this::advance, tickMillis, tickMillis, TimeUnit.MILLISECONDS);
+        renderTimer = new Timer(RENDER_DELAY, e -> repaintChanged());
+        renderTimer.start();
+    }
+
+    /**
+     * Stops everything and the worlds with it.
+     */
+    public void stop() {
+        if (renderTimer != null) renderTimer.stop();
+        if (simulation != null) simulation.shutdownNow();
+        for (Tile t : tiles) t.world.reset();
+    }
+
+    private void advance() {
+        for (Tile t : tiles) {
+            if (!t.over) t.world.updateWorld();
+        }
+    }
+
+    /**
+     * Asks Swing to repaint just the tiles that have something new to show.
+     */
+    private void repaintChanged() {
+        long now = System.nanoTime();
+        for (int i = 0; i < tiles.size(); i++) {
+            Tile t = tiles.get(i);
+            boolean animating = !t.over && isActive(t.world.getFrame())
+                && now - t.tickStarted < tickMillis * 1_000_000L;
+            if (t.changed || (animating && now - t.lastPainted >= ANIMATION_INTERVAL)) {
+                t.changed = false;
+                t.lastPainted = now;
+                repaint(tileBounds(i));
+            }
+        }
+    }
+
+    /**
+     * Whether either robot is moving or turning, so that there is something
+     * to animate between ticks.
+     */
+    private static boolean isActive(WorldSnapshot frame) {
+        for (int i = 1; i <= 2; i++) {
+            int action = frame.getRobot(i).getAction();
+            if (action > 0 && action < Robot.ACTION_TAKE_FUEL) return true;
+        }
+        return false;
+    }
+
+    private Rectangle tileBounds(int i) {
+        return new Rectangle((i % columns) * tileSize, (i / columns) * (tileSize + LABEL_HEIGHT),
+                             tileSize, tileSize + LABEL_HEIGHT);
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        Graphics2D g2d = (Graphics2D) g;
+        Rectangle clip = g2d.getClipBounds();
+        g2d.setColor(getBackground());
+        g2d.fill(clip != null ? clip : new Rectangle(getSize()));
+        // the tiles are small, so speed matters more than smooth edges
+        g2d.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_OFF);
+        g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR);
+        g2d.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_SPEED);
+        g2d.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, LABEL_HEIGHT - 3));
+
+        double scale = (double) tileSize / WorldPainter.WIDTH;
+        long now = System.nanoTime();
+        for (int i = 0; i < tiles.size(); i++) {
+            Rectangle bounds = tileBounds(i);
+            if (clip != null && !clip.intersects(bounds)) continue;
+            Tile t = tiles.get(i);
+
+            WorldSnapshot frame = t.world.getFrame();
+            double time = t.over ? 0 : Math.min(1, (now - t.tickStarted) / (tickMillis * 1e6));
+            AffineTransform saved = g2d.getTransform();
+            g2d.translate(bounds.x, bounds.y + LABEL_HEIGHT);
+            g2d.scale(scale, scale);
+            WorldPainter.paint(g2d, t.world, frame, time);
+            g2d.setTransform(saved);
+
+            g2d.setColor(t.over ? Color.RED : Color.BLACK);
+            String status = t.label + "  tick " + frame.getTick() + ((t.result != null) ? "  " + t.result : "");
+            g2d.drawString(status, bounds.x + 2, bounds.y + LABEL_HEIGHT - 3);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int matches = 16, columns = 4, tileSize = 200, tickMillis = 300;
+        long seed = 1;
+        List<String> names = new ArrayList<>();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-n" -> matches = Integer.parseInt(args[++i]);
+            case "-c" -> columns = Integer.parseInt(args[++i]);
+            case "-z" -> tileSize = Integer.parseInt(args[++i]);
+            case "-t" -> tickMillis = Integer.parseInt(args[++i]);
+            case "-s" -> seed = Long.parseLong(args[++i]);
+            default -> names.add(args[i]);
+            }
+        }
+        Robot.debugDisplay = false;
+
+        List<String> labels = new ArrayList<>();
+        List<ProgramNode> programs = new ArrayList<>();
+        if (names.isEmpty()) {
+            File[] files = new File(RoboGame.CODE_DIRECTORY).listFiles((dir, name) -> name.endsWith(".prog"));
+            if (files != null) {
+                Arrays.sort(files);
+                for (File f : files) names.add(f.getPath());
+            }
+            names.add(RoboMatch.DEFAULT_PROGRAM);
+        }
+        for (String name : names) {
+            try {
+                programs.add(name.equals(RoboMatch.DEFAULT_PROGRAM) ? null
+                             : CompiledProgram.compile(ProgramCache.load(new File(name).toPath())));
+                labels.add(new File(name).getName().replace(".prog", ""));
+            } catch (ParserFailureException e) {
+                // leave it out
+            }
+        }
+
+        SpectatorWall wall = new SpectatorWall(columns, tileSize, tickMillis);
+        for (int i = 0; i < matches; i++) {
+            int red = (2 * i) % programs.size(), blue = (2 * i + 1) % programs.size();
+            World world = new World(seed + i);
+            if (programs.get(red) != null) world.getRobot(1).setProgram(programs.get(red));
+            if (programs.get(blue) != null) world.getRobot(2).setProgram(programs.get(blue));
+            wall.addMatch(world, labels.get(red) + " v " + labels.get(blue));
+        }
+
+        SwingUtilities.invokeLater(() -> {
+                JFrame frame = new JFrame("Spectator wall");
+                frame.setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
+                frame.add(new JScrollPane(wall));
+                frame.pack();
+                frame.setLocationRelativeTo(null);
+                frame.setVisible(true);
+                wall.start();
+            });
+    }
+}
@@ -0,0 +1,587 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Objects;
+import java.util.Random;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.swing.text.BadLocationException;
+import javax.swing.text.PlainDocument;
+
+/**
+ * Runs every case from ParserTester2 and ExecuteTester, and every file in the
+ * programs directory, in parallel, timing the parse and the execution of each.
+ * Files with "bad" in their name are expected to fail to parse, but some are
+ * only invalid in the grammar of their own stage, so a bad file that parses
+ * is reported as XPASS rather than failing the run. The other files are
+ * executed on a TesterRobot, which stops them after 20 actions, and then
+ * played against the default robot twice with each of a few seeds, and
+ * once more with the programs stepped by the world, to check that the
+ * matches all go through the same history. Every execute case and valid file
+ * is also compiled (see CompiledProgram) and checked to make the same calls
+ * on a TesterRobot as its tree, along with a program nested too deeply for
+ * the tree to run. The valid parser cases and files, and that deep program,
+ * are printed and parsed again to check they print the same, and saved as
+ * .progc files and read back, whole and cut short. The valid files are also
+ * edited at random in a document, checking the incremental parse after each
+ * edit against a full one.
+ *
+ * Prints one line per case, in a fixed order whatever order they ran in:
+ *   status  id  parse-microseconds  execute-microseconds  detail
+ * separated by tabs ("-" for a step that did not run), or one JSON object per
+ * case with -json. Each case is run -r times and the fastest times are
+ * reported. Exits with status 1 if any case failed.
+ *
+ * Usage: java TestHarness [-j threads] [-r repeats] [-d directory] [-json]
+ */
+public class TestHarness {
+
+    // seeds each program is played with to check matches are reproducible
+    private static final int SEEDS = 5;
+    // how deeply the loops of the deep program for the compiler are nested
+    private static final int DEEP = 20000;
+
+    /**
+     * One test case and, once it has run, its outcome.
+     */
+    static class Case {
+        final String id, program, expected;
+        final boolean valid, execute;
+        // whether parsing a program that should be invalid is a failure
+        final boolean strict;
+        boolean passed, unexpected;
+        long parseNanos = -1, executeNanos = -1;
+        String detail = "";
+
+        /**
+         * @param expected the actions the program should make, or null if
+         *                 they are not checked
+         */
+        Case(String id, String program, boolean valid, boolean execute, String expected) {
+            this(id, program, valid, execute, expected, true);
+        }
+
+        Case(String id, String program, boolean valid, boolean execute, String expected, boolean strict) {
+            this.id = id;
+            this.program = program;
+            this.valid = valid;
+            this.execute = execute;
+            this.expected = expected;
+            this.strict = strict;
+        }
+
+        /**
+         * Parses and (if it should) executes the program, keeping the fastest
+         * times seen.
+         */
+        void run() {
+            Parser parser = new Parser();
+            long start = System.nanoTime();
+            ProgramNode ast;
+            try {
+                ast = parser.parse(new ProgramLexer(ByteBuffer.wrap(program.getBytes())));
+            } catch (ParserFailureException e) {
+                parseNanos = fastest(parseNanos, System.nanoTime() - start);
+                passed = !valid;
+                detail = valid ? "parser threw for a valid program: " + e.getMessage() : "";
+                return;
+            } catch (RuntimeException e) {
+                passed = false;
+                detail = "parser broke: " + e;
+                return;
+            }
+            parseNanos = fastest(parseNanos, System.nanoTime() - start);
+            if (!valid) {
+                passed = !strict;
+                unexpected = !strict;
+                detail = "parser accepted an invalid program";
+                return;
+            }
+            if (ast == null) {
+                passed = false;
+                detail = "parser returned a null tree";
+                return;
+            }
+            passed = true;
+            if (!execute) return;
+
+            TesterRobot robot = new TesterRobot();
+            start = System.nanoTime();
+            try {
+                ast.execute(robot);
+            } catch (RobotInterruptedException e) {
+                // the robot ran out of actions
+            } catch (ArithmeticException | IndexOutOfBoundsException e) {
+                // the program is allowed to fail at run time
+                detail = "stopped: " + e;
+            }
+            executeNanos = fastest(executeNanos, System.nanoTime() - start);
+            if (expected != null && !ExecuteTester.matches(robot.getOutput(), expected)) {
+                passed = false;
+                detail = "expected [" + expected + "] but got " + robot.getOutput();
+            }
+        }
+
+        private static long fastest(long best, long time) {
+            return (best < 0) ? time : Math.min(best, time);
+        }
+
+        String toLine() {
+            return String.join("\t", status(), id, micros(parseNanos), micros(executeNanos),
+                               detail.replaceAll("\\s+", " "));
+        }
+
+        String status() {
+            return !passed ? "FAIL" : unexpected ? "XPASS" : "PASS";
+        }
+
+        String toJson() {
+            return String.format("{\"id\":%s,\"status\":%s,\"parseMicros\":%s,\"executeMicros\":%s,\"detail\":%s}",
+                                 Json.quote(id), Json.quote(status()), (parseNanos < 0) ? "null" : parseNanos / 1000,
+                                 (executeNanos < 0) ? "null" : executeNanos / 1000, Json.quote(detail));
+        }
+
+        private static String micros(long nanos) {
+            return (nanos < 0) ? "-" : Long.toString(nanos / 1000);
+        }
+    }
+
+    /**
+     * Runs a program compiled (see CompiledProgram) as well as as a tree,
+     * and checks that the compiled program makes the same calls on a
+     * TesterRobot as the tree does, or, if there are expected actions, that
+     * it makes those, without running the tree.
+     */
+    static class CompiledCase extends Case {
+
+        CompiledCase(String id, String program, String expected) {
+            super(id, program, true, true, expected);
+        }
+
+        @Override
+        void run() {
+            long start = System.nanoTime();
+            ProgramNode ast;
+            CompiledProgram compiled;
+            try {
+                ast = new Parser().parse(new ProgramLexer(ByteBuffer.wrap(program.getBytes())));
+                compiled = CompiledProgram.compile(ast);
+            } catch (ParserFailureException e) {
+                passed = false;
+                detail = "parser threw for a valid program: " + e.getMessage();
+                return;
+            } catch (RuntimeException | StackOverflowError e) {
+                passed = false;
+                detail = "compiler broke: " + e;
+                return;
+            }
+            parseNanos = Case.fastest(parseNanos, System.nanoTime() - start);
+            start = System.nanoTime();
+            List<String> actual = trace(compiled);
+            executeNanos = Case.fastest(executeNanos, System.nanoTime() - start);
+            if (expected != null) {
+                passed = ExecuteTester.matches(actual, expected);
+                detail = passed ? "" : "expected [" + expected + "] but got " + actual;
+            } else {
+                List<String> tree = trace(ast);
+                passed = actual.equals(tree);
+                detail = passed ? "" : "the tree made " + tree + " but compiled made " + actual;
+            }
+        }
+
+        /**
+         * @return the calls the program makes on a TesterRobot, and how it
+         *         stopped if it failed
+         */
+        static List<String> trace(ProgramNode prog) {
+            TesterRobot robot = new TesterRobot();
+            try {
+                prog.execute(robot);
+            } catch (RobotInterruptedException e) {
+                // the robot ran out of actions
+            } catch (ArithmeticException | IndexOutOfBoundsException e) {
+                robot.getOutput().add("stopped: " + e);
+            }
+            return robot.getOutput();
+        }
+    }
+
+    /**
+     * Prints a program in the syntax the parser reads (see ProgramPrinter),
+     * and checks that parsing what was printed gives back a program that
+     * prints the same.
+     */
+    static class PrintedCase extends Case {
+
+        PrintedCase(String id, String program) {
+            super(id, program, true, false, null);
+        }
+
+        @Override
+        void run() {
+            long start = System.nanoTime();
+            String first, second;
+            try {
+                first = ProgramPrinter.canonical(new Parser().parse(new ProgramLexer(ByteBuffer.wrap(program.getBytes()))));
+                second = ProgramPrinter.canonical(new Parser().parse(new ProgramLexer(ByteBuffer.wrap(first.getBytes()))));
+            } catch (ParserFailureException e) {
+                passed = false;
+                detail = "parser threw: " + e.getMessage();
+                return;
+            } catch (RuntimeException | StackOverflowError | OutOfMemoryError e) {
+                passed = false;
+                detail = "printer broke: " + e;
+                return;
+            }
+            parseNanos = Case.fastest(parseNanos, System.nanoTime() - start);
+            passed = first.equals(second);
+            detail = passed ? "" : "printed [" + first + "] but then [" + second + "]";
+        }
+    }
+
+    /**
+     * Saves a program as a .progc (see ProgramCache) and checks that reading
+     * it back gives a program that prints the same, and that the file is
+     * rejected if it is cut short anywhere, or its magic number, hash or first
+     * tag is wrong.
+     */
+    static class EncodedCase extends Case {
+
+        EncodedCase(String id, String program) {
+            super(id, program, true, false, null);
+        }
+
+        @Override
+        void run() {
+            long start = System.nanoTime();
+            ByteBuffer source = ByteBuffer.wrap(program.getBytes());
+            ProgramNode prog;
+            try {
+                prog = new Parser().parse(new ProgramLexer(source.duplicate()));
+            } catch (ParserFailureException e) {
+                passed = false;
+                detail = "parser threw: " + e.getMessage();
+                return;
+            }
+            byte[] hash = ProgramCache.hash(source);
+            byte[] file = ProgramCache.encode(prog, hash);
+            int header = ProgramCache.MAGIC.length + hash.length;
+            ProgramNode read = ProgramCache.decode(ByteBuffer.wrap(file), hash);
+            parseNanos = Case.fastest(parseNanos, System.nanoTime() - start);
+            if (read == null) {
+                passed = false;
+                detail = "a whole file was rejected";
+                return;
+            }
+            String expected = ProgramPrinter.canonical(prog), actual = ProgramPrinter.canonical(read);
+            if (!actual.equals(expected)) {
+                passed = false;
+                detail = "saved [" + expected + "] but read [" + actual + "]";
+                return;
+            }
+            for (int length = 0; length < file.length; length++) {
+                if (ProgramCache.decode(ByteBuffer.wrap(file, 0, length), hash) != null) {
+                    passed = false;
+                    detail = "the file cut to " + length + " of " + file.length + " bytes was read";
+                    return;
+                }
+            }
+            int[] corrupt = { 0, header - 1, header };
+            String[] what = { "magic number", "hash", "first tag" };
+            for (int i = 0; i < corrupt.length; i++) {
+                byte[] bad = file.clone();
+                bad[corrupt[i]] = (byte) ((i == 2) ? -1 : ~bad[corrupt[i]]);
+                if (ProgramCache.decode(ByteBuffer.wrap(bad), hash) != null) {
+                    passed = false;
+                    detail = "the file with a wrong " + what[i] + " was read";
+                    return;
+                }
+            }
+            passed = true;
+        }
+    }
+
+    /**
+     * Makes random edits to a program in a document, some of which leave it
+     * valid and some of which need not, and checks after each that the
+     * IncrementalParser has the same program as parsing the whole document
+     * again, or fails as that does. A document that has stopped parsing is
+     * sometimes put back as it started.
+     */
+    static class IncrementalCase extends Case {
+        static final int EDITS = 200;
+        // text put in anywhere, and statements put in after a statement
+        static final String[] SNIPPETS = { "move;", " turnL; ", "{", "}", "(", ")", ";", " ", "x", "\n",
+                                           "loop { move(2); }", "$x = add(1, 2);" };
+        static final String[] STATEMENTS = { " move;", " turnL;", " while (lt(1, 2)) { wait; }", " loop { move(2); }",
+                                             " if (eq(fuelLeft, 3)) { shieldOn; } elif (gt(1, 2)) { turnR; } else { wait(3); }",
+                                             " if (eq(1, 1)) { } else { }", " $x = add(1, 2);" };
+
+        private final long seed;
+
+        IncrementalCase(String id, String program, long seed) {
+            super(id, program, true, false, null);
+            this.seed = seed;
+        }
+
+        @Override
+        void run() {
+            Random random = new Random(seed);
+            PlainDocument doc = new PlainDocument();
+            IncrementalParser parser = new IncrementalParser(doc);
+            long start = System.nanoTime();
+            try {
+                doc.insertString(0, program, null);
+                parser.reparse();
+                for (int i = 0; i < EDITS; i++) {
+                    String text = doc.getText(0, doc.getLength());
+                    String edit = edit(doc, text, random);
+                    parser.reparse();
+                    String expected = parse(doc.getText(0, doc.getLength()));
+                    String actual = (parser.getError() != null) ? null
+                        : (parser.getProgram() == null) ? "" : ProgramPrinter.canonical(parser.getProgram());
+                    if (!Objects.equals(expected, actual)) {
+                        passed = false;
+                        detail = "after " + edit + " the full parse "
+                            + ((expected == null) ? "failed" : "succeeded") + " but the incremental one "
+                            + ((actual == null) ? "failed" : "succeeded") + ((expected != null && actual != null) ? " with another program" : "");
+                        return;
+                    }
+                    if (expected == null && random.nextInt(3) == 0) doc.replace(0, doc.getLength(), program, null);
+                }
+            } catch (BadLocationException e) {
+                throw new IllegalStateException(e);
+            } catch (RuntimeException e) {
+                passed = false;
+                detail = "incremental parser broke: " + e;
+                return;
+            }
+            parseNanos = Case.fastest(parseNanos, System.nanoTime() - start);
+            passed = true;
+        }
+
+        /** Makes one edit, and describes it */
+        private static String edit(PlainDocument doc, String text, Random random) throws BadLocationException {
+            int statement = text.indexOf(';', random.nextInt(text.length() + 1));
+            if (statement >= 0 && random.nextBoolean()) {
+                if (random.nextBoolean()) {
+                    String insert = STATEMENTS[random.nextInt(STATEMENTS.length)];
+                    doc.insertString(statement + 1, insert, null);
+                    return "putting [" + insert + "] at " + (statement + 1);
+                }
+                int begin = 1 + Math.max(text.lastIndexOf(';', statement - 1),
+                                         Math.max(text.lastIndexOf('{', statement), text.lastIndexOf('}', statement)));
+                doc.remove(begin, statement + 1 - begin);
+                return "removing [" + text.substring(begin, statement + 1) + "] at " + begin;
+            }
+            int offset = random.nextInt(text.length() + 1);
+            int length = Math.min(text.length() - offset, random.nextInt(random.nextBoolean() ? 3 : 40));
+            String insert = SNIPPETS[random.nextInt(SNIPPETS.length)];
+            switch (random.nextInt(3)) {
+                case 0 -> doc.insertString(offset, insert, null);
+                case 1 -> doc.remove(offset, length);
+                default -> doc.replace(offset, length, insert, null);
+            }
+            return "an edit at " + offset + " of [" + text.substring(offset, offset + length) + "] or [" + insert + "]";
+        }
+
+        /** @return the whole text parsed and printed, or null if it does not parse */
+        private static String parse(String text) {
+            try {
+                ProgramNode prog = new Parser().parse(new ProgramLexer(ByteBuffer.wrap(text.getBytes())));
+                return (prog == null) ? "" : ProgramPrinter.canonical(prog);
+            } catch (ParserFailureException e) {
+                return null;
+            }
+        }
+    }
+
+    /**
+     * Plays a program against the default robot twice with the same seed,
+     * and then again with the programs stepped by the world, as MatchRunner
+     * plays them, and checks that all three worlds went through the same
+     * history.
+     */
+    static class SeedCase extends Case {
+        static final int TICKS = 300;
+        final long seed;
+
+        SeedCase(String id, String program, long seed) {
+            super(id, program, true, false, null);
+            this.seed = seed;
+        }
+
+        @Override
+        void run() {
+            ProgramNode ast;
+            try {
+                ast = new Parser().parse(new ProgramLexer(ByteBuffer.wrap(program.getBytes())));
+            } catch (ParserFailureException e) {
+                passed = false;
+                detail = "parser threw for a valid program: " + e.getMessage();
+                return;
+            }
+            long start = System.nanoTime();
+            WorldHistory first = play(ast, seed, false), second = play(ast, seed, false);
+            WorldHistory stepped = play(ast, seed, true);
+            executeNanos = Case.fastest(executeNanos, System.nanoTime() - start);
+            int tick = first.firstDifference(second);
+            int steppedTick = first.firstDifference(stepped);
+            passed = tick < 0 && steppedTick < 0;
+            detail = (tick >= 0) ? "same seed, different histories from tick " + tick
+                : (steppedTick >= 0) ? "stepped, different history from tick " + steppedTick : "";
+        }
+
+        /**
+         * Plays the match, with the programs on robot threads or stepped.
+         */
+        static WorldHistory play(ProgramNode red, long seed, boolean stepped) {
+            World world = new World(seed);
+            world.setHistory(new WorldHistory());
+            world.getRobot(1).setProgram(red);
+            if (stepped) {
+                world.startStepped();
+            } else {
+                world.start();
+            }
+            try {
+                while (world.getTick() < TICKS && !world.getRobot(1).isDead() && !world.getRobot(2).isDead()) {
+                    world.updateWorld();
+                }
+            } finally {
+                world.reset();
+            }
+            return world.getHistory();
+        }
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException, ExecutionException {
+        int threads = Runtime.getRuntime().availableProcessors(), repeats = 1;
+        String directory = RoboGame.CODE_DIRECTORY;
+        boolean json = false;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+            case "-j" -> threads = Integer.parseInt(args[++i]);
+            case "-r" -> repeats = Integer.parseInt(args[++i]);
+            case "-d" -> directory = args[++i];
+            case "-json" -> json = true;
+            default -> System.err.println("Unknown option " + args[i]);
+            }
+        }
+        Robot.debugDisplay = false;
+
+        List<Case> cases = collectCases(Paths.get(directory));
+        ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, threads));
+        long start = System.nanoTime();
+        try {
+            List<Future<?>> pending = new ArrayList<>();
+            for (Case c : cases) {
+                int times = repeats;
+                pending.add(pool.submit(() -> {
+                    for (int i = 0; i < times; i++) c.run();
+                }));
+            }
+            for (Future<?> f : pending) f.get();
+        } finally {
+            pool.shutdown();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        int failed = 0, unexpected = 0;
+        if (!json) System.out.println("status\tid\tparse_us\texecute_us\tdetail");
+        for (Case c : cases) {
+            System.out.println(json ? c.toJson() : c.toLine());
+            if (!c.passed) failed++;
+            if (c.unexpected) unexpected++;
+        }
+        String summary = String.format("%d cases, %d passed (%d unexpectedly), %d failed, %d ms on %d threads",
+                                       cases.size(), cases.size() - failed, unexpected, failed,
+                                       elapsed / 1000000, threads);
+        System.out.println(json ? "{\"summary\":" + Json.quote(summary) + "}" : "# " + summary);
+        System.exit(failed == 0 ? 0 : 1);
+    }
+
+    /**
+     * Every parser case and the valid ones printed and saved, every execute
+     * case and every execute case compiled, then every program file in the
+     * directory in name order, and the valid ones again compiled, printed,
+     * saved, edited, and played twice with each seed.
+     */
+    static List<Case> collectCases(Path directory) throws IOException {
+        List<Case> cases = new ArrayList<>();
+        String[][][] parserCases = ParserTester2.programs;
+        for (int stage = 0; stage < parserCases.length; stage++) {
+            for (int i = 0; i < parserCases[stage].length; i++) {
+                String[] test = parserCases[stage][i];
+                cases.add(new Case("parse/s" + stage + "/" + i, test[1], test[0].equals("VALID"), false, null));
+            }
+        }
+        for (int stage = 0; stage < parserCases.length; stage++) {
+            for (int i = 0; i < parserCases[stage].length; i++) {
+                String[] test = parserCases[stage][i];
+                if (!test[0].equals("VALID")) continue;
+                cases.add(new PrintedCase("printed/s" + stage + "/" + i, test[1]));
+                cases.add(new EncodedCase("encoded/s" + stage + "/" + i, test[1]));
+            }
+        }
+        String[][][] executeCases = ExecuteTester.programs;
+        for (int stage = 0; stage < executeCases.length; stage++) {
+            for (int i = 0; i < executeCases[stage].length; i++) {
+                String[] test = executeCases[stage][i];
+                cases.add(new Case("execute/s" + stage + "/" + i, test[0], true, true, test[1]));
+            }
+        }
+        for (int stage = 0; stage < executeCases.length; stage++) {
+            for (int i = 0; i < executeCases[stage].length; i++) {
+                cases.add(new CompiledCase("compiled/s" + stage + "/" + i, executeCases[stage][i][0], null));
+            }
+        }
+        // deeper than the tree could run on a pool thread's stack
+        String deep = "loop { ".repeat(DEEP) + "move;" + " }".repeat(DEEP);
+        cases.add(new CompiledCase("compiled/deep", deep, "move ".repeat(20).trim()));
+        cases.add(new PrintedCase("printed/deep", deep));
+        if (Files.isDirectory(directory)) {
+            List<Path> files = new ArrayList<>();
+            try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, "*.prog")) {
+                stream.forEach(files::add);
+            }
+            files.sort(null);
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                cases.add(new Case("file/" + name, Files.readString(file), !name.contains("bad"), true, null, false));
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.contains("bad")) continue;
+                cases.add(new CompiledCase("compiled/" + name, Files.readString(file), null));
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.contains("bad")) continue;
+                cases.add(new PrintedCase("printed/" + name, Files.readString(file)));
+                cases.add(new EncodedCase("encoded/" + name, Files.readString(file)));
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.contains("bad")) continue;
+                cases.add(new IncrementalCase("incremental/" + name, Files.readString(file), name.hashCode()));
+            }
+            for (Path file : files) {
+                String name = file.getFileName().toString();
+                if (name.contains("bad")) continue;
+                for (long seed = 1; seed <= SEEDS; seed++) {
+                    cases.add(new SeedCase("seed/" + name + "/" + seed, Files.readString(file), seed));
+                }
+            }
+        }
+        return cases;
+    }
+}
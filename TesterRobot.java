@@ -23,6 +23,8 @@ public class TesterRobot extends Robot {
     public void setShield(boolean shield) {check(); output.add("shield" + (shield ? "On" : "Off"));}
     public void takeFuel() {check(); output.add("takeFuel");}
     public void idleWait() {check(); output.add("wait");}
+    public void move(int steps) {for (int i = 0; i < steps; i++) move();}
+    public void idleWait(int ticks) {for (int i = 0; i < ticks; i++) idleWait();}
 
     public int getFuel() {output.add("getFuelLeft");  return fuel--;}
     public int getDistanceToWall() { output.add("getWallDist"); return wallDist++;}
@@ -35,6 +37,8 @@ public class TesterRobot extends Robot {
     public int getClosestBarrelFB() {output.add("getBarrelFB");  return 4;}
     public int getBarrelLR(int n) {output.add("getBarrelLR("+n+")"); return 4+n;}
     public int getBarrelFB(int n) {output.add("getBarrelFB("+n+")"); return 4+n;}
+    public int getBarrelDistance() {output.add("getBarrelDist");  return 6;}
+    public int getBarrelDirection() {output.add("getBarrelDir");  return 1;}
 
     public boolean isShieldOn() {output.add("getSheildOn"); shield = !shield; return !shield;}
 
@@ -0,0 +1,77 @@
+import java.util.List;
+import java.util.Scanner;
+
+/**
+ * The tokens of a robot program, as read by the Parser.
+ * Tokens are the single characters { } ( ) , ; and every run of other
+ * non-whitespace characters between them.
+ */
+interface TokenStream {
+
+    /** The delimiter that makes a Scanner split a program into tokens */
+    public static final String DELIMITER = "\\s+|(?=[{}(),;])|(?<=[{}(),;])";
+
+    public boolean hasNext();
+
+    /**
+     * @return the next token without consuming it, or null at the end
+     */
+    public String peek();
+
+    /**
+     * Consumes and returns the next token, or null at the end.
+     */
+    public String next();
+
+    /**
+     * @return the character offset of the next token in the source, or -1
+     *         if the source does not track positions
+     */
+    public default long position() { return -1; }
+
+    /**
+     * @return the line (from 1) of the next token, or -1 if unknown
+     */
+    public default int line() { return -1; }
+
+    /**
+     * Called by the parser when the next token should open a BLOCK. A stream
+     * that already has the statements of the block starting there, because
+     * it is unchanged since it was last parsed, can skip past its closing }
+     * and return them, and the parser will use them as they are.
+     *
+     * @return the statements of the block, or null to have it parsed
+     */
+    public default List<ProgramNode> reuseBlock() { return null; }
+
+    /**
+     * Called by the parser with the statements of each BLOCK it parses, just
+     * after consuming its closing }.
+     */
+    public default void blockParsed(List<ProgramNode> statements) { }
+
+    /**
+     * Reads tokens from a Scanner, setting its delimiter to DELIMITER.
+     */
+    public static TokenStream of(Scanner s) {
+        s.useDelimiter(DELIMITER);
+        return new TokenStream() {
+            private String peeked;
+
+            public boolean hasNext() {
+                return peeked != null || s.hasNext();
+            }
+
+            public String peek() {
+                if (peeked == null && s.hasNext()) peeked = s.next();
+                return peeked;
+            }
+
+            public String next() {
+                String token = peek();
+                peeked = null;
+                return token;
+            }
+        };
+    }
+}
@@ -1,17 +1,19 @@
 
 import java.awt.Point;
 import java.io.File;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.Collections;
 import java.util.List;
 import java.util.Random;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
-import java.util.Scanner;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 /** Simulation of the robots in their world */
 
@@ -19,50 +21,257 @@ public class World {
 
     public static final int SIZE = 12;
 
+    // numbers the worlds made by this process, to tell them apart in recordings
+    private static final AtomicInteger WORLD_IDS = new AtomicInteger();
+
     protected Set<Point> availableFuel = Collections.newSetFromMap(new ConcurrentHashMap<Point, Boolean>());
-    private Random rand = new Random();
+    private final int id = WORLD_IDS.incrementAndGet();
+    private final long seed;
+    private final SpawnSchedule spawns;
     protected Robot[] robots;
+    private Thread[] threads = new Thread[3];
+    // whether the robots' programs are run by updateWorld() rather than on their own threads
+    private boolean stepped;
+    // null unless something wants to look back at earlier ticks
+    private WorldHistory history;
+    private Set<Point> frameFuel = Set.of();
+    // the last frame built, whose distance fields the next one can start from
+    private WorldSnapshot lastSnapshot;
+    private AtomicReference<WorldSnapshot> frame = new AtomicReference<>();
+    private int tick;
+    private final List<WorldListener> listeners = new CopyOnWriteArrayList<>();
+    // whether robotDied and programFinished have been reported for each robot
+    private final boolean[] dead = new boolean[3], finished = new boolean[3];
+    // reparses the loaded program files when they change, once one is loaded
+    private ProgramWatcher watcher;
+    private final Path[] programFiles = new Path[3];
 
     public World() {
+        this(new Random().nextLong());
+    }
+
+    /**
+     * Creates a world whose fuel is placed uniformly at random, from the
+     * given seed. Robot actions are always resolved in a fixed order at each
+     * tick boundary, so two worlds with the same seed and the same programs
+     * go through exactly the same history.
+     */
+    public World(long seed) {
+        this(seed, SpawnStrategy.UNIFORM);
+    }
+
+    /**
+     * Creates a world whose fuel is placed by the given strategy's schedule
+     * for the seed.
+     */
+    public World(long seed, SpawnStrategy spawnStrategy) {
+        this.seed = seed;
+        this.spawns = spawnStrategy.schedule(seed);
         robots = new Robot[] { null, new Robot(this, 0, 0, "red", false), new Robot(this, SIZE - 1, SIZE - 1, "blue", false) };
+        frame.set(snapshot());
     }
 
     /**
      * This world can no longer be used after this call.
+     * Returns once both robot programs have stopped running.
      */
     public void reset() {
+        if (watcher != null)
+            watcher.close();
         availableFuel.clear();
         for (int i = 1; i <= 2; i++) {
-            robots[i].updatePending();
             robots[i].cancel();
+            if (threads[i] != null)
+                threads[i].interrupt();
         }
+        boolean interrupted = false;
+        for (int i = 1; i <= 2; i++) {
+            while (threads[i] != null && threads[i].isAlive()) {
+                try {
+                    threads[i].join();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+            threads[i] = null;
+        }
+        if (interrupted)
+            Thread.currentThread().interrupt();
     }
 
     public Set<Point> getAvailableFuel() {
         return availableFuel;
     }
 
+    /**
+     * Advances the world by one tick. The actions resolved at the end of the
+     * previous tick are committed, and those robots carry on with sensor
+     * readings taken from a frame of the committed state. The world then
+     * waits until each running robot has chosen its next action, resolves
+     * the actions for robot 1 and then robot 2, and publishes the new frame.
+     */
     public void updateWorld() {
-        addFuel(false);
+        FlightEvents.Tick event = FlightEvents.startTick();
+        spawns.spawn(tick + 1, availableFuel, this::isRobotAt);
+        commitAndRelease();
+        for (int i = 1; i <= 2; i++) {
+            if (stepped)
+                robots[i].step();
+            robots[i].awaitAction();
+            if (robots[i].isFinished() && !finished[i]) {
+                finished[i] = true;
+                for (WorldListener l : listeners) l.programFinished(this, i);
+            }
+        }
+        for (int i = 1; i <= 2; i++) {
+            robots[i].resolveAction();
+        }
+        tick++;
+        WorldSnapshot next = snapshot();
+        if (history != null)
+            history.record(next);
+        frame.set(next);
+        for (WorldListener l : listeners) l.tickCommitted(this, next);
+        FlightEvents.endTick(event, this);
+    }
+
+    /**
+     * Registers a listener for this world's events. Listeners added while
+     * the world is running hear about the following tick onwards.
+     */
+    public void addListener(WorldListener listener) {
+        listeners.add(listener);
+    }
+
+    public void removeListener(WorldListener listener) {
+        listeners.remove(listener);
+    }
+
+    /** Called by a robot, while its action is being resolved */
+    void notifyFuelTaken(Robot robot, Point barrel) {
+        for (WorldListener l : listeners) l.fuelTaken(this, getRobotId(robot), barrel);
+    }
+
+    /** Called by a robot, while its action is being resolved */
+    void notifyFuelSiphoned(Robot robot, Robot from, int amount) {
+        for (WorldListener l : listeners) l.fuelSiphoned(this, getRobotId(robot), getRobotId(from), amount);
+    }
+
+    /**
+     * Commits every robot's resolved action, reports any robot whose fuel
+     * has run out, then lets the committed robots run on, with their new
+     * programs if they have been replaced.
+     * 
+     * @return the frame the released robots took their sensor readings from
+     */
+    private WorldSnapshot commitAndRelease() {
+        boolean[] committed = new boolean[3];
+        for (int i = 1; i <= 2; i++) {
+            committed[i] = robots[i].updatePending();
+        }
+        WorldSnapshot committedFrame = snapshot();
+        for (int i = 1; i <= 2; i++) {
+            if (committedFrame.getRobot(i).getFuel() <= 0 && !dead[i]) {
+                dead[i] = true;
+                robots[i].setDead();
+                for (WorldListener l : listeners) l.robotDied(this, i);
+            }
+        }
+        for (int i = 1; i <= 2; i++) {
+            if (committed[i])
+                robots[i].release(committedFrame);
+        }
+        // a finished program that has been replaced is run again
+        for (int i = 1; i <= 2; i++) {
+            if (committed[i] && robots[i].restartIfReplaced()) {
+                finished[i] = false;
+                startRobot(i);
+            }
+        }
+        return committedFrame;
+    }
+
+    /**
+     * @return the most recently published frame. Safe to call from any
+     *         thread; the frame never changes once published.
+     */
+    public WorldSnapshot getFrame() {
+        return frame.get();
+    }
+
+    /**
+     * Builds a frame of the current state. Only reads the state the world
+     * keeps for each robot, which their programs cannot change underneath it.
+     * The set of barrels is only copied when it differs from the one in the
+     * previous frame, and the distance fields are not worked out until a
+     * robot asks for them, from the last ones that were.
+     */
+    WorldSnapshot snapshot() {
+        if (!frameFuel.equals(availableFuel)) {
+            frameFuel = Set.copyOf(availableFuel);
+        }
+        WorldSnapshot.RobotState[] states = new WorldSnapshot.RobotState[3];
         for (int i = 1; i <= 2; i++) {
-            robots[i].updatePending();
+            states[i] = new WorldSnapshot.RobotState(robots[i].packState(), robots[i].getPublishedVariables());
         }
+        lastSnapshot = new WorldSnapshot(tick, states[1], states[2], frameFuel, lastSnapshot);
+        return lastSnapshot;
     }
 
+    public long getSeed() {
+        return seed;
+    }
+
+    /**
+     * @return a number for this world, different from that of every other
+     *         world made by this process
+     */
+    public int getId() {
+        return id;
+    }
+
+    /**
+     * Records the state of the world at the end of every tick from now on in
+     * the history. Nothing is recorded unless this is called, as only a
+     * viewer that can rewind a match needs it.
+     */
+    public void setHistory(WorldHistory history) {
+        this.history = history;
+    }
+
+    /**
+     * @return the history given to setHistory(), or null if there is none
+     */
+    public WorldHistory getHistory() {
+        return history;
+    }
+
+    /**
+     * @return the number of ticks this world has been updated for
+     */
+    public int getTick() {
+        return tick;
+    }
+
+    /**
+     * Gives a robot the program in a file, and keeps watching the file so
+     * that whenever it is saved the robot is given the new program (see
+     * Robot.replaceProgram()), even while the world is running.
+     */
     public void loadRobotProgram(int id, File code) {
+        watchProgram(id, code.toPath());
         try{
-            Scanner scanner = new Scanner(code);
-            ProgramNode prog = new Parser().parse(scanner);
+            ProgramNode prog = ProgramCache.load(code.toPath());
             if (prog == null) {
                 System.out.println("Robot " + id + " was given an empty program and ignored it.");
             }
             else {
                 System.out.println("Robot " + id + " now has program: ");
-                System.out.println(prog);
-                robots[id].setProgram(prog);
+                ProgramPrinter.pretty(prog, System.out);
+                robots[id].replaceProgram(CompiledProgram.compile(prog));
             }
         }
-        catch (FileNotFoundException e) {
+        catch (IOException e) {
             System.out.println("Robot program source file not found");
         }
         catch (ParserFailureException e) {
@@ -71,35 +280,80 @@ public class World {
         }
     }
 
+    private void watchProgram(int id, Path file) {
+        Path key = file.toAbsolutePath().normalize();
+        synchronized (programFiles) {
+            programFiles[id] = key;
+        }
+        try {
+            if (watcher == null)
+                watcher = new ProgramWatcher();
+            watcher.watch(key, prog -> {
+                    for (int i = 1; i <= 2; i++) {
+                        synchronized (programFiles) {
+                            if (!key.equals(programFiles[i])) continue;
+                        }
+                        System.out.println("Robot " + i + " reloaded " + key.getFileName());
+                        robots[i].replaceProgram(CompiledProgram.compile(prog));
+                    }
+                });
+        } catch (IOException e) {
+            System.out.println("Cannot watch " + file + " for changes: " + e);
+        }
+    }
+
     public void start() {
-        // add some initial fuel
+        // add the initial fuel
         if (availableFuel.isEmpty()) {
-            addFuel(true);
-            addFuel(true);
-        }
-        new Thread(()-> {
-                try {robots[1].run();}
-                catch (RobotInterruptedException e) {}
-                robots[1].setFinished(true);
-        }).start();
-        /*		new Thread(new Runnable() {
-			@Override
-			public void run() {
-                        try {
-                        robots[1].run();
-                        } catch (RobotInterruptedException e) {
-                        }
-                        robots[1].setFinished(true);
-			}
-                        }).start();
-        */
-        new Thread(() -> {
+            spawns.spawn(0, availableFuel, this::isRobotAt);
+        }
+        // give the robots their first sensor readings before they start
+        WorldSnapshot initial = snapshot();
+        for (int i = 1; i <= 2; i++) {
+            robots[i].release(initial);
+        }
+        frame.set(initial);
+        for (int i = 1; i <= 2; i++) {
+            startRobot(i);
+        }
+    }
+
+    /**
+     * Starts the world with the robots' programs run on the thread that
+     * updates it, instead of each on a thread of its own. At each tick,
+     * each program is run until its robot would have to wait for the world
+     * (see Robot.step()), so no thread ever blocks on a robot, and many
+     * worlds can be played at once on a pool of threads. The world goes
+     * through the same history as it would after start().
+     */
+    public void startStepped() {
+        stepped = true;
+        start();
+    }
+
+    /**
+     * Runs a robot's program on a thread of its own, unless the world is
+     * stepping it.
+     */
+    private void startRobot(int i) {
+        Robot robot = robots[i];
+        robot.setRunning(true);
+        if (stepped)
+            return;
+        threads[i] = new Thread(() -> {
                 try {
-                    robots[2].run();
+                    robot.run();
                 } catch (RobotInterruptedException e) {
+                } catch (ArithmeticException | IndexOutOfBoundsException e) {
+                    // the program divided by zero or asked for a negative barrel
+                    if (Robot.debugDisplay)
+                        System.out.println(robot + " stopped: " + e);
+                } finally {
+                    robot.setFinished(true);
                 }
-                robots[2].setFinished(true);
-        }).start();
+        }, "robot-" + i);
+        threads[i].setDaemon(true);
+        threads[i].start();
     }
 
     public Robot getRobot(int id) {
@@ -109,6 +363,15 @@ public class World {
         return robots[id];
     }
 
+    /** Returns 1 or 2 for the robots in this world, 0 for any other robot */
+    public int getRobotId(Robot robot) {
+        if (robot == robots[1])
+            return 1;
+        if (robot == robots[2])
+            return 2;
+        return 0;
+    }
+
     /** Returns the opponent robot of the argument */
     public Robot getOtherRobot(Robot robot) {
         if (robot == robots[2])
@@ -118,13 +381,17 @@ public class World {
         return null;
     }
 
-    private void addFuel(boolean definitely) {
-        if (definitely || rand.nextDouble() < 0.2) {
-            int x = rand.nextInt(12);
-            int y = rand.nextInt(12);
-            Point fuel = new Point(x, y);
-            availableFuel.add(fuel);
+    /**
+     * Whether either robot is on the square, or will be once its action is
+     * committed, so no barrel should be put there.
+     */
+    private boolean isRobotAt(Point p) {
+        for (int i = 1; i <= 2; i++) {
+            WorldSnapshot.RobotState r = new WorldSnapshot.RobotState(robots[i].packState(), null);
+            if ((r.getX() == p.x && r.getY() == p.y) || (r.getTargetX() == p.x && r.getTargetY() == p.y))
+                return true;
         }
+        return false;
     }
 	
     /*
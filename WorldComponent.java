@@ -1,44 +1,36 @@
-import java.awt.BasicStroke;
-import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
-import java.awt.Point;
 import java.awt.RenderingHints;
-import java.awt.geom.Line2D;
-import java.awt.image.BufferedImage;
 import java.io.File;
-import java.io.IOException;
 import java.util.ArrayList;
+import java.util.List;
 import java.util.Timer;
 import java.util.TimerTask;
+import java.util.concurrent.CopyOnWriteArrayList;
 
-import javax.imageio.ImageIO;
 import javax.swing.JComponent;
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 
 @SuppressWarnings("serial")
 public class WorldComponent extends JComponent {
 
-    public static final int GRID_SIZE = 50;
+    public static final int GRID_SIZE = WorldPainter.GRID_SIZE;
     private static final int ANIMATION_DELAY = 20;
     private static final int WORLD_UPDATE_DELAY = 33;
-    private BufferedImage fuelImage;
     private World world;
     private Timer timer;
 
     private int tick = 0;
+    private int viewTick = -1;
+    // listeners to attach to every world this component shows
+    private final List<WorldListener> listeners = new CopyOnWriteArrayList<>();
 
     public WorldComponent() {
         super();
-        world = new World();
-        setPreferredSize(new Dimension(600, 600));
-
-        try {
-            fuelImage = ImageIO.read(new File(RoboGame.ASSET_DIRECTORY+"fuel.png"));
-        } catch (IOException e) {
-            e.printStackTrace();
-        }
+        world = newWorld();
+        setPreferredSize(new Dimension(WorldPainter.WIDTH, WorldPainter.WIDTH));
     }
 
     public void start() {
@@ -51,13 +43,45 @@ public class WorldComponent extends JComponent {
         if (timer != null)
             timer.cancel();
         world.reset();
-        world = new World();
+        world = newWorld();
+    }
+
+    /**
+     * Registers a listener with the current world, and with each new world
+     * made when the game is reset. Events arrive on the animation thread.
+     */
+    public void addWorldListener(WorldListener listener) {
+        listeners.add(listener);
+        world.addListener(listener);
+    }
+
+    private World newWorld() {
+        World w = new World();
+        w.setHistory(new WorldHistory());
+        w.addListener(new GameOverListener());
+        for (WorldListener l : listeners) {
+            w.addListener(l);
+        }
+        return w;
     }
 
     public void loadRobotProgram(int rob, File code) {
         world.loadRobotProgram(rob, code);
     }
 
+    public WorldHistory getHistory() {
+        return world.getHistory();
+    }
+
+    /**
+     * Shows the world as it was after the given tick, or the live world if
+     * the tick is negative. The match keeps running while a past tick is shown.
+     */
+    public void setViewTick(int viewTick) {
+        this.viewTick = viewTick;
+        repaint();
+    }
+
     @Override
     protected void paintComponent(Graphics g) {
         Graphics2D g2d = (Graphics2D) g;
@@ -65,27 +89,15 @@ public class WorldComponent extends JComponent {
         g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
         g2d.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
 
-        g2d.setColor(Color.BLACK);
-        g2d.setStroke(new BasicStroke(2));
-
-        for (int i = 0; i <= World.SIZE; i++) {
-            Line2D hline = new Line2D.Double(0, i * GRID_SIZE, 600, i * GRID_SIZE);
-            Line2D vline = new Line2D.Double(i * GRID_SIZE, 0, i * GRID_SIZE, 600);
-            g2d.draw(hline);
-            g2d.draw(vline);
-        }
-
-        for (Point fuel : world.getAvailableFuel()) {
-            int x = fuel.x * GRID_SIZE + GRID_SIZE / 2 - fuelImage.getWidth() / 2;
-            int y = fuel.y * GRID_SIZE + GRID_SIZE / 2 - fuelImage.getHeight() / 2;
-            g2d.drawImage(fuelImage, x, y, null);
+        // read the frame once so everything drawn comes from the same tick
+        WorldSnapshot frame = (viewTick < 0) ? null : world.getHistory().get(viewTick);
+        double time = 0;
+        if (frame == null) {
+            frame = world.getFrame();
+            time = getTimeRatio();
         }
 
-        for (int i = 1; i <= 2; i++) {
-            Robot rob;
-            if ((rob = world.getRobot(i)) != null)
-                rob.draw(g2d, getTimeRatio());
-        }
+        WorldPainter.paint(g2d, world, frame, time);
     }
 
     /**
@@ -97,29 +109,46 @@ public class WorldComponent extends JComponent {
         return (double) tick / WORLD_UPDATE_DELAY - base;  
     }
 
-    private class AnimationTask extends TimerTask {
+    /**
+     * Stops the animation once a robot has run out of fuel, and says which.
+     * Both robots can die in the same tick, so the message waits for the end
+     * of the tick.
+     */
+    private class GameOverListener implements WorldListener {
+        private boolean r1dead, r2dead;
 
-        public AnimationTask() {
-            tick = 0;
+        @Override
+        public void robotDied(World w, int robot) {
+            if (robot == 1) r1dead = true;
+            else r2dead = true;
         }
 
         @Override
-        public void run() {
-            // test for any deaths
-            boolean r1dead = world.getRobot(1).isDead();
-            boolean r2dead = world.getRobot(2).isDead();
-            if (r1dead || r2dead) {
+        public void tickCommitted(World w, WorldSnapshot frame) {
+            if (!r1dead && !r2dead) return;
+            w.removeListener(this);
+            if (timer != null) {
                 timer.cancel();
                 timer = null;
-                String msg = (r1dead && r2dead) ? "Both robots" : r1dead ? "Robot 1 (red)" : "Robot 2 (blue)";
-                JOptionPane.showMessageDialog(null, msg + " ran out of fuel!");
-                return;
             }
+            String msg = (r1dead && r2dead) ? "Both robots" : r1dead ? "Robot 1 (red)" : "Robot 2 (blue)";
+            SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(null, msg + " ran out of fuel!"));
+        }
+    }
+
+    private class AnimationTask extends TimerTask {
 
+        public AnimationTask() {
+            tick = 0;
+        }
+
+        @Override
+        public void run() {
             tick++;
             if (tick % WORLD_UPDATE_DELAY == 0)
                 world.updateWorld();
-            repaint();
+            if (viewTick < 0)
+                repaint();
         }
     }
 }
@@ -0,0 +1,125 @@
+import java.awt.Point;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Records the state of a world at every tick so a match can be rewound.
+ * Each tick is stored as a handful of longs and references in parallel
+ * arrays. Barrel sets and variable maps are immutable and shared between
+ * ticks until they change, so a tick in which nothing but the robots' states
+ * changes costs about 30 bytes. A tick in which a barrel is taken or spawned
+ * also holds a copy of the whole set of barrels, and one in which a variable
+ * changes a copy of that robot's variables.
+ * Once full, the oldest ticks are overwritten.
+ */
+public class WorldHistory {
+
+    public static final int DEFAULT_CAPACITY = 100000;
+
+    private final int capacity;
+    private int size;
+    private int start;
+    private int firstTick;
+
+    private long[] robot1 = new long[0], robot2 = new long[0];
+    private Object[] barrels = new Object[0], variables1 = new Object[0], variables2 = new Object[0];
+
+    public WorldHistory() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public WorldHistory(int capacity) {
+        this.capacity = capacity;
+    }
+
+    /**
+     * Adds the frame for the next tick.
+     */
+    public void record(WorldSnapshot frame) {
+        WorldSnapshot.RobotState r1 = frame.getRobot(1), r2 = frame.getRobot(2);
+        record(r1.getPacked(), r2.getPacked(), frame.getBarrels(), r1.getVariables(), r2.getVariables());
+    }
+
+    /**
+     * Adds the state for the next tick. Arguments should be immutable.
+     */
+    public synchronized void record(long r1, long r2, Set<Point> fuel,
+                                    Map<String, Integer> vars1, Map<String, Integer> vars2) {
+        int i;
+        if (size < capacity) {
+            if (size == robot1.length)
+                grow();
+            i = size++;
+        } else {
+            i = start;
+            start = (start + 1) % capacity;
+            firstTick++;
+        }
+        robot1[i] = r1;
+        robot2[i] = r2;
+        barrels[i] = fuel;
+        variables1[i] = vars1;
+        variables2[i] = vars2;
+    }
+
+    /**
+     * @return the state of the world after the given tick, or null if that
+     *         tick is not (or is no longer) in the history
+     */
+    @SuppressWarnings("unchecked")
+    public synchronized WorldSnapshot get(int tick) {
+        if (tick < firstTick || tick >= firstTick + size)
+            return null;
+        int i = (start + tick - firstTick) % capacity;
+        return new WorldSnapshot(tick,
+                                 new WorldSnapshot.RobotState(robot1[i], (Map<String, Integer>) variables1[i]),
+                                 new WorldSnapshot.RobotState(robot2[i], (Map<String, Integer>) variables2[i]),
+                                 (Set<Point>) barrels[i]);
+    }
+
+    /**
+     * @return the oldest tick still held
+     */
+    public synchronized int getFirstTick() {
+        return firstTick;
+    }
+
+    /**
+     * @return the most recent tick recorded, or -1 if nothing has been recorded
+     */
+    public synchronized int getLastTick() {
+        return firstTick + size - 1;
+    }
+
+    /**
+     * @return the first tick at which this history and the other differ, in
+     *         either robot's state or variables or in the barrels, or else
+     *         the first tick that only one of them holds, or -1 if they are
+     *         the same
+     */
+    public int firstDifference(WorldHistory other) {
+        int first = Math.max(getFirstTick(), other.getFirstTick());
+        int last = Math.min(getLastTick(), other.getLastTick());
+        for (int tick = first; tick <= last; tick++) {
+            WorldSnapshot a = get(tick), b = other.get(tick);
+            for (int id = 1; id <= 2; id++) {
+                if (a.getRobot(id).getPacked() != b.getRobot(id).getPacked()
+                    || !a.getRobot(id).getVariables().equals(b.getRobot(id).getVariables()))
+                    return tick;
+            }
+            if (!a.getBarrels().equals(b.getBarrels()))
+                return tick;
+        }
+        return (getLastTick() == other.getLastTick()) ? -1 : last + 1;
+    }
+
+    private void grow() {
+        int length = Math.min(capacity, Math.max(1024, robot1.length * 2));
+        robot1 = Arrays.copyOf(robot1, length);
+        robot2 = Arrays.copyOf(robot2, length);
+        barrels = Arrays.copyOf(barrels, length);
+        variables1 = Arrays.copyOf(variables1, length);
+        variables2 = Arrays.copyOf(variables2, length);
+    }
+}
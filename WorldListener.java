@@ -0,0 +1,39 @@
+import java.awt.Point;
+
+/**
+ * Told about what happens in a World as the simulation works it out, so the
+ * GUI, metrics and match runners can react without polling.
+ * Every event is delivered on the thread that called World.updateWorld(),
+ * in a fixed order within each tick, so listeners see the same sequence of
+ * events every time a seed is replayed. Listeners must not block; the GUI
+ * hands its work on to the event dispatch thread.
+ * Robots are identified as 1 (red) and 2 (blue).
+ */
+public interface WorldListener {
+
+    /**
+     * A tick has been resolved and its frame published.
+     */
+    public default void tickCommitted(World world, WorldSnapshot frame) {}
+
+    /**
+     * A robot picked up the fuel barrel at the given position.
+     */
+    public default void fuelTaken(World world, int robot, Point barrel) {}
+
+    /**
+     * A robot took the given amount of fuel from the other robot.
+     */
+    public default void fuelSiphoned(World world, int robot, int from, int amount) {}
+
+    /**
+     * A robot's committed fuel reached zero. Reported once per robot.
+     */
+    public default void robotDied(World world, int robot) {}
+
+    /**
+     * A robot's program ran to its end (or stopped with an error), so the
+     * robot will only wait from now on. Reported once per robot.
+     */
+    public default void programFinished(World world, int robot) {}
+}
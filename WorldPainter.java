@@ -0,0 +1,54 @@
+import java.awt.BasicStroke;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Point;
+import java.awt.geom.Line2D;
+import java.awt.image.BufferedImage;
+import java.util.Collection;
+
+/**
+ * Draws one frame of a world at full size (GRID_SIZE pixels per square).
+ * Shared by WorldComponent and the tiles of a SpectatorWall, which scale
+ * the graphics first; the images come from the robots' shared sprite cache.
+ */
+public class WorldPainter {
+
+    public static final int GRID_SIZE = 50;
+    public static final int WIDTH = World.SIZE * GRID_SIZE;
+
+    private WorldPainter() {}
+
+    /**
+     * Draws the grid, the fuel and the robots of the frame, with the robots
+     * the given fraction of the way through their actions.
+     */
+    public static void paint(Graphics2D g2d, World world, WorldSnapshot frame, double time) {
+        g2d.setColor(Color.BLACK);
+        g2d.setStroke(new BasicStroke(2));
+
+        for (int i = 0; i <= World.SIZE; i++) {
+            Line2D hline = new Line2D.Double(0, i * GRID_SIZE, WIDTH, i * GRID_SIZE);
+            Line2D vline = new Line2D.Double(i * GRID_SIZE, 0, i * GRID_SIZE, WIDTH);
+            g2d.draw(hline);
+            g2d.draw(vline);
+        }
+
+        drawFuel(g2d, frame.getBarrels());
+
+        for (int i = 1; i <= 2; i++) {
+            Robot rob;
+            if ((rob = world.getRobot(i)) != null)
+                rob.draw(g2d, frame.getRobot(i), time);
+        }
+    }
+
+    private static void drawFuel(Graphics2D g2d, Collection<Point> barrels) {
+        BufferedImage fuelImage = Robot.sprite("fuel.png");
+        if (fuelImage == null) return;
+        for (Point fuel : barrels) {
+            int x = fuel.x * GRID_SIZE + GRID_SIZE / 2 - fuelImage.getWidth() / 2;
+            int y = fuel.y * GRID_SIZE + GRID_SIZE / 2 - fuelImage.getHeight() / 2;
+            g2d.drawImage(fuelImage, x, y, null);
+        }
+    }
+}
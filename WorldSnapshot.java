@@ -0,0 +1,136 @@
+import java.awt.Point;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * An immutable picture of a world at the end of one tick: where each robot
+ * is, and where the actions resolved for the next tick will take it.
+ * The world publishes a new snapshot every tick, so the GUI and the robots'
+ * sensors always see a consistent frame without taking any locks.
+ * Snapshots of earlier ticks are rebuilt from the compact records kept by
+ * WorldHistory.
+ *
+ * The one thing filled in after publication is each robot's distance field,
+ * which is worked out when first asked for. Only that robot's own thread
+ * asks, so each slot has a single writer, and the slots are atomic so that
+ * the world's thread, which reads them to start the next frame, sees
+ * either nothing or a whole field.
+ */
+public class WorldSnapshot {
+
+    private final int tick;
+    private final RobotState[] robots;
+    private final Set<Point> barrels;
+    // each robot's distances to the barrels, worked out the first time they
+    // are asked for, by updating the latest ones worked out before this
+    // frame if there are any
+    private final AtomicReferenceArray<DistanceField> distances = new AtomicReferenceArray<>(3);
+    private final DistanceField[] earlierDistances;
+
+    public WorldSnapshot(int tick, RobotState robot1, RobotState robot2, Set<Point> barrels) {
+        this(tick, robot1, robot2, barrels, null);
+    }
+
+    /**
+     * @param previous an earlier frame of the same world, or null, whose
+     *                 distance fields are a head start on this one's
+     */
+    public WorldSnapshot(int tick, RobotState robot1, RobotState robot2, Set<Point> barrels,
+                         WorldSnapshot previous) {
+        this.tick = tick;
+        this.robots = new RobotState[] { null, robot1, robot2 };
+        this.barrels = barrels;
+        this.earlierDistances = new DistanceField[3];
+        if (previous != null) {
+            for (int i = 1; i <= 2; i++) {
+                DistanceField field = previous.distances.get(i);
+                earlierDistances[i] = (field != null) ? field : previous.earlierDistances[i];
+            }
+        }
+    }
+
+    public int getTick() {
+        return tick;
+    }
+
+    /**
+     * @param id 1 for the red robot, 2 for the blue robot
+     */
+    public RobotState getRobot(int id) {
+        return robots[id];
+    }
+
+    public Set<Point> getBarrels() {
+        return barrels;
+    }
+
+    /**
+     * @param id 1 for the red robot, 2 for the blue robot
+     * @return how far every square is from the nearest barrel for that
+     *         robot, which has to go around the other robot
+     */
+    public DistanceField getDistances(int id) {
+        // see the class comment: only robot id's thread gets here
+        DistanceField field = distances.get(id);
+        if (field == null) {
+            RobotState other = robots[3 - id];
+            Point blocked = new Point(other.getX(), other.getY());
+            DistanceField earlier = earlierDistances[id];
+            field = (earlier == null) ? DistanceField.compute(World.SIZE, barrels, blocked)
+                : earlier.update(barrels, blocked);
+            distances.set(id, field);
+        }
+        return field;
+    }
+
+    /**
+     * The state of one robot, packed into a single long by Robot.packState().
+     * Direction is 0..3 for north, west, south and east. The target position
+     * and fuel are what the robot will have once its current action is
+     * committed at the next tick.
+     */
+    public static class RobotState {
+        private final long packed;
+        private final Map<String, Integer> variables;
+
+        public RobotState(long packed, Map<String, Integer> variables) {
+            this.packed = packed;
+            this.variables = variables;
+        }
+
+        public int getX()       { return (int) (packed >>> 32) & 0xF; }
+        public int getY()       { return (int) (packed >>> 36) & 0xF; }
+        public int getDir()     { return (int) (packed >>> 40) & 0x3; }
+        public boolean isShieldOn() { return ((packed >>> 42) & 1) != 0; }
+        public int getAction()  { return (int) (packed >>> 43) & 0x7; }
+        public int getTargetX() { return (int) (packed >>> 46) & 0xF; }
+        public int getTargetY() { return (int) (packed >>> 50) & 0xF; }
+        public int getFuel()    { return (short) packed; }
+        public int getTargetFuel() { return (short) (packed >>> 16); }
+
+        public long getPacked() {
+            return packed;
+        }
+
+        /**
+         * @return the interpreter's variables at the time of the snapshot
+         */
+        public Map<String, Integer> getVariables() {
+            return variables;
+        }
+
+        public static long pack(int x, int y, int dir, boolean shield, int action, int fuel,
+                                int targetX, int targetY, int targetFuel) {
+            return ((long) targetY << 50) | ((long) targetX << 46)
+                | ((long) action << 43) | ((shield ? 1L : 0L) << 42) | ((long) dir << 40)
+                | ((long) y << 36) | ((long) x << 32)
+                | ((targetFuel & 0xFFFFL) << 16) | (fuel & 0xFFFFL);
+        }
+
+        public String toString() {
+            return String.format("@(%d,%d) dir:%d fuel:%d %s %s", getX(), getY(), getDir(), getFuel(),
+                                 isShieldOn() ? "shielded" : "unshielded", variables);
+        }
+    }
+}